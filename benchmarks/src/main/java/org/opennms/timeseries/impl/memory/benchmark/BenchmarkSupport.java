@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory.benchmark;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.timeseries.impl.memory.InMemoryStorage;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates storages and test data shaped like SNMP interface metrics collected by OpenNMS:
+ * every node has {@value #INTERFACES_PER_NODE} interfaces with {@value #NAMES_PER_INTERFACE} metrics each.
+ */
+final class BenchmarkSupport {
+
+    static final int INTERFACES_PER_NODE = 10;
+    static final int NAMES_PER_INTERFACE = 10;
+    static final int METRICS_PER_NODE = INTERFACES_PER_NODE * NAMES_PER_INTERFACE;
+
+    /** Five minutes, the default collection interval of OpenNMS. */
+    static final long STEP = 5 * 60 * 1000L;
+
+    private static final String[] NAMES = {"ifInOctets", "ifOutOctets", "ifInErrors", "ifOutErrors", "ifInDiscards",
+            "ifOutDiscards", "ifInUcastPkts", "ifOutUcastPkts", "ifHCInOctets", "ifHCOutOctets"};
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Returns an initialized, empty storage. The postgres engine expects a PostgreSQL server on localhost:5432,
+     * the memory engine serves as an embedded stand-in when there is none.
+     */
+    static InMemoryStorage createStorage(String engine) throws Exception {
+        InMemoryStorage storage = new InMemoryStorage();
+        storage.setEngine(engine);
+        storage.initialize();
+        storage.dropTables(); // leftovers of an aborted run
+        storage.initialize();
+        return storage;
+    }
+
+    static void close(InMemoryStorage storage) throws Exception {
+        storage.dropTables();
+        storage.shutdown(); // closes the connection pool
+    }
+
+    /** The metric with the given number, metrics 0 to METRICS_PER_NODE - 1 belong to node 0 and so on. */
+    static Metric metric(long number) {
+        long node = number / METRICS_PER_NODE;
+        long iface = (number % METRICS_PER_NODE) / NAMES_PER_INTERFACE;
+        return new ImmutableMetric.MetricBuilder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId(node, iface))
+                .intrinsicTag(IntrinsicTagNames.name, NAMES[(int) (number % NAMES_PER_INTERFACE)])
+                .metaTag("node", "node" + node)
+                .build();
+    }
+
+    static String resourceId(long node, long iface) {
+        return "snmp:" + node + ":if" + iface;
+    }
+
+    static Sample sample(Metric metric, long time, double value) {
+        return ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(time)).value(value).build();
+    }
+
+    /** Stores one sample for each of the metrics 0 to count - 1, in batches. */
+    static void storeMetrics(InMemoryStorage storage, int count, long time) throws Exception {
+        List<Sample> batch = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            batch.add(sample(metric(i), time, i));
+            if (batch.size() == 10_000) {
+                storage.store(batch);
+                batch = new ArrayList<>();
+            }
+        }
+        storage.store(batch);
+    }
+}
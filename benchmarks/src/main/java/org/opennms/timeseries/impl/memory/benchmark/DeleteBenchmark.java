@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory.benchmark;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.timeseries.impl.memory.InMemoryStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Deletes a metric with its samples, among other metrics which stay. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DeleteBenchmark {
+
+    private static final int OTHER_METRICS = 10_000;
+
+    @Param({"postgres", "memory"})
+    public String engine;
+
+    @Param({"100", "10000"})
+    public int samplesPerMetric;
+
+    private InMemoryStorage storage;
+    private long nextMetric = OTHER_METRICS;
+    private Metric metric;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = BenchmarkSupport.createStorage(engine);
+        BenchmarkSupport.storeMetrics(storage, OTHER_METRICS, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkSupport.close(storage);
+    }
+
+    @Setup(Level.Invocation)
+    public void createMetric() throws Exception {
+        metric = BenchmarkSupport.metric(nextMetric++);
+        List<Sample> samples = new ArrayList<>(samplesPerMetric);
+        for (int i = 0; i < samplesPerMetric; i++) {
+            samples.add(BenchmarkSupport.sample(metric, i * BenchmarkSupport.STEP, i));
+        }
+        storage.store(samples);
+    }
+
+    @Benchmark
+    public void delete() throws Exception {
+        storage.delete(metric);
+    }
+}
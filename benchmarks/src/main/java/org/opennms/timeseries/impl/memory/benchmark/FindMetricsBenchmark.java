@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory.benchmark;
+
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.timeseries.impl.memory.InMemoryStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Searches metrics the way OpenNMS does: by resource id, by a resource id pattern and by name. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FindMetricsBenchmark {
+
+    @Param({"postgres", "memory"})
+    public String engine;
+
+    @Param({"10000", "100000", "1000000"})
+    public int metricCount;
+
+    private InMemoryStorage storage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = BenchmarkSupport.createStorage(engine);
+        BenchmarkSupport.storeMetrics(storage, metricCount, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkSupport.close(storage);
+    }
+
+    /** One interface: {@value BenchmarkSupport#NAMES_PER_INTERFACE} results. */
+    @Benchmark
+    public List<Metric> equalsResourceId() throws Exception {
+        return storage.findMetrics(Collections.singletonList(matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.resourceId,
+                BenchmarkSupport.resourceId(randomNode(), 0))));
+    }
+
+    /** All interfaces of a node: {@value BenchmarkSupport#METRICS_PER_NODE} results, the regex has a literal prefix. */
+    @Benchmark
+    public List<Metric> regexResourceId() throws Exception {
+        return storage.findMetrics(Collections.singletonList(matcher(TagMatcher.Type.EQUALS_REGEX,
+                IntrinsicTagNames.resourceId, "snmp:" + randomNode() + ":.*")));
+    }
+
+    /** One metric name of a node: a selective and an unselective matcher combined. */
+    @Benchmark
+    public List<Metric> equalsNodeAndName() throws Exception {
+        return storage.findMetrics(Arrays.asList(
+                matcher(TagMatcher.Type.EQUALS, IntrinsicTagNames.name, "ifInOctets"),
+                matcher(TagMatcher.Type.EQUALS, "node", "node" + randomNode())));
+    }
+
+    /** A regex without literal prefix has to look at every value of the tag. */
+    @Benchmark
+    public List<Metric> regexWithoutPrefix() throws Exception {
+        return storage.findMetrics(Arrays.asList(
+                matcher(TagMatcher.Type.EQUALS_REGEX, IntrinsicTagNames.resourceId, ".*:if0"),
+                matcher(TagMatcher.Type.EQUALS, "node", "node" + randomNode())));
+    }
+
+    private long randomNode() {
+        return ThreadLocalRandom.current().nextInt(Math.max(1, metricCount / BenchmarkSupport.METRICS_PER_NODE));
+    }
+
+    private static TagMatcher matcher(TagMatcher.Type type, String key, String value) {
+        return ImmutableTagMatcher.builder().type(type).key(key).value(value).build();
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory.benchmark;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+import org.opennms.timeseries.impl.memory.InMemoryStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads windows of different widths, ending at the most recent sample, from metrics with a deep history of
+ * samples collected every five minutes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GetTimeseriesBenchmark {
+
+    private static final int METRICS = 20;
+
+    @Param({"postgres", "memory"})
+    public String engine;
+
+    @Param({"365"})
+    public int historyDays;
+
+    /** 1 hour, 1 day and 30 days. */
+    @Param({"1", "24", "720"})
+    public int windowHours;
+
+    @Param({"NONE", "AVERAGE"})
+    public Aggregation aggregation;
+
+    private InMemoryStorage storage;
+    private long end;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = BenchmarkSupport.createStorage(engine);
+        long samplesPerMetric = TimeUnit.DAYS.toMillis(historyDays) / BenchmarkSupport.STEP;
+        List<Sample> batch = new ArrayList<>();
+        for (int metric = 0; metric < METRICS; metric++) {
+            for (long i = 0; i < samplesPerMetric; i++) {
+                batch.add(BenchmarkSupport.sample(BenchmarkSupport.metric(metric), i * BenchmarkSupport.STEP, i));
+                if (batch.size() == 10_000) {
+                    storage.store(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+        }
+        storage.store(batch);
+        end = samplesPerMetric * BenchmarkSupport.STEP;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkSupport.close(storage);
+    }
+
+    @Benchmark
+    public List<Sample> getTimeseries() throws Exception {
+        return storage.getTimeseries(request(ThreadLocalRandom.current().nextInt(METRICS)));
+    }
+
+    /** A graph showing every metric as a line, read with one request per line. */
+    @Benchmark
+    public List<List<Sample>> getGraphOneByOne() throws Exception {
+        List<List<Sample>> lines = new ArrayList<>();
+        for (int metric = 0; metric < METRICS; metric++) {
+            lines.add(storage.getTimeseries(request(metric)));
+        }
+        return lines;
+    }
+
+    /** The same graph read with one batch. */
+    @Benchmark
+    public List<List<Sample>> getGraphBatch() throws Exception {
+        List<TimeSeriesFetchRequest> requests = new ArrayList<>();
+        for (int metric = 0; metric < METRICS; metric++) {
+            requests.add(request(metric));
+        }
+        return storage.getTimeseries(requests);
+    }
+
+    private TimeSeriesFetchRequest request(int metric) {
+        Duration window = Duration.ofHours(windowHours);
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(BenchmarkSupport.metric(metric))
+                .start(Instant.ofEpochMilli(end).minus(window))
+                .end(Instant.ofEpochMilli(end))
+                .step(aggregation == Aggregation.NONE ? Duration.ofMillis(BenchmarkSupport.STEP) : window.dividedBy(100))
+                .aggregation(aggregation)
+                .build();
+    }
+}
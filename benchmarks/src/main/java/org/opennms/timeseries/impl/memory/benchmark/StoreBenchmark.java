@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory.benchmark;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.timeseries.impl.memory.InMemoryStorage;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores batches of samples. A share of each batch belongs to metrics which were never seen before, the rest to
+ * metrics which are already known.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StoreBenchmark {
+
+    private static final int EXISTING_METRICS = 10_000;
+
+    @Param({"postgres", "memory"})
+    public String engine;
+
+    @Param({"100", "1000", "10000"})
+    public int batchSize;
+
+    @Param({"0.0", "0.1", "1.0"})
+    public double newMetricRatio;
+
+    private InMemoryStorage storage;
+    private long nextNewMetric = EXISTING_METRICS;
+    private long time = 0;
+    private List<Sample> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        storage = BenchmarkSupport.createStorage(engine);
+        BenchmarkSupport.storeMetrics(storage, EXISTING_METRICS, time);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BenchmarkSupport.close(storage);
+    }
+
+    @Setup(Level.Invocation)
+    public void createBatch() {
+        time += BenchmarkSupport.STEP;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            long number = random.nextDouble() < newMetricRatio ? nextNewMetric++ : random.nextInt(EXISTING_METRICS);
+            batch.add(BenchmarkSupport.sample(BenchmarkSupport.metric(number), time, i));
+        }
+    }
+
+    @Benchmark
+    public void store() throws Exception {
+        storage.store(batch);
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.postgresql.copy.CopyIn;
+
+import java.sql.SQLException;
+
+/**
+ * Streams rows in the PostgreSQL binary COPY format into a {@link CopyIn}.
+ * Rows are encoded into one reusable buffer which is handed to the driver whenever it is full,
+ * so no per row objects are created.
+ */
+public class BinaryCopyWriter {
+
+    private static final byte[] HEADER = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0,
+            0, 0, 0, 0, // flags
+            0, 0, 0, 0}; // header extension length
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CopyIn copyIn;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+
+    public BinaryCopyWriter(CopyIn copyIn) {
+        this.copyIn = copyIn;
+        System.arraycopy(HEADER, 0, buffer, 0, HEADER.length);
+        position = HEADER.length;
+    }
+
+    /** Starts a new row, every row needs to contain exactly fieldCount fields. */
+    public void startRow(int fieldCount) throws SQLException {
+        ensureCapacity(2);
+        writeShort(fieldCount);
+    }
+
+    public void writeInt(int value) throws SQLException {
+        ensureCapacity(8);
+        writeIntUnchecked(4);
+        writeIntUnchecked(value);
+    }
+
+    public void writeLong(long value) throws SQLException {
+        ensureCapacity(12);
+        writeIntUnchecked(8);
+        writeLongUnchecked(value);
+    }
+
+    public void writeDouble(double value) throws SQLException {
+        ensureCapacity(12);
+        writeIntUnchecked(8);
+        writeLongUnchecked(Double.doubleToLongBits(value));
+    }
+
+    /** Writes the trailer and completes the COPY, returns the number of rows written. */
+    public long finish() throws SQLException {
+        ensureCapacity(2);
+        writeShort(-1);
+        flush();
+        return copyIn.endCopy();
+    }
+
+    public void cancel() {
+        try {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void ensureCapacity(int bytes) throws SQLException {
+        if (buffer.length - position < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws SQLException {
+        if (position > 0) {
+            copyIn.writeToCopy(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private void writeShort(int value) {
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeIntUnchecked(int value) {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeLongUnchecked(long value) {
+        writeIntUnchecked((int) (value >>> 32));
+        writeIntUnchecked((int) value);
+    }
+}
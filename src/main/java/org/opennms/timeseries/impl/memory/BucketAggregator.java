@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Aggregates samples, received in ascending time order, into buckets of step milliseconds aligned to the epoch.
+ * Emits one sample per non empty bucket, stamped with the start of the bucket, like the database does for
+ * aggregated reads.
+ */
+public class BucketAggregator implements SampleConsumer {
+
+    private final Metric metric;
+    private final long step;
+    private final Aggregation aggregation;
+    private final List<Sample> results = new ArrayList<>();
+
+    private long bucket = Long.MIN_VALUE;
+    private int count = 0;
+    private double sum;
+    private double min;
+    private double max;
+
+    public BucketAggregator(Metric metric, long step, Aggregation aggregation) {
+        this.metric = Objects.requireNonNull(metric);
+        this.aggregation = Objects.requireNonNull(aggregation);
+        if (step < 1) {
+            throw new IllegalArgumentException("step must be positive but was " + step);
+        }
+        if (aggregation == Aggregation.NONE) {
+            throw new IllegalArgumentException(String.format("Aggregation %s is not supported.", aggregation));
+        }
+        this.step = step;
+    }
+
+    @Override
+    public void accept(long time, double value) {
+        long sampleBucket = Math.floorDiv(time, step) * step;
+        if (sampleBucket != bucket) {
+            flush();
+            bucket = sampleBucket;
+            sum = 0;
+            min = Double.POSITIVE_INFINITY;
+            max = Double.NEGATIVE_INFINITY;
+        }
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /** Returns the aggregated samples, including the last bucket. */
+    public List<Sample> getResults() {
+        flush();
+        return results;
+    }
+
+    private void flush() {
+        if (count == 0) {
+            return;
+        }
+        double value;
+        switch (aggregation) {
+            case AVERAGE:
+                value = sum / count;
+                break;
+            case MIN:
+                value = min;
+                break;
+            default:
+                value = max;
+        }
+        results.add(ImmutableSample.builder()
+                .metric(metric)
+                .time(Instant.ofEpochMilli(bucket))
+                .value(value)
+                .build());
+        count = 0;
+    }
+}
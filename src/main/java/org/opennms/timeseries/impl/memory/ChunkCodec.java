@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import java.util.Arrays;
+
+/**
+ * Compresses the samples of a {@link SampleChunk} in the style of Facebook's Gorilla:
+ * timestamps are stored as delta of deltas, values as the XOR with their predecessor.
+ * Samples polled at a regular interval with slowly changing values cost one to two bytes each.
+ * <p>
+ * Layout: sample count (32 bits), first time (64 bits), first value (64 bits), followed by every further sample as
+ * <ul>
+ *     <li>delta of delta of the time: '0' if it is 0, otherwise '10', '110', '1110' followed by a 7, 12 or 20 bit
+ *     value, '11110' followed by 32 bits or '11111' followed by 64 bits</li>
+ *     <li>value XOR previous value: '0' if it is 0, '10' followed by the meaningful bits if they fit into the window
+ *     of the previous value, otherwise '11', 5 bits of leading zeros, 6 bits of length - 1 and the meaningful bits</li>
+ * </ul>
+ */
+public final class ChunkCodec {
+
+    private static final int[] DELTA_BITS = {7, 12, 20, 32};
+
+    private ChunkCodec() {
+    }
+
+    public static byte[] encode(SampleChunk chunk) {
+        BitWriter writer = new BitWriter(16 + chunk.size() * 2);
+        writer.writeBits(chunk.size(), 32);
+        if (chunk.size() == 0) {
+            return writer.toByteArray();
+        }
+        long previousTime = chunk.getTime(0);
+        long previousValue = Double.doubleToRawLongBits(chunk.getValue(0));
+        writer.writeBits(previousTime, 64);
+        writer.writeBits(previousValue, 64);
+
+        long previousDelta = 0;
+        int previousLeading = -1;
+        int previousTrailing = 0;
+        for (int i = 1; i < chunk.size(); i++) {
+            long time = chunk.getTime(i);
+            long delta = time - previousTime;
+            writeDeltaOfDelta(writer, delta - previousDelta);
+            previousDelta = delta;
+            previousTime = time;
+
+            long value = Double.doubleToRawLongBits(chunk.getValue(i));
+            long xor = value ^ previousValue;
+            previousValue = value;
+            if (xor == 0) {
+                writer.writeBit(false);
+                continue;
+            }
+            int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trailing = Long.numberOfTrailingZeros(xor);
+            writer.writeBit(true);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                writer.writeBit(false);
+                writer.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            } else {
+                int significant = 64 - leading - trailing;
+                writer.writeBit(true);
+                writer.writeBits(leading, 5);
+                writer.writeBits(significant - 1, 6);
+                writer.writeBits(xor >>> trailing, significant);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    /** Hands all samples within (start, end), both exclusive, to the consumer. */
+    public static void decode(byte[] data, long start, long end, SampleConsumer consumer) {
+        BitReader reader = new BitReader(data);
+        int count = (int) reader.readBits(32);
+        if (count == 0) {
+            return;
+        }
+        long time = reader.readBits(64);
+        long value = reader.readBits(64);
+        if (time >= end) {
+            return;
+        }
+        if (time > start) {
+            consumer.accept(time, Double.longBitsToDouble(value));
+        }
+
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            delta += readDeltaOfDelta(reader);
+            time += delta;
+            if (reader.readBit()) {
+                if (reader.readBit()) {
+                    leading = (int) reader.readBits(5);
+                    int significant = (int) reader.readBits(6) + 1;
+                    trailing = 64 - leading - significant;
+                }
+                value ^= reader.readBits(64 - leading - trailing) << trailing;
+            }
+            if (time >= end) {
+                return; // samples are ordered by time
+            }
+            if (time > start) {
+                consumer.accept(time, Double.longBitsToDouble(value));
+            }
+        }
+    }
+
+    private static void writeDeltaOfDelta(BitWriter writer, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writer.writeBit(false);
+            return;
+        }
+        for (int bits : DELTA_BITS) {
+            long bias = (1L << (bits - 1)) - 1;
+            writer.writeBit(true);
+            if (deltaOfDelta >= -bias && deltaOfDelta <= bias + 1) {
+                writer.writeBit(false);
+                writer.writeBits(deltaOfDelta + bias, bits);
+                return;
+            }
+        }
+        writer.writeBit(true);
+        writer.writeBits(deltaOfDelta, 64);
+    }
+
+    private static long readDeltaOfDelta(BitReader reader) {
+        if (!reader.readBit()) {
+            return 0;
+        }
+        for (int bits : DELTA_BITS) {
+            if (!reader.readBit()) {
+                return reader.readBits(bits) - ((1L << (bits - 1)) - 1);
+            }
+        }
+        return reader.readBits(64);
+    }
+
+    private static class BitWriter {
+        private byte[] buffer;
+        private long position = 0; // in bits
+
+        private BitWriter(int initialBytes) {
+            this.buffer = new byte[Math.max(16, initialBytes)];
+        }
+
+        private void writeBit(boolean bit) {
+            writeBits(bit ? 1 : 0, 1);
+        }
+
+        /** Writes the lowest bits of the value, most significant bit first. */
+        private void writeBits(long value, int bits) {
+            int requiredBytes = (int) ((position + bits + 7) >>> 3);
+            if (requiredBytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(requiredBytes, buffer.length * 2));
+            }
+            while (bits > 0) {
+                int free = 8 - (int) (position & 7);
+                int n = Math.min(free, bits);
+                int chunk = (int) (value >>> (bits - n)) & ((1 << n) - 1);
+                buffer[(int) (position >>> 3)] |= (byte) (chunk << (free - n));
+                position += n;
+                bits -= n;
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (int) ((position + 7) >>> 3));
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] data;
+        private long position = 0; // in bits
+
+        private BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        private boolean readBit() {
+            return readBits(1) != 0;
+        }
+
+        private long readBits(int bits) {
+            long value = 0;
+            while (bits > 0) {
+                int available = 8 - (int) (position & 7);
+                int n = Math.min(available, bits);
+                int chunk = ((data[(int) (position >>> 3)] & 0xFF) >>> (available - n)) & ((1 << n) - 1);
+                value = (value << n) | chunk;
+                position += n;
+                bits -= n;
+            }
+            return value;
+        }
+    }
+}
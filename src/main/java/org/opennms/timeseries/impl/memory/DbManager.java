@@ -1,195 +1,727 @@
 package org.opennms.timeseries.impl.memory;
 
-import com.mchange.v2.c3p0.DataSources;
+import com.mchange.v2.c3p0.C3P0ProxyConnection;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import com.mchange.v2.c3p0.PooledDataSource;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
 import org.opennms.integration.api.v1.timeseries.Metric;
 import org.opennms.integration.api.v1.timeseries.Sample;
 import org.opennms.integration.api.v1.timeseries.Tag;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
 import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTag;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 
-import javax.sql.DataSource;
+import java.beans.PropertyVetoException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.sql.*;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 
 public class DbManager {
 
+    /** The connection pool of one DbManager, created with the settings at the time of the first checkout. */
     private static class DbConnectionPoolingManager {
 
-        private static boolean isConnectionPoolInitialized = false;
-        private static DataSource dataSource = null;
-        private static String databaseName = "";
+        private String jdbcUrl = DEFAULT_JDBC_URL;
+        private String user = DEFAULT_JDBC_USER;
+        private String password = "";
+        private int minSize = DEFAULT_POOL_MIN_SIZE;
+        private int maxSize = DEFAULT_POOL_MAX_SIZE;
+        private int acquireTimeoutMillis = DEFAULT_POOL_ACQUIRE_TIMEOUT_MILLIS;
+        private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+        /** Replicas fail a checkout after one attempt to connect, reads go elsewhere meanwhile. */
+        private boolean failFast = false;
 
-        private static void initializeConnectionPool() {
-            if (isConnectionPoolInitialized) {
-                return;
+        private volatile ComboPooledDataSource dataSource = null;
+
+        /** A pool for another database or purpose with the credentials and statement cache of the given one. */
+        private static DbConnectionPoolingManager derivedFrom(DbConnectionPoolingManager pool, String jdbcUrl,
+                                                              int minSize, int maxSize) {
+            DbConnectionPoolingManager derived = new DbConnectionPoolingManager();
+            derived.jdbcUrl = jdbcUrl;
+            derived.user = pool.user;
+            derived.password = pool.password;
+            derived.minSize = minSize;
+            derived.maxSize = maxSize;
+            derived.acquireTimeoutMillis = pool.acquireTimeoutMillis;
+            derived.statementCacheSize = pool.statementCacheSize;
+            return derived;
+        }
+
+        private synchronized ComboPooledDataSource initializeConnectionPool() throws SQLException {
+            if (dataSource != null) {
+                return dataSource;
             }
+            ComboPooledDataSource pooled = new ComboPooledDataSource();
             try {
-                DataSource unpooled = DataSources.unpooledDataSource("jdbc:postgresql://localhost:5432/" + databaseName,
-                        "postgres",
-                        "");
-                dataSource = DataSources.pooledDataSource(unpooled);
-                isConnectionPoolInitialized = true;
-            } catch (SQLException e) {
-                e.printStackTrace();
+                pooled.setDriverClass("org.postgresql.Driver");
+            } catch (PropertyVetoException e) {
+                throw new SQLException("Can not load the PostgreSQL driver", e);
             }
+            pooled.setJdbcUrl(withBatchRewriting(jdbcUrl));
+            pooled.setUser(user);
+            pooled.setPassword(password);
+            pooled.setMinPoolSize(minSize);
+            pooled.setInitialPoolSize(minSize);
+            pooled.setMaxPoolSize(maxSize);
+            pooled.setCheckoutTimeout(acquireTimeoutMillis);
+            // the statements are closed after every use, the cache hands the same ones out again on the next use of
+            // the connection, which lets the driver switch them to server side prepared statements
+            pooled.setMaxStatementsPerConnection(statementCacheSize);
+            if (failFast) {
+                pooled.setAcquireRetryAttempts(1);
+            }
+            dataSource = pooled;
+            return pooled;
         }
 
-        public static Connection getConnection() throws SQLException {
-            if (!isConnectionPoolInitialized) {
-                initializeConnectionPool();
+        private Connection getConnection() throws SQLException {
+            ComboPooledDataSource current = dataSource;
+            if (current == null) {
+                current = initializeConnectionPool();
             }
-            return dataSource.getConnection();
+            return current.getConnection();
         }
 
-        public static void releaseConnection(Connection connection) throws SQLException {
+        private void releaseConnection(Connection connection) throws SQLException {
             if (connection != null) {
                 connection.close();
             }
         }
 
-        public static void useSpecificConnection(String databaseName) {
-            DbConnectionPoolingManager.databaseName = databaseName;
-            initializeConnectionPool();
+        private synchronized void close() {
+            if (dataSource != null) {
+                dataSource.close();
+                dataSource = null;
+            }
+        }
+
+        /** Batched INSERTs are only rewritten into multi-row INSERTs by the driver if the URL asks for it. */
+        private static String withBatchRewriting(String url) {
+            if (url.contains("reWriteBatchedInserts=")) {
+                return url;
+            }
+            return url + (url.indexOf('?') >= 0 ? "&" : "?") + "reWriteBatchedInserts=true";
         }
     }
 
+    public static final String DEFAULT_JDBC_URL = "jdbc:postgresql://localhost:5432/";
+    public static final String DEFAULT_JDBC_USER = "postgres";
+    public static final int DEFAULT_POOL_MIN_SIZE = 3;
+    public static final int DEFAULT_POOL_MAX_SIZE = 15;
+    public static final int DEFAULT_POOL_ACQUIRE_TIMEOUT_MILLIS = 30_000;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+    public static final long DEFAULT_REPLICA_MAX_LAG_MILLIS = 10_000;
+
+    /** Reads checked out with this commit time accept every replica within the maximum lag. */
+    public static final long ANY_COMMIT = Long.MIN_VALUE;
+    /** Reads checked out with this commit time always go to the primary. */
+    public static final long LATEST_COMMIT = Long.MAX_VALUE;
+
+    /** How long the measured lag of a replica is trusted before it is measured again. */
+    static final long REPLICA_CHECK_INTERVAL_MILLIS = 1000;
+    /** How long a replica which could not be reached is skipped. */
+    static final long REPLICA_RETRY_MILLIS = 30_000;
+
+    /** A streaming replica of the primary with what is known about its replication lag. */
+    private static class Replica {
+        private final DbConnectionPoolingManager pool;
+        private volatile long checkedAt = Long.MIN_VALUE;
+        private volatile long lagMillis = 0;
+        private volatile long downUntil = Long.MIN_VALUE;
+
+        private Replica(DbConnectionPoolingManager pool) {
+            this.pool = pool;
+        }
+
+        /** Every transaction committed on the primary before this time was replayed when the lag was measured. */
+        private long getReplayedUpTo() {
+            return checkedAt == Long.MIN_VALUE ? Long.MIN_VALUE : checkedAt - lagMillis;
+        }
+
+        private boolean qualifies(long committedAt, long maxLagMillis) {
+            return lagMillis <= maxLagMillis && (committedAt == ANY_COMMIT || getReplayedUpTo() >= committedAt);
+        }
+    }
+
+    /** The pools for reads, created on the first read with the settings at that time. */
+    private static class ReadPools {
+        /** Pool for reads on the primary, null if they share the pool of the writes. */
+        private final DbConnectionPoolingManager primary;
+        private final List<Replica> replicas;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private ReadPools(DbConnectionPoolingManager primary, List<Replica> replicas) {
+            this.primary = primary;
+            this.replicas = replicas;
+        }
+
+        private void close() {
+            if (primary != null) {
+                primary.close();
+            }
+            for (Replica replica : replicas) {
+                replica.pool.close();
+            }
+        }
+    }
+
+    private final DbConnectionPoolingManager pool = new DbConnectionPoolingManager();
+    private int readPoolMinSize = 0;
+    private int readPoolMaxSize = 0;
+    private List<String> replicaJdbcUrls = Collections.emptyList();
+    private long replicaMaxLagMillis = DEFAULT_REPLICA_MAX_LAG_MILLIS;
+    private volatile ReadPools readPools = null;
+    private final MetricRegistry metrics;
+
     private boolean isDbInitialized = false;
+    private volatile boolean legacyTablesPresent = false;
 
+    /** Create {@value #TABLENAME_METRIC_SAMPLES} partitioned by time, see {@link #setPartitioningEnabled(boolean)}. */
+    private boolean partitioningEnabled = false;
+    private volatile boolean samplesPartitioned = false;
+
+    /** Separators of the tags in the TEXT columns of older versions, see {@link #getLegacyTagMigrationQuery()}. */
     private static final String SEPARATOR_TAG = ",";
     private static final String SEPARATOR_TAGS = ";";
 
+    /** Values of METRIC_TAGS.kind, external tags are not searchable. */
+    private static final String TAG_KIND_INTRINSIC = "i";
+    private static final String TAG_KIND_META = "m";
+    private static final String TAG_KIND_EXTERNAL = "e";
+
     private static final String TABLENAME_METRICS = "METRICS";
+    private static final String TABLENAME_METRIC_TAGS = "METRIC_TAGS";
     private static final String TABLENAME_SAMPLES = "SAMPLES";
     private static final String TABLENAME_SERIES = "SERIES";
+    private static final String TABLENAME_METRIC_SAMPLES = "METRIC_SAMPLES";
+    private static final String TABLENAME_METRIC_CHUNKS = "METRIC_CHUNKS";
+    private static final String TABLENAME_METRIC_SAMPLES_DEFAULT = "METRIC_SAMPLES_DEFAULT";
+    private static final String TABLENAME_METRIC_ROLLUPS = "METRIC_ROLLUPS";
+    private static final String TABLENAME_ROLLUP_WATERMARKS = "ROLLUP_WATERMARKS";
+    private static final String TABLENAME_METRIC_LATEST = "METRIC_LATEST";
+    private static final String TABLENAME_ROLLUP_LATE = "ROLLUP_LATE";
+
+    private static final String INDEXNAME_METRICS_KEY = "metrics_key_idx";
+    private static final String INDEXNAME_METRIC_TAGS_SEARCH = "metric_tags_search_idx";
+    private static final String INDEXNAME_METRIC_SAMPLES = "metric_samples_idx";
+    private static final String INDEXNAME_METRIC_CHUNKS = "metric_chunks_idx";
+    private static final String INDEXNAME_METRIC_SAMPLES_DEFAULT = "metric_samples_default_idx";
+    private static final String INDEXNAME_METRIC_ROLLUPS_BUCKET = "metric_rollups_bucket_idx";
 
     private static final String DATABASE_NAME = "inmemoryStorage";
 
+    /** Number of statements sent to the database in one JDBC batch. */
+    static final int BATCH_SIZE = 1000;
+
+    /** Number of metrics deleted per transaction. */
+    static final int DELETE_BATCH_SIZE = 100;
+
+    /** Number of rows fetched per round trip when streaming large results. */
+    static final int FETCH_SIZE = 10_000;
+
+    public DbManager() {
+        this(new MetricRegistry());
+    }
+
+    /** Every query is timed in the registry as db.&lt;method&gt;, the pool is exposed as pool.* gauges. */
+    public DbManager(MetricRegistry metrics) {
+        this.metrics = Objects.requireNonNull(metrics);
+        registerPoolGauges("pool.", () -> this.pool);
+        registerPoolGauges("readPool.", () -> {
+            ReadPools current = this.readPools;
+            return current == null ? null : current.primary;
+        });
+    }
+
+    /** JDBC URL of the database, reWriteBatchedInserts=true is added unless the URL sets it. */
+    public void setJdbcUrl(String jdbcUrl) {
+        this.pool.jdbcUrl = Objects.requireNonNull(jdbcUrl);
+    }
+
+    public void setJdbcUser(String user) {
+        this.pool.user = Objects.requireNonNull(user);
+    }
+
+    public void setJdbcPassword(String password) {
+        this.pool.password = password == null ? "" : password;
+    }
+
+    public void setPoolMinSize(int minSize) {
+        this.pool.minSize = minSize;
+    }
+
+    public void setPoolMaxSize(int maxSize) {
+        this.pool.maxSize = maxSize;
+    }
+
+    /** How long getConnection() waits for a free connection before it fails, 0 waits forever. */
+    public void setPoolAcquireTimeoutMillis(int acquireTimeoutMillis) {
+        this.pool.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    /** Number of prepared statements kept open per connection, 0 disables the cache. */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.pool.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Size of the pool for reads on the primary, which keeps query bursts from taking the connections of the writers.
+     * With a maximum of 0 reads share the pool of the writes. Replicas get pools of this size as well, of the size of
+     * the write pool if it is 0.
+     */
+    public void setReadPoolMinSize(int readPoolMinSize) {
+        this.readPoolMinSize = readPoolMinSize;
+    }
+
+    public void setReadPoolMaxSize(int readPoolMaxSize) {
+        this.readPoolMaxSize = readPoolMaxSize;
+    }
+
+    /**
+     * JDBC URLs of streaming replicas of the database (PostgreSQL 10 or later) to send reads to, in turns. Empty to
+     * read from the primary only. Takes effect on the first read after close().
+     */
+    public void setReplicaJdbcUrls(List<String> replicaJdbcUrls) {
+        this.replicaJdbcUrls = new ArrayList<>(replicaJdbcUrls);
+    }
+
+    /** Replicas lagging behind the primary by more than this don't get reads until they caught up. */
+    public void setReplicaMaxLagMillis(long replicaMaxLagMillis) {
+        this.replicaMaxLagMillis = replicaMaxLagMillis;
+    }
+
+    /**
+     * Create {@value #TABLENAME_METRIC_SAMPLES} as a table partitioned by time, an existing table is turned into its
+     * default partition. Requires PostgreSQL 11 or later. Takes effect on initialize().
+     */
+    public void setPartitioningEnabled(boolean partitioningEnabled) {
+        this.partitioningEnabled = partitioningEnabled;
+    }
+
+    /** Applies the connection and table settings of this manager to the other one, e.g. for another shard. */
+    public void copySettingsTo(DbManager other) {
+        other.pool.jdbcUrl = this.pool.jdbcUrl;
+        other.pool.user = this.pool.user;
+        other.pool.password = this.pool.password;
+        other.pool.minSize = this.pool.minSize;
+        other.pool.maxSize = this.pool.maxSize;
+        other.pool.acquireTimeoutMillis = this.pool.acquireTimeoutMillis;
+        other.pool.statementCacheSize = this.pool.statementCacheSize;
+        other.readPoolMinSize = this.readPoolMinSize;
+        other.readPoolMaxSize = this.readPoolMaxSize;
+        other.replicaMaxLagMillis = this.replicaMaxLagMillis;
+        other.partitioningEnabled = this.partitioningEnabled;
+    }
+
+    /** Closes the pools, the next getConnection() creates new ones with the current settings. */
+    public void close() {
+        this.pool.close();
+        synchronized (this) {
+            if (this.readPools != null) {
+                this.readPools.close();
+                this.readPools = null;
+            }
+        }
+    }
+
+    /** Checks a connection out of the pool, the time spent waiting for it is recorded as db.getConnection. */
     public Connection getConnection() throws SQLException {
-        return DbConnectionPoolingManager.getConnection();
+        try (Timer.Context ignored = time("getConnection")) {
+            return this.pool.getConnection();
+        }
+    }
+
+    /**
+     * Checks a connection out for reads, from a replica which replayed every transaction committed on the primary up
+     * to committedAt, or from the read pool of the primary if no replica did. {@link #ANY_COMMIT} accepts every replica
+     * lagging less than the maximum lag, {@link #LATEST_COMMIT} always reads from the primary. The replicas take turns,
+     * their lag is measured at most every {@value #REPLICA_CHECK_INTERVAL_MILLIS} ms on a connection checked out for a
+     * read. Reads which went to the primary because no replica qualified are counted as replicas.fallbacks.
+     * The waiting time is recorded as db.getReadConnection.
+     */
+    public Connection getReadConnection(long committedAt) throws SQLException {
+        try (Timer.Context ignored = time("getReadConnection")) {
+            ReadPools current = getReadPools();
+            if (committedAt != LATEST_COMMIT && !current.replicas.isEmpty()) {
+                Connection connection = getReplicaConnection(current, committedAt);
+                if (connection != null) {
+                    return connection;
+                }
+                metrics.meter("replicas.fallbacks").mark();
+            }
+            return current.primary != null ? current.primary.getConnection() : this.pool.getConnection();
+        }
     }
 
     public void releaseConnection(Connection conn) throws SQLException {
-        DbConnectionPoolingManager.releaseConnection(conn);
+        this.pool.releaseConnection(conn);
     }
 
-    public List<Sample> findSamplesForMetric(Connection conn, Metric metric, int idMetric) {
-        Objects.requireNonNull(conn);
-        List<Sample> results = new ArrayList<>();
+    private Connection getReplicaConnection(ReadPools current, long committedAt) {
+        int first = Math.floorMod(current.next.getAndIncrement(), current.replicas.size());
+        for (int i = 0; i < current.replicas.size(); i++) {
+            Replica replica = current.replicas.get((first + i) % current.replicas.size());
+            long now = System.currentTimeMillis();
+            boolean checkDue = now - replica.checkedAt >= REPLICA_CHECK_INTERVAL_MILLIS;
+            if (now < replica.downUntil || (!checkDue && !replica.qualifies(committedAt, this.replicaMaxLagMillis))) {
+                continue;
+            }
+            Connection connection = null;
+            try {
+                connection = replica.pool.getConnection();
+                if (checkDue) {
+                    replica.lagMillis = measureLag(connection);
+                    replica.checkedAt = now;
+                }
+                if (replica.qualifies(committedAt, this.replicaMaxLagMillis)) {
+                    return connection;
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                metrics.counter("replicas.errors").inc();
+                replica.downUntil = now + REPLICA_RETRY_MILLIS;
+            }
+            try {
+                this.pool.releaseConnection(connection);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
 
-        try {
-            PreparedStatement statement = conn.prepareStatement(getSampleSearchByMetricQuery());
-            statement.setInt(1, idMetric);
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                int idSample = resultSet.getInt(1);
-                results.add(findSample(conn, idSample, metric));
+    /** Replication lag of the replica, 0 if it has replayed everything it received or is no replica at all. */
+    private long measureLag(Connection conn) throws SQLException {
+        try (Timer.Context ignored = time("measureLag");
+             Statement statement = conn.createStatement();
+             ResultSet resultSet = statement.executeQuery(getReplicaLagQuery())) {
+            return resultSet.next() ? Math.max(0, resultSet.getLong(1)) : 0;
+        }
+    }
+
+    private ReadPools getReadPools() {
+        ReadPools current = this.readPools;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (this.readPools == null) {
+                int minSize = this.readPoolMaxSize > 0 ? this.readPoolMinSize : this.pool.minSize;
+                int maxSize = this.readPoolMaxSize > 0 ? this.readPoolMaxSize : this.pool.maxSize;
+                List<Replica> replicas = new ArrayList<>();
+                for (String url : this.replicaJdbcUrls) {
+                    DbConnectionPoolingManager replicaPool = DbConnectionPoolingManager.derivedFrom(this.pool, url, minSize, maxSize);
+                    replicaPool.failFast = true;
+                    Replica replica = new Replica(replicaPool);
+                    String prefix = "replica" + replicas.size() + ".";
+                    registerPoolGauges(prefix, () -> replicaPool);
+                    metrics.remove(prefix + "lagMillis");
+                    metrics.register(prefix + "lagMillis", (Gauge<Long>) () -> replica.lagMillis);
+                    replicas.add(replica);
+                }
+                this.readPools = new ReadPools(this.readPoolMaxSize > 0
+                        ? DbConnectionPoolingManager.derivedFrom(this.pool, this.pool.jdbcUrl, minSize, maxSize)
+                        : null, replicas);
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            results.clear();
+            return this.readPools;
         }
-        return results;
     }
 
-    public Sample findSample(Connection conn, int idSample, Metric metric) {
-        Objects.requireNonNull(conn);
-        Sample result = null;
+    /**
+     * Aggregates the samples of the metric within (start, end) into buckets of step milliseconds, aligned to the
+     * epoch, and returns one sample per non empty bucket, stamped with the start of the bucket.
+     */
+    public List<Sample> findAggregatedSamplesForMetric(Connection conn, Metric metric, int idMetric, Instant start,
+                                                       Instant end, long step, Aggregation aggregation) {
+        try (Timer.Context ignored = time("findAggregatedSamplesForMetric")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(start);
+            Objects.requireNonNull(end);
+            if (step < 1) {
+                throw new IllegalArgumentException("step must be positive but was " + step);
+            }
+            List<Sample> results = new ArrayList<>();
 
-        try {
-            PreparedStatement statementSample = conn.prepareStatement(getSampleSearchQuery());
-            statementSample.setInt(1, idSample);
-            ResultSet resultSet = statementSample.executeQuery();
-            if (resultSet.next()) {
-                ImmutableSample.ImmutableSampleBuilder builder = ImmutableSample.builder();
-                builder.metric(metric);
-                builder.time(resultSet.getTimestamp(2).toInstant());
-                builder.value(resultSet.getDouble(3));
-                result = builder.build();
+            try (PreparedStatement statement = conn.prepareStatement(getAggregatedSampleSearchByMetricQuery(aggregation))) {
+                statement.setLong(1, step);
+                statement.setLong(2, step);
+                statement.setInt(3, idMetric);
+                statement.setLong(4, start.toEpochMilli());
+                statement.setLong(5, end.toEpochMilli());
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        results.add(toSample(metric, resultSet.getLong(1), resultSet.getDouble(2)));
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                results.clear();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return results;
         }
-        return result;
     }
 
-    public int addNewTimeSerie(Connection conn, int idMetric, int idSample) {
-        Objects.requireNonNull(conn);
-        int id = -1;
+    /**
+     * Hands the samples of the metric within (start, end), both exclusive, to the consumer in time order, see
+     * {@link SampleMerger}. Rows and chunks are read with one statement, i.e. from the same snapshot, through a server
+     * side cursor: only {@value #FETCH_SIZE} rows are held in memory at a time, however long the series is. The
+     * connection is busy until the consumer received the last sample.
+     */
+    public void streamSamples(Connection conn, int idMetric, Instant start, Instant end, SampleConsumer consumer) throws SQLException {
+        try (Timer.Context ignored = time("streamSamples")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(start);
+            Objects.requireNonNull(end);
+            Objects.requireNonNull(consumer);
 
-        try {
-            PreparedStatement statementTimeSeries = conn.prepareStatement(getTimeSerieInsertQuery(), Statement.RETURN_GENERATED_KEYS);
-            statementTimeSeries.setInt(1, idMetric);
-            statementTimeSeries.setInt(2, idSample);
-            int affectedRows = statementTimeSeries.executeUpdate();
-            if (affectedRows > 0) {
-                ResultSet rs = statementTimeSeries.getGeneratedKeys();
-                if (rs.next()) {
-                    id = rs.getInt(1);
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false); // the cursor only lives inside of a transaction
+            try (PreparedStatement statement = conn.prepareStatement(getSampleAndChunkSearchByMetricQuery())) {
+                statement.setFetchSize(FETCH_SIZE);
+                statement.setInt(1, idMetric);
+                statement.setLong(2, start.toEpochMilli());
+                statement.setLong(3, end.toEpochMilli());
+                statement.setInt(4, idMetric);
+                statement.setLong(5, start.toEpochMilli());
+                statement.setLong(6, end.toEpochMilli());
+                mergeSamples(statement, new long[]{start.toEpochMilli()}, new long[]{end.toEpochMilli()},
+                        new SampleConsumer[]{consumer});
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                rollback(conn, e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #streamSamples(Connection, int, Instant, Instant, SampleConsumer)} for many metrics at once: the
+     * samples of every metric within its (start, end) are handed to the consumer of the same index. All ranges are
+     * read with one statement, i.e. in one round trip.
+     */
+    public void streamSamples(Connection conn, int[] idMetrics, long[] starts, long[] ends, SampleConsumer[] consumers) throws SQLException {
+        try (Timer.Context ignored = time("streamSamplesBatch")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(consumers);
+            if (idMetrics.length == 0) {
+                return;
+            }
+
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false); // the cursor only lives inside of a transaction
+            try (PreparedStatement statement = conn.prepareStatement(getSampleAndChunkSearchByMetricsQuery())) {
+                statement.setFetchSize(FETCH_SIZE);
+                setRanges(statement, idMetrics, starts, ends);
+                mergeSamples(statement, starts, ends, consumers);
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                rollback(conn, e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Merges the rows and chunks of the query into time order, per range. The query returns range, sort time, time,
+     * chunk and value ordered by range and sort time, see {@link SampleMerger}.
+     */
+    private void mergeSamples(PreparedStatement statement, long[] starts, long[] ends, SampleConsumer[] consumers) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            int request = -1;
+            SampleMerger merger = null;
+            while (resultSet.next()) {
+                if (resultSet.getInt(1) != request) {
+                    if (merger != null) {
+                        merger.finish();
+                    }
+                    request = resultSet.getInt(1);
+                    merger = new SampleMerger(consumers[request]);
+                }
+                byte[] chunk = resultSet.getBytes(4);
+                if (chunk == null) {
+                    merger.addRow(resultSet.getLong(3), resultSet.getDouble(5));
+                } else {
+                    merger.addChunk(resultSet.getLong(2), chunk, starts[request], ends[request]);
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            if (merger != null) {
+                merger.finish();
+            }
         }
-        return id;
     }
 
-    public int addNewSample(Connection conn, Sample sample) {
-        Objects.requireNonNull(conn);
-        Objects.requireNonNull(sample);
-        int idSample = -1;
+    /**
+     * Aggregates the samples of every metric within its (start, end) into buckets of its step, like
+     * {@link #findAggregatedSamplesForMetric(Connection, Metric, int, Instant, Instant, long, Aggregation)}, with one
+     * statement for all metrics. The buckets are handed to the consumer of the same index in time order.
+     */
+    public void streamAggregatedSamples(Connection conn, int[] idMetrics, long[] starts, long[] ends, long[] steps,
+                                        Aggregation aggregation, SampleConsumer[] consumers) throws SQLException {
+        try (Timer.Context ignored = time("streamAggregatedSamples")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(consumers);
+            if (idMetrics.length == 0) {
+                return;
+            }
+            Long[] stepValues = new Long[steps.length];
+            for (int i = 0; i < steps.length; i++) {
+                if (steps[i] < 1) {
+                    throw new IllegalArgumentException("step must be positive but was " + steps[i]);
+                }
+                stepValues[i] = steps[i];
+            }
 
-        try {
-            PreparedStatement statementSample = conn.prepareStatement(getSampleInsertQuery(), Statement.RETURN_GENERATED_KEYS);
-            statementSample.setTimestamp(1, Timestamp.from(sample.getTime()));
-            statementSample.setDouble(2, sample.getValue());
-            int affectedRowsSample = statementSample.executeUpdate();
-            if (affectedRowsSample > 0) {
-                ResultSet rs = statementSample.getGeneratedKeys();
-                if (rs.next()) {
-                    idSample = rs.getInt(1);
+            try (PreparedStatement statement = conn.prepareStatement(getAggregatedSampleSearchByMetricsQuery(aggregation))) {
+                setRanges(statement, idMetrics, starts, ends);
+                statement.setObject(5, stepValues);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        consumers[resultSet.getInt(1)].accept(resultSet.getLong(2), resultSet.getDouble(3));
+                    }
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
-        return idSample;
     }
 
-    public int addNewMetric(Connection conn, Metric metric) {
-        Objects.requireNonNull(conn);
-        Objects.requireNonNull(metric);
-        int idMetric = -1;
+    /** Sets the first four parameters of a query over {@link #getRangesRelation(boolean)}. */
+    private void setRanges(PreparedStatement statement, int[] idMetrics, long[] starts, long[] ends) throws SQLException {
+        Integer[] requests = new Integer[idMetrics.length];
+        Integer[] ids = new Integer[idMetrics.length];
+        Long[] startValues = new Long[idMetrics.length];
+        Long[] endValues = new Long[idMetrics.length];
+        for (int i = 0; i < idMetrics.length; i++) {
+            requests[i] = i;
+            ids[i] = idMetrics[i];
+            startValues[i] = starts[i];
+            endValues[i] = ends[i];
+        }
+        statement.setObject(1, requests);
+        statement.setObject(2, ids);
+        statement.setObject(3, startValues);
+        statement.setObject(4, endValues);
+    }
 
-        try {
-            PreparedStatement statementMetric = conn.prepareStatement(getMetricInsertQuery(), Statement.RETURN_GENERATED_KEYS);
-            statementMetric.setString(1, metric.getKey());
-            statementMetric.setString(2, convertSetToString(metric.getIntrinsicTags()));
-            statementMetric.setString(3, convertSetToString(metric.getMetaTags()));
-            statementMetric.setString(4, convertSetToString(metric.getExternalTags()));
-            int affectedRowsMetric = statementMetric.executeUpdate();
-            if (affectedRowsMetric > 0) {
-                ResultSet rs = statementMetric.getGeneratedKeys();
-                if (rs.next()) {
-                    idMetric = rs.getInt(1);
+    /**
+     * Returns the time of the latest sample of each metric, stored as row or in a chunk. Metrics without samples are
+     * absent from the returned map.
+     */
+    public Map<Integer, Long> findLatestSampleTimes(Connection conn, Collection<Integer> idMetrics) throws SQLException {
+        try (Timer.Context ignored = time("findLatestSampleTimes")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(idMetrics);
+            Map<Integer, Long> result = new HashMap<>();
+            if (idMetrics.isEmpty()) {
+                return result;
+            }
+
+            try (PreparedStatement statement = conn.prepareStatement(getLatestSampleTimeSearchQuery())) {
+                statement.setObject(1, idMetrics.toArray(new Integer[0]));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        long latest = resultSet.getLong(2);
+                        if (!resultSet.wasNull()) {
+                            result.put(resultSet.getInt(1), latest);
+                        }
+                    }
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return result;
+        }
+    }
+
+    /**
+     * Writes the chunks compressed into {@value #TABLENAME_METRIC_CHUNKS} and deletes the rows of their samples.
+     * The caller is responsible for the transaction, both have to happen in the same one.
+     */
+    public void addChunks(Connection conn, List<OpenChunks.SealedChunk> chunks) throws SQLException {
+        try (Timer.Context ignored = time("addChunks")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(chunks);
+            if (chunks.isEmpty()) {
+                return;
+            }
+
+            try (PreparedStatement insert = conn.prepareStatement(getChunkInsertQuery());
+                 PreparedStatement delete = conn.prepareStatement(getSampleDeleteByMetricAndTimesQuery())) {
+                int pending = 0;
+                for (OpenChunks.SealedChunk chunk : chunks) {
+                    SampleChunk samples = chunk.getSamples();
+                    Long[] times = new Long[samples.size()];
+                    for (int i = 0; i < times.length; i++) {
+                        times[i] = samples.getTime(i);
+                    }
+                    insert.setInt(1, chunk.getIdMetric());
+                    insert.setLong(2, samples.getFirstTime());
+                    insert.setLong(3, samples.getLastTime());
+                    insert.setInt(4, samples.size());
+                    insert.setBytes(5, ChunkCodec.encode(samples));
+                    insert.addBatch();
+                    delete.setInt(1, chunk.getIdMetric());
+                    delete.setObject(2, times);
+                    delete.addBatch();
+                    if (++pending == BATCH_SIZE) {
+                        insert.executeBatch();
+                        delete.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    insert.executeBatch();
+                    delete.executeBatch();
+                }
+            }
+        }
+    }
+
+    public void addNewSample(Connection conn, int idMetric, Sample sample) throws SQLException {
+        try (Timer.Context ignored = time("addNewSample")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(sample);
+
+            try (PreparedStatement statement = conn.prepareStatement(getSampleInsertWithLatestQuery())) {
+                statement.setInt(1, idMetric);
+                statement.setLong(2, sample.getTime().toEpochMilli());
+                statement.setDouble(3, sample.getValue());
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    /** Inserts the metric unless it exists and returns its id, -1 if it can't be found afterwards. */
+    public int addNewMetric(Connection conn, Metric metric) throws SQLException {
+        try (Timer.Context ignored = time("addNewMetric")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(metric);
+
+            addNewMetrics(conn, Collections.singletonList(metric));
+            return findMetricIds(conn, Collections.singletonList(metric.getKey())).getOrDefault(metric.getKey(), -1);
         }
-        return idMetric;
     }
 
     public int findMetric(Connection conn, Metric metric) {
         Objects.requireNonNull(conn);
         Objects.requireNonNull(metric);
         int result = -1;
-        try {
-            PreparedStatement statement = conn.prepareStatement(getMetricSearchQuery());
+        try (PreparedStatement statement = conn.prepareStatement(getMetricSearchQuery())) {
             statement.setString(1, metric.getKey());
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                result = resultSet.getInt(1);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    result = resultSet.getInt(1);
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -201,16 +733,12 @@ public class DbManager {
         Objects.requireNonNull(conn);
         Objects.requireNonNull(metricKey);
         Metric result = null;
-        try {
-            PreparedStatement statement = conn.prepareStatement(getMetricSearchQueryAll());
+        try (PreparedStatement statement = conn.prepareStatement(getMetricSearchQueryAll())) {
             statement.setString(1, metricKey);
-            ResultSet resultSet = statement.executeQuery();
-            if (resultSet.next()) {
-                ImmutableMetric.MetricBuilder mBuilder = new ImmutableMetric.MetricBuilder();
-                mBuilder.intrinsicTags(convertStringToSet(resultSet.getString(3)));
-                mBuilder.metaTags(convertStringToSet(resultSet.getString(4)));
-                mBuilder.externalTags(convertStringToSet(resultSet.getString(5)));
-                result = mBuilder.build();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    result = toMetric(resultSet);
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -219,99 +747,502 @@ public class DbManager {
     }
 
     public List<Metric> findAllMetrics(Connection conn) {
-        Objects.requireNonNull(conn);
-        List<Metric> result = new ArrayList<>();
+        try (Timer.Context ignored = time("findAllMetrics")) {
+            Objects.requireNonNull(conn);
+            List<Metric> result = new ArrayList<>();
 
-        try {
-            PreparedStatement statement = conn.prepareStatement(getMetricSearchQueryNoParams());
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                ImmutableMetric.MetricBuilder mBuilder = new ImmutableMetric.MetricBuilder();
-                mBuilder.intrinsicTags(convertStringToSet(resultSet.getString(3)));
-                mBuilder.metaTags(convertStringToSet(resultSet.getString(4)));
-                mBuilder.externalTags(convertStringToSet(resultSet.getString(5)));
-                Metric metric = mBuilder.build();
-                result.add(metric);
+            try (PreparedStatement statement = conn.prepareStatement(getMetricSearchQueryNoParams());
+                 ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    result.add(toMetric(resultSet));
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                result.clear();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            result.clear();
+            return result;
         }
-        return result;
     }
 
-    public void deleteMetric(Connection conn, int idMetric) {
-        Objects.requireNonNull(conn);
+    /**
+     * Returns the metrics matched by every matcher of the plan. Each matcher becomes a semi join on the tags, so only
+     * candidates are loaded. The parts of a matcher which PostgreSQL can't evaluate exactly, see {@link PostgresRegex},
+     * are checked on the loaded candidates.
+     */
+    public List<Metric> findMetrics(Connection conn, QueryPlanner.Plan plan) throws SQLException {
+        try (Timer.Context ignored = time("findMetricsByTags")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(plan);
+            List<Metric> result = new ArrayList<>();
+            List<String> parameters = new ArrayList<>();
 
-        try {
-            PreparedStatement statement = conn.prepareStatement(getMetricDeleteQuery());
-            statement.setInt(1, idMetric);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+            try (PreparedStatement statement = conn.prepareStatement(getMetricSearchByTagsQuery(plan, parameters))) {
+                for (int i = 0; i < parameters.size(); i++) {
+                    statement.setString(i + 1, parameters.get(i));
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        Metric metric = toMetric(resultSet);
+                        if (plan.matches(metric)) {
+                            result.add(metric);
+                        }
+                    }
+                }
+            }
+            return result;
         }
     }
 
-    public List<Integer> deleteSeriesForMetric(Connection conn, int idMetric) {
-        Objects.requireNonNull(conn);
-        List<Integer> samples = new ArrayList<>();
+    /**
+     * Resolves the ids of all given metric keys with a single query.
+     * Keys which are not yet known are absent from the returned map.
+     */
+    public Map<String, Integer> findMetricIds(Connection conn, Collection<String> metricKeys) throws SQLException {
+        try (Timer.Context ignored = time("findMetricIds")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(metricKeys);
+            Map<String, Integer> result = new HashMap<>();
+            if (metricKeys.isEmpty()) {
+                return result;
+            }
 
-        try {
-            PreparedStatement statement = conn.prepareStatement(getSampleSearchByMetricQuery());
-            statement.setInt(1, idMetric);
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                samples.add(resultSet.getInt(1));
+            try (PreparedStatement statement = conn.prepareStatement(getMetricSearchByKeysQuery())) {
+                statement.setObject(1, metricKeys.toArray(new String[0]));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        result.put(resultSet.getString(1), resultSet.getInt(2));
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Loads id and metric of all given keys with a single query and hands them to the consumer.
+     * Passing null as keys streams the whole METRICS table with a server side cursor.
+     */
+    public void loadMetrics(Connection conn, Collection<String> metricKeys, ObjIntConsumer<Metric> consumer) throws SQLException {
+        try (Timer.Context ignored = time("loadMetrics")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(consumer);
+            if (metricKeys != null && metricKeys.isEmpty()) {
+                return;
+            }
+
+            boolean autoCommit = conn.getAutoCommit();
+            if (metricKeys == null) {
+                conn.setAutoCommit(false); // the cursor only lives inside of a transaction
             }
-            statement = conn.prepareStatement(getTimeSerieDeleteQuery());
+            try (PreparedStatement statement = conn.prepareStatement(metricKeys == null
+                    ? getMetricSearchQueryNoParams() : getMetricSearchByKeysQueryAll())) {
+                if (metricKeys == null) {
+                    statement.setFetchSize(FETCH_SIZE);
+                } else {
+                    statement.setObject(1, metricKeys.toArray(new String[0]));
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        consumer.accept(toMetric(resultSet), resultSet.getInt(1));
+                    }
+                }
+                if (metricKeys == null) {
+                    conn.commit();
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (metricKeys == null) {
+                    rollback(conn, e);
+                }
+                throw e;
+            } finally {
+                if (metricKeys == null) {
+                    conn.setAutoCommit(autoCommit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts all given metrics which don't exist yet together with their tags in one transaction, so a metric is never
+     * visible without its tags. The ids have to be resolved afterwards via {@link #findMetricIds(Connection, Collection)}.
+     */
+    public void addNewMetrics(Connection conn, Collection<Metric> metrics) throws SQLException {
+        try (Timer.Context ignored = time("addNewMetrics")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(metrics);
+            if (metrics.isEmpty()) {
+                return;
+            }
+            Map<String, Metric> metricsByKey = new HashMap<>();
+            for (Metric metric : metrics) {
+                metricsByKey.putIfAbsent(metric.getKey(), metric);
+            }
+
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement statementMetrics = conn.prepareStatement(getMetricInsertIfAbsentQuery());
+                 PreparedStatement statementTags = conn.prepareStatement(getTagInsertQuery())) {
+                statementMetrics.setObject(1, metricsByKey.keySet().toArray(new String[0]));
+                int count = 0;
+                // only the inserted metrics are returned: the tags of the others were written with them
+                try (ResultSet resultSet = statementMetrics.executeQuery()) {
+                    while (resultSet.next()) {
+                        Metric metric = metricsByKey.get(resultSet.getString(2));
+                        count += addTags(statementTags, resultSet.getInt(1), TAG_KIND_INTRINSIC, metric.getIntrinsicTags());
+                        count += addTags(statementTags, resultSet.getInt(1), TAG_KIND_META, metric.getMetaTags());
+                        count += addTags(statementTags, resultSet.getInt(1), TAG_KIND_EXTERNAL, metric.getExternalTags());
+                    }
+                }
+                if (count > 0) {
+                    statementTags.executeBatch();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    private int addTags(PreparedStatement statement, int idMetric, String kind, Set<Tag> tags) throws SQLException {
+        for (Tag tag : tags) {
             statement.setInt(1, idMetric);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            samples.clear();
+            statement.setString(2, kind);
+            statement.setString(3, tag.getKey());
+            statement.setString(4, tag.getValue());
+            statement.addBatch();
         }
-        return samples;
+        return tags.size();
     }
 
-    public void deleteSamples(Connection conn, List<Integer> sampleIDs) {
-        Objects.requireNonNull(conn);
-        Objects.requireNonNull(sampleIDs);
+    /**
+     * Inserts the samples as JDBC batches of {@link #BATCH_SIZE} rows, which the driver rewrites into multi-row
+     * INSERTs. Samples whose metric is missing in idsByKey are skipped. The caller is responsible for the transaction.
+     */
+    public void addNewSamples(Connection conn, List<Sample> samples, Map<String, Integer> idsByKey) throws SQLException {
+        try (Timer.Context ignored = time("addNewSamples")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(samples);
+            Objects.requireNonNull(idsByKey);
 
-        try {
-            if (!sampleIDs.isEmpty()) {
-                PreparedStatement statement = conn.prepareStatement(getSampleDeleteQuery(sampleIDs));
-                for (int i = 0; i < sampleIDs.size(); i++) {
-                    statement.setInt(i + 1, sampleIDs.get(i));
+            try (PreparedStatement statement = conn.prepareStatement(getSampleInsertQuery())) {
+                int pending = 0;
+                for (Sample sample : samples) {
+                    Integer idMetric = idsByKey.get(sample.getMetric().getKey());
+                    if (idMetric == null) {
+                        continue;
+                    }
+                    statement.setInt(1, idMetric);
+                    statement.setLong(2, sample.getTime().toEpochMilli());
+                    statement.setDouble(3, sample.getValue());
+                    statement.addBatch();
+                    if (++pending == BATCH_SIZE) {
+                        statement.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    statement.executeBatch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Bulk variant of {@link #addNewSamples(Connection, List, Map)}: the samples are streamed in the binary COPY
+     * format into {@value #TABLENAME_METRIC_SAMPLES}. Samples whose metric is missing in idsByKey are skipped.
+     * The caller is responsible for the transaction.
+     */
+    public void copySamples(Connection conn, List<Sample> samples, Map<String, Integer> idsByKey) throws SQLException {
+        try (Timer.Context ignored = time("copySamples")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(samples);
+            Objects.requireNonNull(idsByKey);
+
+            BinaryCopyWriter writer = new BinaryCopyWriter(getCopyManager(conn).copyIn(getSampleCopyQuery()));
+            try {
+                for (Sample sample : samples) {
+                    Integer idMetric = idsByKey.get(sample.getMetric().getKey());
+                    if (idMetric == null) {
+                        continue;
+                    }
+                    writer.startRow(3);
+                    writer.writeInt(idMetric);
+                    writer.writeLong(sample.getTime().toEpochMilli());
+                    writer.writeDouble(sample.getValue());
                 }
+                writer.finish();
+            } catch (SQLException | RuntimeException e) {
+                writer.cancel();
+                throw e;
+            }
+        }
+    }
+
+    /** Returns the COPY API of the driver, c3p0 only hands it out via its raw connection operation. */
+    private CopyManager getCopyManager(Connection conn) throws SQLException {
+        if (conn instanceof PGConnection) {
+            return ((PGConnection) conn).getCopyAPI();
+        }
+        if (conn instanceof C3P0ProxyConnection) {
+            try {
+                Method getCopyAPI = PGConnection.class.getMethod("getCopyAPI");
+                return (CopyManager) ((C3P0ProxyConnection) conn).rawConnectionOperation(getCopyAPI,
+                        C3P0ProxyConnection.RAW_CONNECTION, new Object[0]);
+            } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+                throw new SQLException("Can not access the COPY API of the connection", e);
+            }
+        }
+        throw new SQLException("COPY is not supported by connections of type " + conn.getClass().getName());
+    }
+
+    /**
+     * Keeps {@value #TABLENAME_METRIC_LATEST} up to date with the given samples, at most one per metric: the row of a
+     * metric is only replaced by a sample which is not older. Samples whose metric is missing in idsByKey are skipped.
+     * The caller is responsible for the transaction.
+     */
+    public void updateLatestSamples(Connection conn, Collection<Sample> samples, Map<String, Integer> idsByKey) throws SQLException {
+        try (Timer.Context ignored = time("updateLatestSamples")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(samples);
+            Objects.requireNonNull(idsByKey);
+
+            // concurrent transactions lock the rows in the same order, so they can't deadlock
+            TreeMap<Integer, Sample> samplesById = new TreeMap<>();
+            for (Sample sample : samples) {
+                Integer idMetric = idsByKey.get(sample.getMetric().getKey());
+                if (idMetric != null) {
+                    samplesById.put(idMetric, sample);
+                }
+            }
+            if (samplesById.isEmpty()) {
+                return;
+            }
+            Integer[] ids = new Integer[samplesById.size()];
+            Long[] times = new Long[ids.length];
+            Double[] values = new Double[ids.length];
+            int i = 0;
+            for (Map.Entry<Integer, Sample> entry : samplesById.entrySet()) {
+                ids[i] = entry.getKey();
+                times[i] = entry.getValue().getTime().toEpochMilli();
+                values[i] = entry.getValue().getValue();
+                i++;
+            }
+            try (PreparedStatement statement = conn.prepareStatement(getLatestSampleUpsertQuery())) {
+                statement.setObject(1, ids);
+                statement.setObject(2, times);
+                statement.setObject(3, values);
                 statement.executeUpdate();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
+    /**
+     * Returns the latest sample of each of the metrics, one lookup by primary key per metric whatever the number of
+     * its samples. Metrics without samples are left out.
+     */
+    public List<Sample> findLatestSamples(Connection conn, Map<Integer, Metric> metricsById) throws SQLException {
+        try (Timer.Context ignored = time("findLatestSamples")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(metricsById);
+            List<Sample> result = new ArrayList<>();
+            if (metricsById.isEmpty()) {
+                return result;
+            }
+
+            try (PreparedStatement statement = conn.prepareStatement(getLatestSampleSearchQuery())) {
+                statement.setObject(1, metricsById.keySet().toArray(new Integer[0]));
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        result.add(ImmutableSample.builder()
+                                .metric(metricsById.get(resultSet.getInt(1)))
+                                .time(Instant.ofEpochMilli(resultSet.getLong(2)))
+                                .value(resultSet.getDouble(3))
+                                .build());
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Removes the metrics together with their tags and all their samples: rows, chunks, rollups, the latest sample and the
+     * samples still stored in the legacy tables. Everything is deleted server side, {@value #DELETE_BATCH_SIZE} metrics per transaction, so a failure
+     * leaves every metric either completely deleted or untouched. Returns the number of deleted metrics.
+     */
+    public int deleteMetrics(Connection conn, List<Integer> idMetrics) throws SQLException {
+        try (Timer.Context ignored = time("deleteMetrics")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(idMetrics);
+
+            int deleted = 0;
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement samples = conn.prepareStatement(getSampleDeleteByMetricsQuery());
+                 PreparedStatement chunks = conn.prepareStatement(getChunkDeleteByMetricsQuery());
+                 PreparedStatement rollups = conn.prepareStatement(getRollupDeleteByMetricsQuery());
+                 PreparedStatement late = conn.prepareStatement(getLateDeleteByMetricsQuery());
+                 PreparedStatement tags = conn.prepareStatement(getTagDeleteByMetricsQuery());
+                 PreparedStatement latest = conn.prepareStatement(getLatestSampleDeleteByMetricsQuery());
+                 PreparedStatement metrics = conn.prepareStatement(getMetricDeleteQuery());
+                 PreparedStatement legacy = legacyTablesPresent ? conn.prepareStatement(getLegacySampleDeleteByMetricsQuery()) : null) {
+                for (int from = 0; from < idMetrics.size(); from += DELETE_BATCH_SIZE) {
+                    Integer[] ids = idMetrics.subList(from, Math.min(from + DELETE_BATCH_SIZE, idMetrics.size())).toArray(new Integer[0]);
+                    samples.setObject(1, ids);
+                    samples.executeUpdate();
+                    chunks.setObject(1, ids);
+                    chunks.executeUpdate();
+                    rollups.setObject(1, ids);
+                    rollups.executeUpdate();
+                    late.setObject(1, ids);
+                    late.executeUpdate();
+                    if (legacy != null) {
+                        legacy.setObject(1, ids);
+                        legacy.executeUpdate();
+                    }
+                    latest.setObject(1, ids);
+                    latest.executeUpdate();
+                    tags.setObject(1, ids);
+                    tags.executeUpdate();
+                    metrics.setObject(1, ids);
+                    deleted += metrics.executeUpdate();
+                    conn.commit();
+                }
+            } catch (SQLException e) {
+                rollback(conn, e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * Moves up to chunkSize samples from the legacy SAMPLES/SERIES tables into {@value #TABLENAME_METRIC_SAMPLES}
+     * in one transaction. Returns the number of moved samples, 0 once the legacy tables are empty.
+     */
+    public int migrateLegacySamples(Connection conn, int chunkSize) throws SQLException {
+        try (Timer.Context ignored = time("migrateLegacySamples")) {
+            Objects.requireNonNull(conn);
+            if (!legacyTablesPresent) {
+                return 0;
+            }
+
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement statement = conn.prepareStatement(getLegacyMigrationQuery())) {
+                statement.setInt(1, chunkSize);
+                int moved;
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    moved = resultSet.next() ? resultSet.getInt(1) : 0;
+                }
+                conn.commit();
+                return moved;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /** Drops the legacy tables, to be called once {@link #migrateLegacySamples(Connection, int)} moved everything. */
+    public void dropLegacyTables(Connection conn) throws SQLException {
+        Objects.requireNonNull(conn);
+        legacyTablesPresent = false; // stop reading from the tables before they are gone
+        try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_SERIES);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_SAMPLES);
+        }
+    }
+
+    public boolean hasLegacyTables() {
+        return legacyTablesPresent;
+    }
+
     public void initialize() {
         Connection connection = null;
         try {
-            connection = DbConnectionPoolingManager.getConnection();
-//            if (!isDatabaseFound(connection, DATABASE_NAME)) {
-//                createDatabase(connection, DATABASE_NAME);
-//            }
-//            connection.close();
-//            DbConnectionPoolingManager.useSpecificConnection(DATABASE_NAME);
-//            connection = DbConnectionPoolingManager.getConnection();
-            if (!this.isDatabaseTableFound(connection, TABLENAME_METRICS)) {
-                createTable(connection, "CREATE TABLE " + TABLENAME_METRICS + " (id SERIAL PRIMARY KEY, key TEXT, " +
-                        "tagsIntr TEXT, tagsMeta TEXT, tagsExtr TEXT)");
-            }
-            if (!this.isDatabaseTableFound(connection, TABLENAME_SAMPLES)) {
-                createTable(connection, "CREATE TABLE " + TABLENAME_SAMPLES + " (id SERIAL PRIMARY KEY, time TIMESTAMP," +
-                        " value DOUBLE PRECISION)");
-            }
-            if (!this.isDatabaseTableFound(connection, TABLENAME_SERIES)) {
-                createTable(connection, "CREATE TABLE " + TABLENAME_SERIES + " (id SERIAL PRIMARY KEY, idMetric INTEGER," +
-                        " idSample INTEGER, CONSTRAINT fk_m FOREIGN KEY (idMetric) REFERENCES " + TABLENAME_METRICS + " (id), " +
-                        "CONSTRAINT fk_s FOREIGN KEY (idSample) REFERENCES " + TABLENAME_SAMPLES + " (id))");
+            connection = this.pool.getConnection();
+            boolean metricsFound = this.isDatabaseTableFound(connection, TABLENAME_METRICS);
+            if (!metricsFound) {
+                createTable(connection, "CREATE TABLE " + TABLENAME_METRICS + " (id SERIAL PRIMARY KEY, key TEXT)");
+            }
+            // SAMPLES and SERIES are only found in databases of older versions, see migrateLegacySamples()
+            legacyTablesPresent = this.isDatabaseTableFound(connection, TABLENAME_SERIES);
+            if (!this.isIndexFound(connection, INDEXNAME_METRICS_KEY)) {
+                createMetricKeyIndex(connection);
+            }
+            if (!this.isDatabaseTableFound(connection, TABLENAME_METRIC_TAGS)) {
+                List<String> queries = new ArrayList<>();
+                queries.add("CREATE TABLE " + TABLENAME_METRIC_TAGS + " (idMetric INTEGER NOT NULL, kind CHAR(1) NOT NULL, " +
+                        "key TEXT NOT NULL, value TEXT NOT NULL, PRIMARY KEY (idMetric, kind, key, value))");
+                if (metricsFound) {
+                    // older versions stored the tags as delimited TEXT in METRICS
+                    queries.add(getLegacyTagMigrationQuery());
+                    queries.add("ALTER TABLE " + TABLENAME_METRICS + " DROP COLUMN tagsIntr, DROP COLUMN tagsMeta, DROP COLUMN tagsExtr");
+                }
+                // answers EQUALS and NOT_EQUALS on the index, text_pattern_ops adds the literal prefix of regular expressions
+                queries.add("CREATE INDEX " + INDEXNAME_METRIC_TAGS_SEARCH + " ON " + TABLENAME_METRIC_TAGS +
+                        " (key, value text_pattern_ops, idMetric) WHERE kind <> '" + TAG_KIND_EXTERNAL + "'");
+                executeInTransaction(connection, queries.toArray(new String[0]));
+            }
+            if (!this.isDatabaseTableFound(connection, TABLENAME_METRIC_SAMPLES)) {
+                if (partitioningEnabled) {
+                    executeInTransaction(connection,
+                            getSampleTableCreateQuery() + " PARTITION BY RANGE (time)",
+                            getSampleIndexCreateQuery(),
+                            "CREATE TABLE " + TABLENAME_METRIC_SAMPLES_DEFAULT + " PARTITION OF " + TABLENAME_METRIC_SAMPLES + " DEFAULT");
+                } else {
+                    createTable(connection, getSampleTableCreateQuery());
+                    createTable(connection, getSampleIndexCreateQuery());
+                }
+            } else if (partitioningEnabled && !isPartitionedTable(connection, TABLENAME_METRIC_SAMPLES)) {
+                // the existing samples stay where they are: the table becomes the default partition, from which
+                // createPartitions() moves the samples of every new partition
+                executeInTransaction(connection,
+                        "ALTER INDEX " + INDEXNAME_METRIC_SAMPLES + " RENAME TO " + INDEXNAME_METRIC_SAMPLES_DEFAULT,
+                        "ALTER TABLE " + TABLENAME_METRIC_SAMPLES + " RENAME TO " + TABLENAME_METRIC_SAMPLES_DEFAULT,
+                        getSampleTableCreateQuery() + " PARTITION BY RANGE (time)",
+                        "ALTER TABLE " + TABLENAME_METRIC_SAMPLES + " ATTACH PARTITION " + TABLENAME_METRIC_SAMPLES_DEFAULT + " DEFAULT",
+                        getSampleIndexCreateQuery()); // adopts the index of the default partition
+            }
+            samplesPartitioned = isPartitionedTable(connection, TABLENAME_METRIC_SAMPLES);
+            if (!this.isDatabaseTableFound(connection, TABLENAME_METRIC_CHUNKS)) {
+                createTable(connection, "CREATE TABLE " + TABLENAME_METRIC_CHUNKS + " (idMetric INTEGER NOT NULL, " +
+                        "startTime BIGINT NOT NULL, endTime BIGINT NOT NULL, count INTEGER NOT NULL, data BYTEA NOT NULL)");
+                // reads mostly ask for recent data: scanning from the requested start visits few chunks
+                createTable(connection, "CREATE INDEX " + INDEXNAME_METRIC_CHUNKS + " ON " + TABLENAME_METRIC_CHUNKS +
+                        " (idMetric, endTime)");
+            }
+            if (!this.isDatabaseTableFound(connection, TABLENAME_METRIC_ROLLUPS)) {
+                createTable(connection, "CREATE TABLE " + TABLENAME_METRIC_ROLLUPS + " (idMetric INTEGER NOT NULL, " +
+                        "resolution BIGINT NOT NULL, bucket BIGINT NOT NULL, min DOUBLE PRECISION, max DOUBLE PRECISION, " +
+                        "sum DOUBLE PRECISION, count BIGINT NOT NULL, PRIMARY KEY (idMetric, resolution, bucket))");
+                // the next tier is computed from all metrics of a time range
+                createTable(connection, "CREATE INDEX " + INDEXNAME_METRIC_ROLLUPS_BUCKET + " ON " + TABLENAME_METRIC_ROLLUPS +
+                        " (resolution, bucket)");
+            }
+            if (!this.isDatabaseTableFound(connection, TABLENAME_ROLLUP_WATERMARKS)) {
+                createTable(connection, "CREATE TABLE " + TABLENAME_ROLLUP_WATERMARKS + " (resolution BIGINT PRIMARY KEY, " +
+                        "watermark BIGINT NOT NULL)");
+            }
+            if (!this.isDatabaseTableFound(connection, TABLENAME_ROLLUP_LATE)) {
+                createTable(connection, "CREATE TABLE " + TABLENAME_ROLLUP_LATE + " (idMetric INTEGER PRIMARY KEY, " +
+                        "since BIGINT NOT NULL)");
+            }
+            if (!this.isDatabaseTableFound(connection, TABLENAME_METRIC_LATEST)) {
+                // samples written by older versions are taken over from the rows, samples only found in chunks are not
+                executeInTransaction(connection,
+                        "CREATE TABLE " + TABLENAME_METRIC_LATEST + " (idMetric INTEGER PRIMARY KEY, time BIGINT NOT NULL, " +
+                                "value DOUBLE PRECISION)",
+                        "INSERT INTO " + TABLENAME_METRIC_LATEST + " (idMetric, time, value) SELECT DISTINCT ON (idMetric) " +
+                                "idMetric, time, value FROM " + getSampleSource() + " ORDER BY idMetric, time DESC");
             }
             isDbInitialized = true;
         } catch (SQLException e) {
@@ -319,7 +1250,7 @@ public class DbManager {
             isDbInitialized = false;
         } finally {
             try {
-                DbConnectionPoolingManager.releaseConnection(connection);
+                this.pool.releaseConnection(connection);
             } catch (SQLException e) {
                 e.printStackTrace();
                 isDbInitialized = false;
@@ -327,21 +1258,394 @@ public class DbManager {
         }
     }
 
+    public boolean isPartitioned() {
+        return samplesPartitioned;
+    }
+
+    /** Returns the time partitions of {@value #TABLENAME_METRIC_SAMPLES}, without the default partition. */
+    public List<SamplePartitions.Partition> findPartitions(Connection conn) throws SQLException {
+        Objects.requireNonNull(conn);
+        List<SamplePartitions.Partition> partitions = new ArrayList<>();
+        try (PreparedStatement statement = conn.prepareStatement(getPartitionSearchQuery())) {
+            statement.setString(1, TABLENAME_METRIC_SAMPLES.toLowerCase(Locale.ROOT));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    SamplePartitions.Partition partition = SamplePartitions.parse(resultSet.getString(1), resultSet.getString(2));
+                    if (partition != null) {
+                        partitions.add(partition);
+                    }
+                }
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Creates the partitions for the interval containing now and the following ahead intervals, unless they exist.
+     * Samples of a new partition which were stored in the default partition are moved into it.
+     * Returns the created partitions.
+     */
+    public List<SamplePartitions.Partition> createPartitions(Connection conn, long now, long interval, int ahead) throws SQLException {
+        try (Timer.Context ignored = time("createPartitions")) {
+            Objects.requireNonNull(conn);
+            if (!samplesPartitioned) {
+                return Collections.emptyList();
+            }
+            List<SamplePartitions.Partition> created = new ArrayList<>();
+            for (SamplePartitions.Partition partition : SamplePartitions.missing(findPartitions(conn), now, interval, ahead)) {
+                String name = partition.getName();
+                String range = "time >= " + partition.getStart() + " AND time < " + partition.getEnd();
+                // the constraint spares ATTACH the scan of the new partition
+                executeInTransaction(conn,
+                        "CREATE TABLE " + name + " (LIKE " + TABLENAME_METRIC_SAMPLES + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)",
+                        "ALTER TABLE " + name + " ADD CONSTRAINT " + name + "_range CHECK (" + range + ")",
+                        "WITH moved AS (DELETE FROM " + TABLENAME_METRIC_SAMPLES_DEFAULT + " WHERE " + range +
+                                " RETURNING idMetric, time, value) INSERT INTO " + name +
+                                " (idMetric, time, value) SELECT idMetric, time, value FROM moved",
+                        "ALTER TABLE " + TABLENAME_METRIC_SAMPLES + " ATTACH PARTITION " + name +
+                                " FOR VALUES FROM (" + partition.getStart() + ") TO (" + partition.getEnd() + ")",
+                        "ALTER TABLE " + name + " DROP CONSTRAINT " + name + "_range");
+                created.add(partition);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Removes all samples older than the cutoff: partitions holding only older samples are dropped as a whole, the
+     * default partition and the chunks are deleted from row by row. Without partitions this is a plain DELETE.
+     * Rollup buckets of every tier which only aggregate samples older than the cutoff are deleted as well, so
+     * aggregated reads don't return data for time whose samples are gone. Returns the dropped partitions.
+     */
+    public List<SamplePartitions.Partition> applyRetention(Connection conn, long cutoff) throws SQLException {
+        try (Timer.Context ignored = time("applyRetention")) {
+            Objects.requireNonNull(conn);
+            List<SamplePartitions.Partition> dropped = new ArrayList<>();
+            try (Statement statement = conn.createStatement()) {
+                if (samplesPartitioned) {
+                    for (SamplePartitions.Partition partition : SamplePartitions.expired(findPartitions(conn), cutoff)) {
+                        statement.executeUpdate("DROP TABLE " + partition.getName());
+                        dropped.add(partition);
+                    }
+                }
+                statement.executeUpdate("DELETE FROM " + (samplesPartitioned ? TABLENAME_METRIC_SAMPLES_DEFAULT : TABLENAME_METRIC_SAMPLES) +
+                        " WHERE time < " + cutoff);
+                statement.executeUpdate("DELETE FROM " + TABLENAME_METRIC_CHUNKS + " WHERE endTime < " + cutoff);
+            }
+            // every tier ever computed has a watermark, also tiers which are no longer configured
+            try (PreparedStatement statement = conn.prepareStatement(getRollupDeleteBeforeQuery())) {
+                for (long resolution : findRollupWatermarks(conn).keySet()) {
+                    statement.setLong(1, resolution);
+                    statement.setLong(2, Rollups.firstRetainedBucket(cutoff, resolution));
+                    statement.executeUpdate();
+                }
+            }
+            return dropped;
+        }
+    }
+
+    /** Returns the watermark of every rollup tier by its resolution: all buckets before it are computed. */
+    public Map<Long, Long> findRollupWatermarks(Connection conn) throws SQLException {
+        Objects.requireNonNull(conn);
+        Map<Long, Long> watermarks = new HashMap<>();
+        try (PreparedStatement statement = conn.prepareStatement("SELECT resolution, watermark FROM " + TABLENAME_ROLLUP_WATERMARKS);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                watermarks.put(resultSet.getLong(1), resultSet.getLong(2));
+            }
+        }
+        return watermarks;
+    }
+
+    /** Returns the time of the oldest sample, null if there is none. Scans all samples, to be used once only. */
+    public Long findFirstSampleTime(Connection conn) throws SQLException {
+        try (Timer.Context ignored = time("findFirstSampleTime")) {
+            Objects.requireNonNull(conn);
+            try (PreparedStatement statement = conn.prepareStatement("SELECT min(first) FROM (SELECT min(time) AS first FROM " +
+                    getSampleSource() + " UNION ALL SELECT min(startTime) FROM " + TABLENAME_METRIC_CHUNKS + ") f");
+                 ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    long first = resultSet.getLong(1);
+                    return resultSet.wasNull() ? null : first;
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Computes the buckets of the first rollup tier within [from, to) from the samples, rows and chunks alike, and
+     * moves the watermark of the tier to the end, in one transaction. Both have to be multiples of the resolution.
+     * Returns the number of computed buckets.
+     */
+    public int rollupSamples(Connection conn, long resolution, long from, long to) throws SQLException {
+        try (Timer.Context ignored = time("rollupSamples")) {
+            Objects.requireNonNull(conn);
+            Rollups.Builder builder = new Rollups.Builder(resolution);
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                // rows and chunks are read with one statement: a chunk sealed meanwhile is seen either way, not twice
+                try (PreparedStatement statement = conn.prepareStatement(getSampleAndChunkAggregationQuery())) {
+                    statement.setLong(1, resolution);
+                    statement.setLong(2, resolution);
+                    statement.setLong(3, from);
+                    statement.setLong(4, to);
+                    statement.setLong(5, from);
+                    statement.setLong(6, to);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            byte[] chunk = resultSet.getBytes(7);
+                            if (chunk == null) {
+                                builder.merge(resultSet.getInt(1), resultSet.getLong(2), resultSet.getDouble(3),
+                                        resultSet.getDouble(4), resultSet.getDouble(5), resultSet.getLong(6));
+                            } else {
+                                ChunkCodec.decode(chunk, from - 1, to, builder.samplesOf(resultSet.getInt(1)));
+                            }
+                        }
+                    }
+                }
+                upsertRollups(conn, resolution, builder);
+                setWatermark(conn, resolution, to);
+                conn.commit();
+                return builder.size();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Computes the buckets of a rollup tier within [from, to) from the tier of sourceResolution and moves the
+     * watermark of the tier to the end, in one transaction. Returns the number of computed buckets.
+     */
+    public int rollupTier(Connection conn, long resolution, long sourceResolution, long from, long to) throws SQLException {
+        try (Timer.Context ignored = time("rollupTier")) {
+            Objects.requireNonNull(conn);
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement statement = conn.prepareStatement(getRollupFromTierQuery())) {
+                statement.setLong(1, resolution);
+                statement.setLong(2, resolution);
+                statement.setLong(3, resolution);
+                statement.setLong(4, sourceResolution);
+                statement.setLong(5, from);
+                statement.setLong(6, to);
+                int buckets = statement.executeUpdate();
+                setWatermark(conn, resolution, to);
+                conn.commit();
+                return buckets;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Records samples written behind the rollup watermarks: since is the time of the oldest of them per metric id, an
+     * older record of a metric is kept. The caller is responsible for the transaction.
+     */
+    public void addLateSamples(Connection conn, Map<Integer, Long> sinceById) throws SQLException {
+        try (Timer.Context ignored = time("addLateSamples")) {
+            Objects.requireNonNull(conn);
+            Objects.requireNonNull(sinceById);
+            if (sinceById.isEmpty()) {
+                return;
+            }
+            // concurrent transactions lock the rows in the same order, so they can't deadlock
+            TreeMap<Integer, Long> sorted = new TreeMap<>(sinceById);
+            try (PreparedStatement statement = conn.prepareStatement(getLateUpsertQuery())) {
+                statement.setObject(1, sorted.keySet().toArray(new Integer[0]));
+                statement.setObject(2, sorted.values().toArray(new Long[0]));
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Computes the buckets of the recorded late samples again, in one transaction: for every tier of resolutions, in
+     * order, the buckets from the one holding the oldest late sample of a metric up to the watermark of the tier, the
+     * first tier from the samples, the others from the tier before. The records are removed. Returns the number of
+     * metrics whose buckets were computed.
+     */
+    public int rollupLateSamples(Connection conn, List<Long> resolutions, Map<Long, Long> watermarks) throws SQLException {
+        try (Timer.Context ignored = time("rollupLateSamples")) {
+            Objects.requireNonNull(conn);
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try {
+                // locked until the commit: late samples written meanwhile are waited for or recorded again
+                List<Integer> ids = new ArrayList<>();
+                List<Long> sinces = new ArrayList<>();
+                try (PreparedStatement statement = conn.prepareStatement(getLateSearchForUpdateQuery());
+                     ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        ids.add(resultSet.getInt(1));
+                        sinces.add(resultSet.getLong(2));
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    Integer[] idArray = ids.toArray(new Integer[0]);
+                    Long[] sinceArray = sinces.toArray(new Long[0]);
+                    long sourceResolution = 0;
+                    for (long resolution : resolutions) {
+                        Long watermark = watermarks.get(resolution);
+                        if (watermark == null) {
+                            break; // not computed yet, neither are the tiers after it
+                        }
+                        if (sourceResolution == 0) {
+                            upsertRollups(conn, resolution, aggregateLateSamples(conn, resolution, watermark, idArray, sinceArray));
+                        } else {
+                            try (PreparedStatement statement = conn.prepareStatement(getLateRollupFromTierQuery())) {
+                                statement.setLong(1, resolution);
+                                statement.setLong(2, resolution);
+                                statement.setLong(3, resolution);
+                                statement.setObject(4, idArray);
+                                statement.setObject(5, sinceArray);
+                                statement.setLong(6, sourceResolution);
+                                statement.setLong(7, resolution);
+                                statement.setLong(8, resolution);
+                                statement.setLong(9, watermark);
+                                statement.executeUpdate();
+                            }
+                        }
+                        sourceResolution = resolution;
+                    }
+                    try (PreparedStatement statement = conn.prepareStatement(getLateDeleteByMetricsQuery())) {
+                        statement.setObject(1, idArray);
+                        statement.executeUpdate();
+                    }
+                }
+                conn.commit();
+                return ids.size();
+            } catch (SQLException | RuntimeException e) {
+                rollback(conn, e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /** Aggregates the rows and chunks of the metrics from the bucket of their since up to the watermark. */
+    private Rollups.Builder aggregateLateSamples(Connection conn, long resolution, long watermark, Integer[] ids,
+                                                 Long[] sinces) throws SQLException {
+        Rollups.Builder builder = new Rollups.Builder(resolution);
+        try (PreparedStatement statement = conn.prepareStatement(getLateSampleAndChunkAggregationQuery())) {
+            statement.setLong(1, resolution);
+            statement.setLong(2, resolution);
+            statement.setObject(3, ids);
+            statement.setObject(4, sinces);
+            statement.setLong(5, resolution);
+            statement.setLong(6, resolution);
+            statement.setLong(7, watermark);
+            statement.setLong(8, resolution);
+            statement.setLong(9, resolution);
+            statement.setObject(10, ids);
+            statement.setObject(11, sinces);
+            statement.setLong(12, resolution);
+            statement.setLong(13, resolution);
+            statement.setLong(14, watermark);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    byte[] chunk = resultSet.getBytes(7);
+                    if (chunk == null) {
+                        builder.merge(resultSet.getInt(1), resultSet.getLong(2), resultSet.getDouble(3),
+                                resultSet.getDouble(4), resultSet.getDouble(5), resultSet.getLong(6));
+                    } else {
+                        ChunkCodec.decode(chunk, resultSet.getLong(8) - 1, watermark, builder.samplesOf(resultSet.getInt(1)));
+                    }
+                }
+            }
+        }
+        return builder;
+    }
+
+    private void upsertRollups(Connection conn, long resolution, Rollups.Builder builder) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(getRollupUpsertQuery())) {
+            int[] pending = {0};
+            builder.forEach((idMetric, bucket, aggregate) -> {
+                statement.setInt(1, idMetric);
+                statement.setLong(2, resolution);
+                statement.setLong(3, bucket);
+                statement.setDouble(4, aggregate.getMin());
+                statement.setDouble(5, aggregate.getMax());
+                statement.setDouble(6, aggregate.getSum());
+                statement.setLong(7, aggregate.getCount());
+                statement.addBatch();
+                if (++pending[0] == BATCH_SIZE) {
+                    statement.executeBatch();
+                    pending[0] = 0;
+                }
+            });
+            if (pending[0] > 0) {
+                statement.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Aggregates the rollup buckets of the metric within [from, to) into buckets of step milliseconds and returns
+     * one sample per non empty bucket, like {@link #findAggregatedSamplesForMetric}. The step has to be a multiple
+     * of the resolution.
+     */
+    public List<Sample> findRollupSamplesForMetric(Connection conn, Metric metric, int idMetric, long resolution,
+                                                   long from, long to, long step, Aggregation aggregation) throws SQLException {
+        try (Timer.Context ignored = time("findRollupSamplesForMetric")) {
+            Objects.requireNonNull(conn);
+            List<Sample> results = new ArrayList<>();
+            try (PreparedStatement statement = conn.prepareStatement(getRollupSearchByMetricQuery(aggregation))) {
+                statement.setLong(1, step);
+                statement.setLong(2, step);
+                statement.setInt(3, idMetric);
+                statement.setLong(4, resolution);
+                statement.setLong(5, from);
+                statement.setLong(6, to);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        results.add(toSample(metric, resultSet.getLong(1), resultSet.getDouble(2)));
+                    }
+                }
+            }
+            return results;
+        }
+    }
+
+    private void setWatermark(Connection conn, long resolution, long watermark) throws SQLException {
+        try (PreparedStatement statement = conn.prepareStatement(getWatermarkUpsertQuery())) {
+            statement.setLong(1, resolution);
+            statement.setLong(2, watermark);
+            statement.executeUpdate();
+        }
+    }
+
     public void dropTables() throws SQLException {
-        Connection connection = DbConnectionPoolingManager.getConnection();
-        Statement statement = connection.createStatement();
-        statement.executeUpdate("DROP TABLE " + TABLENAME_SERIES);
-        statement.executeUpdate("DROP TABLE " + TABLENAME_SAMPLES);
-        statement.executeUpdate("DROP TABLE " + TABLENAME_METRICS);
-//        statement.executeUpdate("DROP DATABASE " + DATABASE_NAME);
-        DbConnectionPoolingManager.releaseConnection(connection);
+        try (Connection connection = this.pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_SERIES);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_SAMPLES);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_METRIC_CHUNKS);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_METRIC_ROLLUPS);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_ROLLUP_WATERMARKS);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_ROLLUP_LATE);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_METRIC_LATEST);
+            statement.executeUpdate("DROP TABLE " + TABLENAME_METRIC_SAMPLES);
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLENAME_METRIC_TAGS);
+            statement.executeUpdate("DROP TABLE " + TABLENAME_METRICS);
+//            statement.executeUpdate("DROP DATABASE " + DATABASE_NAME);
+        }
     }
 
     private boolean isDatabaseFound(Connection conn, String databaseName) {
         boolean isFound = false;
-        try {
-            PreparedStatement ps = conn.prepareStatement("SELECT datname FROM pg_database WHERE datistemplate = false;");
-            ResultSet rs = ps.executeQuery();
+        try (PreparedStatement ps = conn.prepareStatement("SELECT datname FROM pg_database WHERE datistemplate = false;");
+             ResultSet rs = ps.executeQuery()) {
             while (rs.next()) {
                 if (databaseName.equalsIgnoreCase(rs.getString(1))) {
                     isFound = true;
@@ -354,73 +1658,457 @@ public class DbManager {
         return isFound;
     }
 
+    private boolean isPartitionedTable(Connection conn, String tableName) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM pg_partitioned_table pt JOIN pg_class c ON c.oid = pt.partrelid WHERE c.relname = ?")) {
+            ps.setString(1, tableName.toLowerCase(Locale.ROOT));
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /** Executes the statements in one transaction, they are all applied or none. */
+    private void executeInTransaction(Connection connection, String... queries) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            for (String query : queries) {
+                statement.executeUpdate(query);
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /** Rolls the transaction back after the failure, a failing rollback is added to it instead of replacing it. */
+    private static void rollback(Connection conn, Exception failure) {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private boolean isIndexFound(Connection conn, String indexName) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT 1 FROM pg_indexes WHERE indexname = ?")) {
+            ps.setString(1, indexName.toLowerCase(Locale.ROOT));
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Creates the unique index on METRICS.key. Databases written by older versions may contain the same key more
+     * than once: their series are moved to the oldest row and the other rows are removed beforehand. Only databases
+     * with legacy tables can contain duplicates, so {@value #TABLENAME_METRIC_SAMPLES} doesn't need to be updated.
+     */
+    private void createMetricKeyIndex(Connection connection) throws SQLException {
+        Objects.requireNonNull(connection);
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try (Statement statement = connection.createStatement()) {
+            if (legacyTablesPresent) {
+                statement.executeUpdate("UPDATE " + TABLENAME_SERIES + " s SET idMetric = d.keep FROM (SELECT id, " +
+                        "min(id) OVER (PARTITION BY key) AS keep FROM " + TABLENAME_METRICS + ") d " +
+                        "WHERE s.idMetric = d.id AND d.id <> d.keep");
+            }
+            statement.executeUpdate("DELETE FROM " + TABLENAME_METRICS + " m USING " + TABLENAME_METRICS + " k " +
+                    "WHERE m.key = k.key AND m.id > k.id");
+            statement.executeUpdate("CREATE UNIQUE INDEX " + INDEXNAME_METRICS_KEY + " ON " + TABLENAME_METRICS + " (key)");
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
     private void createDatabase(Connection connection, String databaseName) throws SQLException {
         Objects.requireNonNull(connection);
-        Statement statement = connection.createStatement();
-        statement.executeUpdate("CREATE DATABASE " + databaseName);
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE DATABASE " + databaseName);
+        }
+    }
+
+    private String getSampleTableCreateQuery() {
+        return "CREATE TABLE " + TABLENAME_METRIC_SAMPLES + " (idMetric INTEGER NOT NULL, time BIGINT NOT NULL, value DOUBLE PRECISION)";
+    }
+
+    /** On a partitioned table the index is created on every partition. */
+    private String getSampleIndexCreateQuery() {
+        return "CREATE INDEX " + INDEXNAME_METRIC_SAMPLES + " ON " + TABLENAME_METRIC_SAMPLES + " (idMetric, time)";
+    }
+
+    private String getPartitionSearchQuery() {
+        return "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i " +
+                "JOIN pg_class c ON c.oid = i.inhrelid JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = ?";
     }
 
     private String getMetricSearchQuery() {
         return "SELECT id FROM " + TABLENAME_METRICS + " WHERE key = ?";
     }
 
+    private String getMetricSearchByKeysQuery() {
+        return "SELECT key, id FROM " + TABLENAME_METRICS + " WHERE key = ANY (?)";
+    }
+
+    private String getMetricSearchByKeysQueryAll() {
+        return getMetricSearchQueryNoParams() + " WHERE m.key = ANY (?)";
+    }
+
     private String getMetricSearchQueryAll() {
-        return "SELECT * FROM " + TABLENAME_METRICS + " WHERE key = ?";
+        return getMetricSearchQueryNoParams() + " WHERE m.key = ?";
     }
 
+    /** Selects id, key and the tags of the metrics as parallel arrays of kind, key and value, see {@link #toMetric(ResultSet)}. */
     private String getMetricSearchQueryNoParams() {
-        return "SELECT * FROM " + TABLENAME_METRICS;
+        return "SELECT m.id, m.key, t.kinds, t.keys, t.vals FROM " + TABLENAME_METRICS + " m CROSS JOIN LATERAL " +
+                "(SELECT array_agg(kind) AS kinds, array_agg(key) AS keys, array_agg(value) AS vals FROM " +
+                TABLENAME_METRIC_TAGS + " WHERE idMetric = m.id) t";
     }
 
-    private String getMetricInsertQuery() {
-        return "INSERT INTO " + TABLENAME_METRICS + " (key, tagsIntr, tagsMeta, tagsExtr) VALUES (?, ?, ?, ?)";
+    /**
+     * Every matcher has to be satisfied by a searchable tag. The values of the matchers are added to the parameters:
+     * the key, the value for (NOT_)EQUALS, the LIKE pattern of the literal prefix and the anchored expression for
+     * EQUALS_REGEX. NOT_EQUALS_REGEX only requires the key, since PostgreSQL may match more values than Java.
+     */
+    private String getMetricSearchByTagsQuery(QueryPlanner.Plan plan, List<String> parameters) {
+        StringBuilder query = new StringBuilder(getMetricSearchQueryNoParams()).append(" WHERE TRUE");
+        for (QueryPlanner.CompiledTagMatcher matcher : plan.getMatchers()) {
+            query.append(" AND EXISTS (SELECT 1 FROM ").append(TABLENAME_METRIC_TAGS)
+                    .append(" s WHERE s.idMetric = m.id AND s.kind <> '").append(TAG_KIND_EXTERNAL).append("' AND s.key = ?");
+            parameters.add(matcher.getKey());
+            switch (matcher.getType()) {
+                case EQUALS:
+                    query.append(" AND s.value = ?");
+                    parameters.add(matcher.getValue());
+                    break;
+                case NOT_EQUALS:
+                    query.append(" AND s.value <> ?");
+                    parameters.add(matcher.getValue());
+                    break;
+                case EQUALS_REGEX:
+                    if (!matcher.getLiteralPrefix().isEmpty()) {
+                        query.append(" AND s.value LIKE ?");
+                        parameters.add(PostgresRegex.likePrefix(matcher.getLiteralPrefix()));
+                    }
+                    if (PostgresRegex.isPortable(matcher.getValue())) {
+                        query.append(" AND s.value ~ ?");
+                        parameters.add(PostgresRegex.anchored(matcher.getValue()));
+                    }
+                    break;
+                default:
+                    break;
+            }
+            query.append(")");
+        }
+        return query.toString();
+    }
+
+    /** Inserts the metrics of the key array which don't exist yet and returns their ids and keys. */
+    private String getMetricInsertIfAbsentQuery() {
+        return "INSERT INTO " + TABLENAME_METRICS + " (key) SELECT unnest(CAST(? AS TEXT[])) ON CONFLICT (key) DO NOTHING RETURNING id, key";
+    }
+
+    private String getTagInsertQuery() {
+        return "INSERT INTO " + TABLENAME_METRIC_TAGS + " (idMetric, kind, key, value) VALUES (?, ?, ?, ?)";
+    }
+
+    private String getTagDeleteByMetricsQuery() {
+        return "DELETE FROM " + TABLENAME_METRIC_TAGS + " WHERE idMetric = ANY (?)";
+    }
+
+    /**
+     * Splits the delimited tags of the TEXT columns of older versions into {@value #TABLENAME_METRIC_TAGS}. Like the
+     * parser of those versions it skips tags which don't consist of exactly a key and a value.
+     */
+    private String getLegacyTagMigrationQuery() {
+        return "INSERT INTO " + TABLENAME_METRIC_TAGS + " (idMetric, kind, key, value) " +
+                "SELECT m.id, t.kind, split_part(t.tag, '" + SEPARATOR_TAG + "', 1), split_part(t.tag, '" + SEPARATOR_TAG + "', 2) " +
+                "FROM " + TABLENAME_METRICS + " m CROSS JOIN LATERAL (" +
+                "SELECT '" + TAG_KIND_INTRINSIC + "' AS kind, regexp_split_to_table(m.tagsIntr, '" + SEPARATOR_TAGS + "') AS tag " +
+                "UNION ALL SELECT '" + TAG_KIND_META + "', regexp_split_to_table(m.tagsMeta, '" + SEPARATOR_TAGS + "') " +
+                "UNION ALL SELECT '" + TAG_KIND_EXTERNAL + "', regexp_split_to_table(m.tagsExtr, '" + SEPARATOR_TAGS + "')) t " +
+                "WHERE t.tag ~ '^[^" + SEPARATOR_TAG + "]*" + SEPARATOR_TAG + "[^" + SEPARATOR_TAG + "]+" + SEPARATOR_TAG + "*$' " +
+                "ON CONFLICT DO NOTHING";
     }
 
     private String getSampleInsertQuery() {
-        return "INSERT INTO " + TABLENAME_SAMPLES + " (time, value) VALUES (?, ?)";
+        return "INSERT INTO " + TABLENAME_METRIC_SAMPLES + " (idMetric, time, value) VALUES (?, ?, ?)";
     }
 
-    private String getTimeSerieInsertQuery() {
-        return "INSERT INTO " + TABLENAME_SERIES + "(idMetric, idSample) VALUES (?, ?)";
+    /** Inserts the sample and replaces the latest sample of its metric in one statement. */
+    private String getSampleInsertWithLatestQuery() {
+        return "WITH s AS (" + getSampleInsertQuery() + " RETURNING idMetric, time, value) INSERT INTO " +
+                TABLENAME_METRIC_LATEST + " (idMetric, time, value) SELECT idMetric, time, value FROM s " +
+                getLatestSampleConflictClause();
     }
 
-    private String getSampleSearchByMetricQuery() {
-        return "SELECT idSample FROM " + TABLENAME_SERIES + " WHERE idMetric = ?";
+    private String getLatestSampleUpsertQuery() {
+        return "INSERT INTO " + TABLENAME_METRIC_LATEST + " (idMetric, time, value) SELECT * FROM " +
+                "unnest(CAST(? AS INTEGER[]), CAST(? AS BIGINT[]), CAST(? AS DOUBLE PRECISION[])) " +
+                getLatestSampleConflictClause();
     }
 
-    private String getSampleSearchQuery() {
-        return "SELECT * FROM " + TABLENAME_SAMPLES + " WHERE id = ?";
+    /** An existing latest sample is only replaced by one which is not older, samples may arrive out of order. */
+    private String getLatestSampleConflictClause() {
+        return "ON CONFLICT (idMetric) DO UPDATE SET time = EXCLUDED.time, value = EXCLUDED.value " +
+                "WHERE " + TABLENAME_METRIC_LATEST + ".time <= EXCLUDED.time";
     }
 
-    private String getTimeSerieDeleteQuery() {
-        return "DELETE FROM " + TABLENAME_SERIES + " WHERE idMetric = ?";
+    private String getLatestSampleSearchQuery() {
+        return "SELECT idMetric, time, value FROM " + TABLENAME_METRIC_LATEST + " WHERE idMetric = ANY (?)";
     }
 
-    private String getMetricDeleteQuery() {
-        return "DELETE FROM " + TABLENAME_METRICS + " WHERE id = ?";
+    private String getLatestSampleDeleteByMetricsQuery() {
+        return "DELETE FROM " + TABLENAME_METRIC_LATEST + " WHERE idMetric = ANY (?)";
+    }
+
+    private String getSampleCopyQuery() {
+        return "COPY " + TABLENAME_METRIC_SAMPLES + " (idMetric, time, value) FROM STDIN (FORMAT BINARY)";
+    }
+
+    /**
+     * The ranges of a batch read as relation r(request, idMetric, rangeStart, rangeEnd), built from four arrays, with
+     * steps from a fifth array as r.step.
+     */
+    private String getRangesRelation(boolean withSteps) {
+        return "unnest(CAST(? AS INTEGER[]), CAST(? AS INTEGER[]), CAST(? AS BIGINT[]), CAST(? AS BIGINT[])" +
+                (withSteps ? ", CAST(? AS BIGINT[])) AS r(request, idMetric, rangeStart, rangeEnd, step)"
+                        : ") AS r(request, idMetric, rangeStart, rangeEnd)");
+    }
+
+    /**
+     * Rows and chunks ordered by time respectively start time, as {@link SampleMerger} expects them, with the columns
+     * of {@link #getSampleAndChunkSearchByMetricsQuery()}. Rows have a null chunk.
+     */
+    private String getSampleAndChunkSearchByMetricQuery() {
+        return "SELECT 0, sortTime, time, data, value FROM (" +
+                "SELECT time AS sortTime, time, NULL::BYTEA AS data, value FROM " + getSampleSource() +
+                " WHERE idMetric = ? AND time > ? AND time < ? UNION ALL " +
+                "SELECT startTime, NULL, data, NULL FROM " + TABLENAME_METRIC_CHUNKS +
+                " WHERE idMetric = ? AND endTime > ? AND startTime < ?) s ORDER BY sortTime";
+    }
+
+    /**
+     * Rows and chunks of every range, ordered by range and by time respectively start time, as {@link SampleMerger}
+     * expects them. Rows have a null chunk.
+     */
+    private String getSampleAndChunkSearchByMetricsQuery() {
+        return "SELECT r.request, s.sortTime, s.time, s.data, s.value FROM " + getRangesRelation(false) + " CROSS JOIN LATERAL (" +
+                "SELECT time AS sortTime, time, NULL::BYTEA AS data, value FROM " + getSampleSource() +
+                " WHERE idMetric = r.idMetric AND time > r.rangeStart AND time < r.rangeEnd UNION ALL " +
+                "SELECT startTime, NULL, data, NULL FROM " + TABLENAME_METRIC_CHUNKS +
+                " WHERE idMetric = r.idMetric AND endTime > r.rangeStart AND startTime < r.rangeEnd) s " +
+                "ORDER BY r.request, s.sortTime";
+    }
+
+    private String getAggregatedSampleSearchByMetricsQuery(Aggregation aggregation) {
+        return "SELECT r.request, (s.time / r.step) * r.step AS bucket, " + toSqlFunction(aggregation) + "(s.value) FROM " +
+                getRangesRelation(true) + " CROSS JOIN LATERAL (SELECT time, value FROM " + getSampleSource() +
+                " WHERE idMetric = r.idMetric AND time > r.rangeStart AND time < r.rangeEnd) s GROUP BY 1, 2 ORDER BY 1, 2";
+    }
+
+    /** The replay timestamp is that of the last replayed transaction, it only tells the lag while WAL is pending. */
+    private String getReplicaLagQuery() {
+        return "SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+                "ELSE CAST(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 AS BIGINT) END";
+    }
+
+    /** Every maximum is a backward scan of an index on (idMetric, time) respectively (idMetric, endTime). */
+    private String getLatestSampleTimeSearchQuery() {
+        return "SELECT m.id, greatest((SELECT max(time) FROM " + getSampleSource() + " WHERE idMetric = m.id), " +
+                "(SELECT max(endTime) FROM " + TABLENAME_METRIC_CHUNKS + " WHERE idMetric = m.id)) " +
+                "FROM unnest(CAST(? AS INTEGER[])) AS m(id)";
+    }
+
+    private String getChunkInsertQuery() {
+        return "INSERT INTO " + TABLENAME_METRIC_CHUNKS + " (idMetric, startTime, endTime, count, data) VALUES (?, ?, ?, ?, ?)";
+    }
+
+    private String getSampleDeleteByMetricAndTimesQuery() {
+        return "DELETE FROM " + TABLENAME_METRIC_SAMPLES + " WHERE idMetric = ? AND time = ANY (?)";
+    }
+
+    private String getRollupDeleteByMetricsQuery() {
+        return "DELETE FROM " + TABLENAME_METRIC_ROLLUPS + " WHERE idMetric = ANY (?)";
     }
 
-    private String getSampleDeleteQuery(List<Integer> ids) {
-        StringBuilder sbSamplesQuery = new StringBuilder("DELETE FROM " + TABLENAME_SAMPLES + " WHERE id in ( ");
-        for (int i = 0; i < ids.size() - 1; i++) {
-            sbSamplesQuery.append("?, ");
+    private String getRollupDeleteBeforeQuery() {
+        return "DELETE FROM " + TABLENAME_METRIC_ROLLUPS + " WHERE resolution = ? AND bucket < ?";
+    }
+
+    private String getRollupUpsertQuery() {
+        return "INSERT INTO " + TABLENAME_METRIC_ROLLUPS + " (idMetric, resolution, bucket, min, max, sum, count) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?) " + getRollupConflictClause();
+    }
+
+    /** Computes the buckets of a tier from the tier before. */
+    private String getRollupFromTierQuery() {
+        return "INSERT INTO " + TABLENAME_METRIC_ROLLUPS + " (idMetric, resolution, bucket, min, max, sum, count) " +
+                "SELECT idMetric, ?, (bucket / ?) * ?, min(min), max(max), sum(sum), sum(count) FROM " + TABLENAME_METRIC_ROLLUPS +
+                " WHERE resolution = ? AND bucket >= ? AND bucket < ? GROUP BY 1, 3 " + getRollupConflictClause();
+    }
+
+    /** A bucket is always computed from all of its samples, so a recomputed bucket replaces the old one. */
+    private String getRollupConflictClause() {
+        return "ON CONFLICT (idMetric, resolution, bucket) DO UPDATE SET min = EXCLUDED.min, max = EXCLUDED.max, " +
+                "sum = EXCLUDED.sum, count = EXCLUDED.count";
+    }
+
+    /** Row aggregates have a null chunk, chunks have null aggregates. */
+    private String getSampleAndChunkAggregationQuery() {
+        return "(SELECT idMetric, (time / ?) * ? AS bucket, min(value), max(value), sum(value), count(*), NULL::BYTEA AS data" +
+                " FROM " + getSampleSource() + " WHERE time >= ? AND time < ? GROUP BY 1, 2) UNION ALL " +
+                "(SELECT idMetric, NULL, NULL, NULL, NULL, NULL, data FROM " + TABLENAME_METRIC_CHUNKS +
+                " WHERE endTime >= ? AND startTime < ?)";
+    }
+
+    private String getRollupSearchByMetricQuery(Aggregation aggregation) {
+        String value;
+        switch (aggregation) {
+            case AVERAGE:
+                value = "sum(sum) / sum(count)";
+                break;
+            case MIN:
+                value = "min(min)";
+                break;
+            case MAX:
+                value = "max(max)";
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Aggregation %s is not supported.", aggregation));
         }
-        sbSamplesQuery.append("?)");
-        return sbSamplesQuery.toString();
+        return "SELECT (bucket / ?) * ? AS step, " + value + " FROM " + TABLENAME_METRIC_ROLLUPS +
+                " WHERE idMetric = ? AND resolution = ? AND bucket >= ? AND bucket < ? GROUP BY 1 ORDER BY 1";
+    }
+
+    /** A late sample older than the recorded one moves since back, a newer one is covered already. */
+    private String getLateUpsertQuery() {
+        return "INSERT INTO " + TABLENAME_ROLLUP_LATE + " (idMetric, since) SELECT * FROM " +
+                "unnest(CAST(? AS INTEGER[]), CAST(? AS BIGINT[])) " +
+                "ON CONFLICT (idMetric) DO UPDATE SET since = least(" + TABLENAME_ROLLUP_LATE + ".since, EXCLUDED.since)";
+    }
+
+    private String getLateSearchForUpdateQuery() {
+        return "SELECT idMetric, since FROM " + TABLENAME_ROLLUP_LATE + " ORDER BY idMetric FOR UPDATE";
+    }
+
+    private String getLateDeleteByMetricsQuery() {
+        return "DELETE FROM " + TABLENAME_ROLLUP_LATE + " WHERE idMetric = ANY (?)";
+    }
+
+    /** Like {@link #getSampleAndChunkAggregationQuery()}, per metric from the bucket of its since, chunks carry that start. */
+    private String getLateSampleAndChunkAggregationQuery() {
+        String late = "unnest(CAST(? AS INTEGER[]), CAST(? AS BIGINT[])) AS l(idMetric, since)";
+        return "(SELECT s.idMetric, (s.time / ?) * ? AS bucket, min(s.value), max(s.value), sum(s.value), count(*), " +
+                "NULL::BYTEA AS data, NULL::BIGINT AS start FROM " + getSampleSource() + " s JOIN " + late +
+                " ON s.idMetric = l.idMetric WHERE s.time >= (l.since / ?) * ? AND s.time < ? GROUP BY 1, 2) UNION ALL " +
+                "(SELECT c.idMetric, NULL, NULL, NULL, NULL, NULL, c.data, (l.since / ?) * ? FROM " + TABLENAME_METRIC_CHUNKS +
+                " c JOIN " + late + " ON c.idMetric = l.idMetric WHERE c.endTime >= (l.since / ?) * ? AND c.startTime < ?)";
+    }
+
+    /** Like {@link #getRollupFromTierQuery()}, per metric from the bucket of its since. */
+    private String getLateRollupFromTierQuery() {
+        return "INSERT INTO " + TABLENAME_METRIC_ROLLUPS + " (idMetric, resolution, bucket, min, max, sum, count) " +
+                "SELECT r.idMetric, ?, (r.bucket / ?) * ?, min(r.min), max(r.max), sum(r.sum), sum(r.count) FROM " +
+                TABLENAME_METRIC_ROLLUPS + " r JOIN unnest(CAST(? AS INTEGER[]), CAST(? AS BIGINT[])) AS l(idMetric, since) " +
+                "ON r.idMetric = l.idMetric WHERE r.resolution = ? AND r.bucket >= (l.since / ?) * ? AND r.bucket < ? " +
+                "GROUP BY 1, 3 " + getRollupConflictClause();
+    }
+
+    private String getWatermarkUpsertQuery() {
+        return "INSERT INTO " + TABLENAME_ROLLUP_WATERMARKS + " (resolution, watermark) VALUES (?, ?) " +
+                "ON CONFLICT (resolution) DO UPDATE SET watermark = EXCLUDED.watermark";
+    }
+
+    private String getChunkDeleteByMetricsQuery() {
+        return "DELETE FROM " + TABLENAME_METRIC_CHUNKS + " WHERE idMetric = ANY (?)";
+    }
+
+    private String getAggregatedSampleSearchByMetricQuery(Aggregation aggregation) {
+        return "SELECT (time / ?) * ? AS bucket, " + toSqlFunction(aggregation) + "(value) FROM " + getSampleSource() +
+                " WHERE idMetric = ? AND time > ? AND time < ? GROUP BY 1 ORDER BY 1";
+    }
+
+    private String toSqlFunction(Aggregation aggregation) {
+        switch (aggregation) {
+            case AVERAGE:
+                return "avg";
+            case MIN:
+                return "min";
+            case MAX:
+                return "max";
+            default:
+                throw new IllegalArgumentException(String.format("Aggregation %s is not supported.", aggregation));
+        }
+    }
+
+    /**
+     * Returns the relation samples are read from: {@value #TABLENAME_METRIC_SAMPLES}, extended by the samples in the
+     * legacy tables as long as these were not migrated yet. The legacy timestamps were written in the local time of
+     * the JVM.
+     */
+    private String getSampleSource() {
+        if (!legacyTablesPresent) {
+            return TABLENAME_METRIC_SAMPLES;
+        }
+        return "(SELECT idMetric, time, value FROM " + TABLENAME_METRIC_SAMPLES + " UNION ALL " +
+                "SELECT se.idMetric, (EXTRACT(EPOCH FROM sa.time AT TIME ZONE '" + TimeZone.getDefault().getID() +
+                "') * 1000)::BIGINT, sa.value FROM " + TABLENAME_SERIES + " se JOIN " + TABLENAME_SAMPLES +
+                " sa ON sa.id = se.idSample) AS legacy";
+    }
+
+    private String getSampleDeleteByMetricsQuery() {
+        return "DELETE FROM " + TABLENAME_METRIC_SAMPLES + " WHERE idMetric = ANY (?)";
+    }
+
+    /** Moves one chunk of SERIES rows, together with their SAMPLES rows, and returns the number of moved rows. */
+    private String getLegacyMigrationQuery() {
+        return "WITH moved AS (DELETE FROM " + TABLENAME_SERIES + " WHERE id IN (SELECT id FROM " + TABLENAME_SERIES +
+                " ORDER BY id LIMIT ?) RETURNING idMetric, idSample), " +
+                "copied AS (INSERT INTO " + TABLENAME_METRIC_SAMPLES + " (idMetric, time, value) SELECT m.idMetric, " +
+                "(EXTRACT(EPOCH FROM sa.time AT TIME ZONE '" + TimeZone.getDefault().getID() + "') * 1000)::BIGINT, " +
+                "sa.value FROM moved m JOIN " + TABLENAME_SAMPLES + " sa ON sa.id = m.idSample), " +
+                "removed AS (DELETE FROM " + TABLENAME_SAMPLES + " WHERE id IN (SELECT idSample FROM moved)) " +
+                "SELECT count(*) FROM moved";
+    }
+
+    /** Removes the SERIES rows of the metrics together with their SAMPLES rows. */
+    private String getLegacySampleDeleteByMetricsQuery() {
+        return "WITH series AS (DELETE FROM " + TABLENAME_SERIES + " WHERE idMetric = ANY (?) RETURNING idSample) " +
+                "DELETE FROM " + TABLENAME_SAMPLES + " WHERE id IN (SELECT idSample FROM series)";
+    }
+
+    private String getMetricDeleteQuery() {
+        return "DELETE FROM " + TABLENAME_METRICS + " WHERE id = ANY (?)";
     }
 
     private boolean doTablesExist(Connection connection) {
-        return isDatabaseTableFound(connection, TABLENAME_METRICS) && isDatabaseTableFound(connection, TABLENAME_SAMPLES)
-                && isDatabaseTableFound(connection, TABLENAME_SERIES);
+        return isDatabaseTableFound(connection, TABLENAME_METRICS)
+                && isDatabaseTableFound(connection, TABLENAME_METRIC_TAGS)
+                && isDatabaseTableFound(connection, TABLENAME_METRIC_SAMPLES)
+                && isDatabaseTableFound(connection, TABLENAME_METRIC_CHUNKS);
     }
 
     private boolean isDatabaseTableFound(Connection conn, String tableName) {
         Objects.requireNonNull(conn);
         try {
             DatabaseMetaData metaData = conn.getMetaData();
-            ResultSet tables = metaData.getTables(null, null, tableName, null);
-            ResultSet tables1 = metaData.getTables(null, null, tableName.toLowerCase(Locale.ROOT), null);
-            return tables.next() || tables1.next();
+            try (ResultSet tables = metaData.getTables(null, null, tableName, null)) {
+                if (tables.next()) {
+                    return true;
+                }
+            }
+            try (ResultSet tables = metaData.getTables(null, null, tableName.toLowerCase(Locale.ROOT), null)) {
+                return tables.next();
+            }
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -429,29 +2117,78 @@ public class DbManager {
 
     private void createTable(Connection connection, String query) throws SQLException {
         Objects.requireNonNull(connection);
-        Statement statement = connection.createStatement();
-        statement.executeUpdate(query);
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(query);
+        }
+    }
+
+    private Timer.Context time(String query) {
+        return metrics.timer("db." + query).time();
+    }
+
+    private interface PoolStatistic {
+        long get(PooledDataSource dataSource) throws SQLException;
+    }
+
+    private void registerPoolGauges(String prefix, Supplier<DbConnectionPoolingManager> pool) {
+        registerPoolGauge(prefix + "busy", pool, PooledDataSource::getNumBusyConnectionsDefaultUser);
+        registerPoolGauge(prefix + "idle", pool, PooledDataSource::getNumIdleConnectionsDefaultUser);
+        registerPoolGauge(prefix + "total", pool, PooledDataSource::getNumConnectionsDefaultUser);
+        registerPoolGauge(prefix + "waiting", pool, PooledDataSource::getNumThreadsAwaitingCheckoutDefaultUser);
+        registerPoolGauge(prefix + "failedCheckouts", pool, PooledDataSource::getNumFailedCheckoutsDefaultUser);
+        registerPoolGauge(prefix + "cachedStatements", pool, PooledDataSource::getStatementCacheNumStatementsDefaultUser);
     }
 
-    private Collection<Tag> convertStringToSet(String input) {
-        Set<Tag> result = new HashSet<>();
-        for (String tagStr : input.split(SEPARATOR_TAGS)) {
-            String[] tagParts = tagStr.split(SEPARATOR_TAG);
-            if (tagParts.length == 2) {
-                result.add(new ImmutableTag(tagParts[0], tagParts[1]));
+    private void registerPoolGauge(String name, Supplier<DbConnectionPoolingManager> pool, PoolStatistic statistic) {
+        metrics.remove(name);
+        metrics.register(name, (Gauge<Long>) () -> {
+            DbConnectionPoolingManager current = pool.get();
+            PooledDataSource dataSource = current == null ? null : current.dataSource;
+            if (dataSource == null) {
+                return 0L; // not yet initialized
             }
-        }
-        return result;
+            try {
+                return statistic.get(dataSource);
+            } catch (SQLException e) {
+                return -1L;
+            }
+        });
     }
 
-    private String convertSetToString(Set<Tag> tags) {
-        StringBuilder sb = new StringBuilder();
-        for (Tag tag : tags) {
-            sb.append(tag.getKey());
-            sb.append(SEPARATOR_TAG);
-            sb.append(tag.getValue());
-            sb.append(SEPARATOR_TAGS);
+    private Sample toSample(Metric metric, long time, double value) {
+        return ImmutableSample.builder()
+                .metric(metric)
+                .time(Instant.ofEpochMilli(time))
+                .value(value)
+                .build();
+    }
+
+    /** Builds the metric from a row of {@link #getMetricSearchQueryNoParams()}. */
+    private Metric toMetric(ResultSet resultSet) throws SQLException {
+        Set<Tag> intrinsicTags = new HashSet<>();
+        Set<Tag> metaTags = new HashSet<>();
+        Set<Tag> externalTags = new HashSet<>();
+        Array kinds = resultSet.getArray(3);
+        if (kinds != null) { // a metric without tags
+            Object[] kindValues = (Object[]) kinds.getArray();
+            Object[] keys = (Object[]) resultSet.getArray(4).getArray();
+            Object[] values = (Object[]) resultSet.getArray(5).getArray();
+            for (int i = 0; i < kindValues.length; i++) {
+                Tag tag = new ImmutableTag((String) keys[i], (String) values[i]);
+                String kind = kindValues[i].toString();
+                if (TAG_KIND_INTRINSIC.equals(kind)) {
+                    intrinsicTags.add(tag);
+                } else if (TAG_KIND_META.equals(kind)) {
+                    metaTags.add(tag);
+                } else {
+                    externalTags.add(tag);
+                }
+            }
         }
-        return sb.toString();
+        ImmutableMetric.MetricBuilder mBuilder = new ImmutableMetric.MetricBuilder();
+        mBuilder.intrinsicTags(intrinsicTags);
+        mBuilder.metaTags(metaTags);
+        mBuilder.externalTags(externalTags);
+        return mBuilder.build();
     }
-}
\ No newline at end of file
+}
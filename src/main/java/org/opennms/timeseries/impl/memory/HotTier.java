@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, thread safe tier of the most recent samples of the metrics read lately, in front of the database. Every
+ * metric gets a ring buffer of primitive arrays holding its latest samples in time order, together with the time
+ * from which on the buffer holds every sample of the metric: reads after that time don't need the database.
+ * <p>
+ * The samples are added once they were written to the database. A metric only gets a buffer after a read missed it,
+ * the buffer starts right after the latest sample which was in the database before, see {@link #admit(Collection)}.
+ * Once the tier grows beyond its budget, metrics which were not read lately are evicted following the CLOCK algorithm,
+ * like in {@link MetricCache}.
+ */
+public class HotTier {
+
+    public static final int DEFAULT_SAMPLES_PER_METRIC = 720;
+    public static final int DEFAULT_MAXIMUM_SIZE_MB = 256;
+
+    /** Rough size of a buffer without its samples: key, map entry and array headers. */
+    private static final int SERIES_OVERHEAD_BYTES = 128;
+    private static final int BYTES_PER_SAMPLE = 16;
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Upper bound of metrics waiting for a buffer, so reads of metrics which are never written can't grow it. */
+    private static final int MAXIMUM_WANTED = 100_000;
+
+    private static final int EPOCH_STRIPES = 256;
+
+    /** Ring buffer of the latest samples of one metric, ordered by time. */
+    static class Series {
+        private long[] times;
+        private double[] values;
+        private int head = 0; // position of the oldest sample
+        private int size = 0;
+        private final int maximumCapacity;
+        /** Every sample of the metric at or after this time is in the buffer. */
+        private long coveredFrom;
+        private boolean dropped = false;
+        private volatile boolean referenced = true;
+
+        private Series(int maximumCapacity, long coveredFrom) {
+            this.maximumCapacity = maximumCapacity;
+            this.coveredFrom = coveredFrom;
+            int capacity = Math.min(INITIAL_CAPACITY, maximumCapacity);
+            this.times = new long[capacity];
+            this.values = new double[capacity];
+        }
+
+        /** Adds the sample, returns the number of bytes the buffer grew. */
+        private synchronized long add(long time, double value) {
+            if (dropped || time < coveredFrom) {
+                return 0; // the buffer doesn't reach back that far, the sample is read from the database
+            }
+            long grown = 0;
+            if (size == times.length) {
+                if (times.length < maximumCapacity) {
+                    grown = grow();
+                } else if (time < times[head]) {
+                    coveredFrom = time + 1; // older than everything kept: give up the time up to it
+                    return 0;
+                } else {
+                    coveredFrom = times[head] + 1;
+                    head = (head + 1) % times.length;
+                    size--;
+                }
+            }
+            // samples mostly arrive in order: search backwards for the position
+            int position = size;
+            while (position > 0 && times[index(position - 1)] > time) {
+                times[index(position)] = times[index(position - 1)];
+                values[index(position)] = values[index(position - 1)];
+                position--;
+            }
+            times[index(position)] = time;
+            values[index(position)] = value;
+            size++;
+            return grown;
+        }
+
+        /** Hands the samples within (start, end) to the consumer and returns the time the buffer covers from. */
+        private synchronized long read(long start, long end, SampleConsumer consumer) {
+            for (int i = 0; i < size; i++) {
+                long time = times[index(i)];
+                if (time >= end) {
+                    break;
+                }
+                if (time > start) {
+                    consumer.accept(time, values[index(i)]);
+                }
+            }
+            return coveredFrom;
+        }
+
+        private synchronized void removeBefore(long time) {
+            while (size > 0 && times[head] < time) {
+                head = (head + 1) % times.length;
+                size--;
+            }
+        }
+
+        private synchronized long bytes() {
+            return SERIES_OVERHEAD_BYTES + (long) times.length * BYTES_PER_SAMPLE;
+        }
+
+        /** Stops the buffer from growing after it was removed from the tier, returns the bytes it held. */
+        private synchronized long drop() {
+            dropped = true;
+            return bytes();
+        }
+
+        private long grow() {
+            int capacity = Math.min(maximumCapacity, times.length * 2);
+            long[] grownTimes = new long[capacity];
+            double[] grownValues = new double[capacity];
+            for (int i = 0; i < size; i++) {
+                grownTimes[i] = times[index(i)];
+                grownValues[i] = values[index(i)];
+            }
+            long grown = (long) (capacity - times.length) * BYTES_PER_SAMPLE;
+            times = grownTimes;
+            values = grownValues;
+            head = 0;
+            return grown;
+        }
+
+        private int index(int i) {
+            return (head + i) % times.length;
+        }
+    }
+
+    /** Metrics which should get a buffer on their next write, see {@link #admit(Collection)}. */
+    public static class Admission {
+        private final Map<String, Integer> epochsByKey;
+
+        private Admission(Map<String, Integer> epochsByKey) {
+            this.epochsByKey = epochsByKey;
+        }
+
+        public Set<String> getKeys() {
+            return epochsByKey.keySet();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    private final Set<String> wanted = ConcurrentHashMap.newKeySet();
+    /**
+     * Incremented whenever a written sample of a metric without a buffer was not added, a buffer must not be created
+     * from a state of the database read before that.
+     */
+    private final AtomicIntegerArray epochs = new AtomicIntegerArray(EPOCH_STRIPES);
+    private final AtomicLong bytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private volatile int samplesPerMetric;
+    private volatile long maximumBytes;
+
+    public HotTier() {
+        this(DEFAULT_SAMPLES_PER_METRIC, DEFAULT_MAXIMUM_SIZE_MB * 1024L * 1024L);
+    }
+
+    public HotTier(int samplesPerMetric, long maximumBytes) {
+        setSamplesPerMetric(samplesPerMetric);
+        setMaximumBytes(maximumBytes);
+    }
+
+    /**
+     * Hands the samples of the metric within (start, end), both exclusive, to the consumer in time order and returns
+     * the time from which on these are all samples of the metric. Returns {@link Long#MAX_VALUE} if the metric has no
+     * buffer, the metric gets one on its next write then.
+     */
+    public long read(String key, long start, long end, SampleConsumer consumer) {
+        Series s = series.get(key);
+        if (s == null) {
+            if (wanted.size() < MAXIMUM_WANTED) {
+                wanted.add(key);
+            }
+            return Long.MAX_VALUE;
+        }
+        if (!s.referenced) {
+            s.referenced = true;
+        }
+        return s.read(start, end, consumer);
+    }
+
+    /**
+     * Returns the metrics of a batch about to be written which should get a buffer. The caller has to look up the
+     * time of their latest samples in the database before writing the batch and pass both to {@link #add}.
+     */
+    public Admission admit(Collection<String> keys) {
+        Map<String, Integer> epochsByKey = new HashMap<>();
+        for (String key : keys) {
+            if (wanted.contains(key) && !series.containsKey(key)) {
+                epochsByKey.put(key, epochs.get(stripe(key)));
+            }
+        }
+        return new Admission(epochsByKey);
+    }
+
+    /**
+     * Adds samples which were written to the database. The admitted metrics get a buffer covering the time after
+     * their latest sample in the database before the batch, absent if they had none, unless a sample of the metric
+     * bypassed the tier since it was admitted.
+     */
+    public void add(List<Sample> samples, Admission admission, Map<String, Long> latestTimes) {
+        for (Map.Entry<String, Integer> admitted : admission.epochsByKey.entrySet()) {
+            String key = admitted.getKey();
+            if (epochs.get(stripe(key)) == admitted.getValue()) {
+                Long latest = latestTimes.get(key);
+                Series created = new Series(samplesPerMetric, latest == null ? Long.MIN_VALUE : latest + 1);
+                if (series.putIfAbsent(key, created) == null) {
+                    bytes.addAndGet(created.bytes());
+                }
+            }
+            wanted.remove(key);
+        }
+        Set<String> bypassed = new HashSet<>();
+        for (Sample sample : samples) {
+            String key = sample.getMetric().getKey();
+            Series s = series.get(key);
+            if (s != null) {
+                bytes.addAndGet(s.add(sample.getTime().toEpochMilli(), sample.getValue()));
+            } else if (bypassed.add(key)) {
+                epochs.incrementAndGet(stripe(key));
+            }
+        }
+        if (bytes.get() > maximumBytes) {
+            evict();
+        }
+    }
+
+    /** Drops the buffer of the metric, e.g. because its samples were written without passing the tier. */
+    public void remove(String key) {
+        Series removed = series.remove(key);
+        epochs.incrementAndGet(stripe(key));
+        if (removed != null) {
+            bytes.addAndGet(-removed.drop());
+        }
+    }
+
+    /** Drops all samples before the given time, like the retention does in the database. */
+    public void removeBefore(long time) {
+        for (Series s : series.values()) {
+            s.removeBefore(time);
+        }
+    }
+
+    public void clear() {
+        wanted.clear();
+        for (String key : series.keySet()) {
+            remove(key);
+        }
+    }
+
+    public int size() {
+        return series.size();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public int getSamplesPerMetric() {
+        return samplesPerMetric;
+    }
+
+    public void setSamplesPerMetric(int samplesPerMetric) {
+        if (samplesPerMetric < 1) {
+            throw new IllegalArgumentException("samplesPerMetric must be positive but was " + samplesPerMetric);
+        }
+        this.samplesPerMetric = samplesPerMetric;
+    }
+
+    public long getMaximumBytes() {
+        return maximumBytes;
+    }
+
+    public void setMaximumBytes(long maximumBytes) {
+        if (maximumBytes < 1) {
+            throw new IllegalArgumentException("maximumBytes must be positive but was " + maximumBytes);
+        }
+        this.maximumBytes = maximumBytes;
+    }
+
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return; // someone else is already evicting
+        }
+        try {
+            // free some headroom so that we don't have to evict on every write
+            long target = maximumBytes - Math.max(1, maximumBytes / 10);
+            while (bytes.get() > target && !series.isEmpty()) {
+                Iterator<Map.Entry<String, Series>> it = series.entrySet().iterator();
+                while (it.hasNext() && bytes.get() > target) {
+                    Map.Entry<String, Series> entry = it.next();
+                    if (entry.getValue().referenced) {
+                        entry.getValue().referenced = false;
+                    } else {
+                        it.remove();
+                        bytes.addAndGet(-entry.getValue().drop());
+                    }
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % EPOCH_STRIPES;
+    }
+}
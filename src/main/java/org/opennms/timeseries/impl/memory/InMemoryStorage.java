@@ -28,44 +28,241 @@
 
 package org.opennms.timeseries.impl.memory;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import org.opennms.integration.api.v1.timeseries.*;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 public class InMemoryStorage implements TimeSeriesStorage {
 
+    public static final int DEFAULT_COPY_THRESHOLD = 5000;
+
+    public static final String ENGINE_POSTGRES = "postgres";
+    public static final String ENGINE_MEMORY = "memory";
+
+    public static final String FORMAT_ROWS = "rows";
+    public static final String FORMAT_CHUNKS = "chunks";
+
+    public static final int DEFAULT_WRITE_BEHIND_QUEUE_SIZE = 100_000;
+    public static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 5000;
+    public static final long DEFAULT_WRITE_BEHIND_LINGER_MILLIS = 100;
+    public static final int DEFAULT_WRITE_BEHIND_THREADS = 2;
+
+    public static final int DEFAULT_SPOOL_SEGMENT_SIZE_MB = 64;
+    public static final int DEFAULT_SPOOL_MAX_SIZE_MB = 1024;
+    public static final int DEFAULT_SPOOL_REPLAY_INTERVAL_SECONDS = 10;
+
+    public static final int DEFAULT_PARTITION_INTERVAL_HOURS = 24;
+
+    /** Number of partitions created ahead of the current one, so there is always a partition for new samples. */
+    static final int PARTITIONS_AHEAD = 3;
+
+    public static final String DEFAULT_ROLLUP_TIERS = "5m,1h";
+    public static final int DEFAULT_ROLLUP_DELAY_SECONDS = 300;
+
+    /** Largest time range of samples rolled up in one transaction. */
+    private static final long ROLLUP_MAX_SPAN_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** How often the partitions are created and the retention is applied. */
+    private static final long MAINTENANCE_INTERVAL_MINUTES = 60;
+
+    /** How long shutdown() waits for the write-behind queue to be written. */
+    private static final long WRITE_BEHIND_STOP_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * Metrics are looked up by name on every use instead of being kept in fields, so that {@link #resetMetrics()}
+     * can replace them.
+     */
     private final MetricRegistry metrics = new MetricRegistry();
-//    private final Meter samplesWritten = metrics.meter("samplesWritten");
 
     private final DbManager dbManager;
+    private final MetricCache metricCache = new MetricCache();
+    private final TagIndex tagIndex = new TagIndex();
+    private final QueryPlanner queryPlanner = new QueryPlanner();
+    private final OpenChunks openChunks = new OpenChunks();
+
+    /** Set if the data is kept on the heap only, all operations are delegated to it then. */
+    private MemoryEngine memoryEngine;
+
+    /** JDBC URLs of the databases the metrics are spread over, empty if everything is stored in the one at jdbcUrl. */
+    private List<String> shardJdbcUrls = Collections.emptyList();
+
+    /** Set once the shards are initialized, all operations are delegated to it then. */
+    private volatile ShardedStorage shardedStorage;
+
+    /** Batches with at least this many samples are written via COPY, 0 disables COPY. */
+    private int copyThreshold = DEFAULT_COPY_THRESHOLD;
+
+    /** Answer findMetrics() from the in memory tag index instead of scanning the METRICS table. */
+    private boolean tagIndexEnabled = true;
+
+    /** Store samples compressed in chunks instead of one row per sample. */
+    private boolean chunkedSamples = false;
+
+    private boolean writeBehindEnabled = false;
+    private int writeBehindQueueSize = DEFAULT_WRITE_BEHIND_QUEUE_SIZE;
+    private int writeBehindBatchSize = DEFAULT_WRITE_BEHIND_BATCH_SIZE;
+    private long writeBehindLingerMillis = DEFAULT_WRITE_BEHIND_LINGER_MILLIS;
+    private int writeBehindThreads = DEFAULT_WRITE_BEHIND_THREADS;
+    private WriteBehindQueue.Policy writeBehindPolicy = WriteBehindQueue.Policy.BLOCK;
+
+    /** Set if store() only queues the samples, see {@link #setWriteBehindEnabled(boolean)}. */
+    private volatile WriteBehindQueue writeBehindQueue;
+
+    private boolean spoolEnabled = false;
+    private String spoolDirectory = "";
+    private int spoolSegmentSizeMb = DEFAULT_SPOOL_SEGMENT_SIZE_MB;
+    private int spoolMaxSizeMb = DEFAULT_SPOOL_MAX_SIZE_MB;
+    private int spoolReplayIntervalSeconds = DEFAULT_SPOOL_REPLAY_INTERVAL_SECONDS;
+
+    /** Set if samples are spooled to disk while the database is unavailable, see {@link #setSpoolEnabled(boolean)}. */
+    private volatile SampleSpool spool;
+    private ScheduledExecutorService spoolReplayer;
+
+    private int partitionIntervalHours = DEFAULT_PARTITION_INTERVAL_HOURS;
+
+    /** Samples older than this many days are removed, 0 keeps them forever. */
+    private int retentionDays = 0;
+    private ScheduledExecutorService maintenance;
+
+    private boolean rollupEnabled = false;
+    private List<Long> rollupResolutions = Rollups.parseResolutions(DEFAULT_ROLLUP_TIERS);
+    private long rollupDelayMillis = TimeUnit.SECONDS.toMillis(DEFAULT_ROLLUP_DELAY_SECONDS);
+
+    /** Watermark of every rollup tier by its resolution, a tier is only read before its watermark. */
+    private final Map<Long, Long> rollupWatermarks = new ConcurrentHashMap<>();
+
+    /** Answer reads of recent samples from memory, see {@link HotTier}. */
+    private boolean hotTierEnabled = false;
+    private final HotTier hotTier = new HotTier();
 
     public InMemoryStorage() {
-        this.dbManager = new DbManager();
+        this.dbManager = new DbManager(this.metrics);
+        this.metrics.register("metricCache.size", (Gauge<Integer>) this.metricCache::size);
+        this.metrics.register("tagIndex.size", (Gauge<Integer>) this.tagIndex::size);
+        this.metrics.register("openChunks.size", (Gauge<Integer>) this.openChunks::size);
+        this.metrics.register("hotTier.size", (Gauge<Integer>) this.hotTier::size);
+        this.metrics.register("hotTier.bytes", (Gauge<Long>) this.hotTier::getBytes);
     }
 
+    /**
+     * Stores the samples. In write-behind mode they are only queued, a StorageException signals that the queue
+     * rejected them.
+     */
     @Override
-    public void store(final List<Sample> samples) {
-        Objects.requireNonNull(samples);
+    public void store(final List<Sample> samples) throws StorageException {
+        try (Timer.Context ignored = this.metrics.timer("store").time()) {
+            Objects.requireNonNull(samples);
+            this.metrics.histogram("store.batchSize").update(samples.size());
+            if (this.shardedStorage != null) {
+                this.shardedStorage.store(samples);
+                return;
+            }
+            WriteBehindQueue queue = this.writeBehindQueue;
+            if (queue == null || samples.isEmpty()) {
+                storeNow(samples);
+                return;
+            }
+            try {
+                // the database doesn't keep up: spool what doesn't fit into the queue anymore
+                if (!queue.offer(samples) && !spool(samples)) {
+                    throw new StorageException("The write-behind queue rejected " + samples.size() + " samples.");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StorageException("Interrupted while waiting for room in the write-behind queue.", e);
+            }
+        }
+    }
+
+    /**
+     * Writes the samples right away, called by store() or by the flushers of the write-behind queue.
+     * While the spool holds samples the database is unavailable or catching up, new samples are queued behind them.
+     * A StorageException signals that the samples could neither be written nor spooled.
+     */
+    private void storeNow(final List<Sample> samples) throws StorageException {
+        if (samples.isEmpty()) {
+            return;
+        }
+        if (this.memoryEngine != null) {
+            this.memoryEngine.store(samples);
+            this.metrics.meter("samplesWritten").mark(samples.size());
+            return;
+        }
+        SampleSpool currentSpool = this.spool;
+        if (currentSpool != null && !currentSpool.isEmpty()) {
+            if (!spool(samples)) {
+                throw new StorageException("The spool rejected " + samples.size() + " samples.");
+            }
+        } else if (!writeToDatabase(samples) && !spool(samples)) {
+            throw new StorageException("The database is unavailable, " + samples.size() + " samples were not stored.");
+        }
+    }
+
+    /** Sink of the write-behind queue, there is no caller left to report lost samples to. */
+    private void storeQueued(final List<Sample> samples) {
+        try {
+            storeNow(samples);
+        } catch (StorageException e) {
+            e.printStackTrace();
+            this.metrics.meter("writeBehind.lost").mark(samples.size());
+        }
+    }
+
+    /** Returns false if the samples could not be written because the database is unavailable. */
+    private boolean writeToDatabase(final List<Sample> samples) {
         Connection conn = null;
         try {
             conn = this.dbManager.getConnection();
-
-            for (Sample sample : samples) {
-                int idMetric = this.dbManager.findMetric(conn, sample.getMetric());
-                if (idMetric == -1) {
-                    idMetric = this.dbManager.addNewMetric(conn, sample.getMetric());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            this.metrics.counter("store.errors").inc();
+            return false;
+        }
+        try {
+            Map<String, Integer> idsByKey;
+            try {
+                idsByKey = storeBatch(conn, samples);
+            } catch (SQLException e) {
+                e.printStackTrace();
+                this.metrics.counter("store.errors").inc();
+                if (isConnectionError(e)) {
+                    return false;
                 }
-                int idSample = this.dbManager.addNewSample(conn, sample);
-                if (idMetric != -1 && idSample != -1) {
-                    this.dbManager.addNewTimeSerie(conn, idMetric, idSample);
+                // the batch failed as a whole: store what we can, sample by sample
+                try {
+                    this.metrics.meter("samplesWritten").mark(storeOneByOne(conn, samples));
+                } catch (SQLException connectionError) {
+                    connectionError.printStackTrace();
+                    return false; // the samples written so far are written again with the rest
                 }
+                return true; // these samples stay rows, they are read like any other row
+            }
+            this.metrics.meter("samplesWritten").mark(samples.size());
+            if (this.chunkedSamples) {
+                writeChunks(conn, this.openChunks.add(samples, idsByKey));
             }
         } catch (SQLException e) {
             e.printStackTrace();
+            this.metrics.counter("store.errors").inc();
         } finally {
             try {
                 this.dbManager.releaseConnection(conn);
@@ -73,83 +270,657 @@ public class InMemoryStorage implements TimeSeriesStorage {
                 e.printStackTrace();
             }
         }
+        return true;
     }
 
-    @Override
-    public List<Metric> findMetrics(Collection<TagMatcher> tagMatchers) {
-        Objects.requireNonNull(tagMatchers);
-        List<Metric> results = new ArrayList<>();
-        if (tagMatchers.isEmpty()) {
-            throw new IllegalArgumentException("We expect at least one TagMatcher but none was given.");
+    /** Appends the samples to the spool, returns false if they are lost. */
+    private boolean spool(final List<Sample> samples) {
+        SampleSpool currentSpool = this.spool;
+        if (currentSpool == null) {
+            return false;
         }
-        Connection conn = null;
         try {
-            conn = this.dbManager.getConnection();
-            List<Metric> metricsInDB = this.dbManager.findAllMetrics(conn);
-            results = metricsInDB.stream().filter(val -> matches(tagMatchers, val)).collect(Collectors.toList());
-        } catch (SQLException e) {
+            if (currentSpool.append(samples)) {
+                this.metrics.meter("spool.appended").mark(samples.size());
+                return true;
+            }
+            this.metrics.meter("spool.dropped").mark(samples.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.metrics.counter("spool.errors").inc();
+        }
+        return false;
+    }
+
+    /** Writes the spooled samples to the database until it fails again. */
+    private void replaySpool() {
+        SampleSpool currentSpool = this.spool;
+        if (currentSpool == null || currentSpool.isEmpty()) {
+            return;
+        }
+        try {
+            this.metrics.meter("spool.replayed").mark(currentSpool.replay(this::writeToDatabase));
+        } catch (IOException | RuntimeException e) {
             e.printStackTrace();
-            results.clear();
+            this.metrics.counter("spool.errors").inc();
         }
-        finally {
+    }
+
+    /** Connection problems and the server shutting down or starting up, as opposed to problems with the data. */
+    private static boolean isConnectionError(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || (state != null && (state.startsWith("08") || state.startsWith("57P")));
+    }
+
+    @Override
+    public List<Metric> findMetrics(Collection<TagMatcher> tagMatchers) throws StorageException {
+        try (Timer.Context ignored = this.metrics.timer("findMetrics").time()) {
+            Objects.requireNonNull(tagMatchers);
+            List<Metric> results = new ArrayList<>();
+            if (tagMatchers.isEmpty()) {
+                throw new IllegalArgumentException("We expect at least one TagMatcher but none was given.");
+            }
+            if (this.shardedStorage != null) {
+                return this.shardedStorage.findMetrics(tagMatchers);
+            }
+            if (this.memoryEngine != null) {
+                return this.memoryEngine.findMetrics(tagMatchers);
+            }
+            QueryPlanner.Plan plan = this.queryPlanner.compile(tagMatchers);
+            if (this.tagIndexEnabled && ensureTagIndex()) {
+                return this.tagIndex.find(plan);
+            }
+            Connection conn = null;
             try {
-                this.dbManager.releaseConnection(conn);
+                conn = this.dbManager.getReadConnection(DbManager.ANY_COMMIT);
+                results = this.dbManager.findMetrics(conn, plan);
             } catch (SQLException e) {
                 e.printStackTrace();
+                this.metrics.counter("findMetrics.errors").inc();
                 results.clear();
             }
+            finally {
+                try {
+                    this.dbManager.releaseConnection(conn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    results.clear();
+                }
+            }
+            return results;
         }
-        return results;
     }
 
     @Override
-    public List<Sample> getTimeseries(TimeSeriesFetchRequest request) {
-        Objects.requireNonNull(request);
-        List<Sample> results = new ArrayList<>();
-        if (request.getAggregation() != Aggregation.NONE) {
-            throw new IllegalArgumentException(String.format("Aggregation %s is not supported.", request.getAggregation()));
+    public List<Sample> getTimeseries(TimeSeriesFetchRequest request) throws StorageException {
+        try (Timer.Context ignored = this.metrics.timer("getTimeseries").time()) {
+            Objects.requireNonNull(request);
+            if (this.shardedStorage != null) {
+                return this.shardedStorage.getTimeseries(request);
+            }
+            if (this.memoryEngine != null) {
+                List<Sample> samples = this.memoryEngine.getTimeseries(request);
+                this.metrics.meter("samplesRead").mark(samples.size());
+                return samples;
+            }
+            SampleBuffer hot = new SampleBuffer();
+            long coveredFrom = readHotTier(request, hot);
+            if (coveredFrom <= request.getStart().toEpochMilli() + 1) {
+                List<Sample> samples = toResults(cachedMetric(request.getMetric()), request, hot, coveredFrom);
+                this.metrics.meter("samplesRead").mark(samples.size());
+                return samples;
+            }
+            List<Sample> results = new ArrayList<>();
+
+            Connection conn = null;
+            try {
+                conn = this.dbManager.getReadConnection(committedAt(Collections.singletonList(request.getMetric())));
+                MetricCache.Entry entry = resolveMetric(conn, request.getMetric());
+                if (entry != null) {
+                    if (coveredFrom < request.getEnd().toEpochMilli()) {
+                        results = readStraddling(conn, entry, request, hot, coveredFrom);
+                    } else if (request.getAggregation() != Aggregation.NONE) {
+                        results = readAggregated(conn, entry, request.getStart().toEpochMilli(),
+                                request.getEnd().toEpochMilli(), getStepMillis(request), request.getAggregation());
+                    } else {
+                        results = readSamples(conn, entry, request);
+                    }
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                this.metrics.counter("getTimeseries.errors").inc();
+                results.clear();
+            }
+            finally {
+                try {
+                    this.dbManager.releaseConnection(conn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    results.clear();
+                }
+            }
+            this.metrics.meter("samplesRead").mark(results.size());
+            return results;
+        }
+    }
+
+    /**
+     * Fetches the samples of many requests, e.g. all lines of a graph, on one connection with a handful of queries: one
+     * for the metrics missing in the cache, one for the raw samples of all requests without aggregation (and of all
+     * aggregated requests if the samples are stored as chunks) and one per aggregation function. Aggregated requests
+     * for which a rollup tier qualifies are read like single requests. Requests covered completely by the hot tier don't
+     * go to the database at all. Returns the samples in the order of the requests.
+     */
+    public List<List<Sample>> getTimeseries(List<TimeSeriesFetchRequest> requests) throws StorageException {
+        try (Timer.Context ignored = this.metrics.timer("getTimeseriesBatch").time()) {
+            Objects.requireNonNull(requests);
+            if (this.shardedStorage != null) {
+                return this.shardedStorage.getTimeseries(requests);
+            }
+            List<List<Sample>> results = new ArrayList<>(requests.size());
+            if (this.memoryEngine != null) {
+                for (TimeSeriesFetchRequest request : requests) {
+                    results.add(this.memoryEngine.getTimeseries(request));
+                }
+                this.metrics.meter("samplesRead").mark(results.stream().mapToLong(List::size).sum());
+                return results;
+            }
+            // requests covered by the hot tier are answered from memory, all others completely from the database
+            List<TimeSeriesFetchRequest> missed = new ArrayList<>();
+            BitSet hits = new BitSet(requests.size());
+            for (TimeSeriesFetchRequest request : requests) {
+                SampleBuffer hot = new SampleBuffer();
+                long coveredFrom = readHotTier(request, hot);
+                if (coveredFrom <= request.getStart().toEpochMilli() + 1) {
+                    hits.set(results.size());
+                    results.add(toResults(cachedMetric(request.getMetric()), request, hot, coveredFrom));
+                } else {
+                    missed.add(request);
+                    results.add(new ArrayList<>());
+                }
+            }
+            if (missed.isEmpty()) {
+                this.metrics.meter("samplesRead").mark(results.stream().mapToLong(List::size).sum());
+                return results;
+            }
+
+            Connection conn = null;
+            try {
+                List<Metric> missedMetrics = missed.stream().map(TimeSeriesFetchRequest::getMetric).collect(Collectors.toList());
+                conn = this.dbManager.getReadConnection(committedAt(missedMetrics));
+                Map<String, MetricCache.Entry> entries = resolveMetrics(conn, missedMetrics);
+                List<Integer> raw = new ArrayList<>();
+                Map<Aggregation, List<Integer>> aggregated = new EnumMap<>(Aggregation.class);
+                for (int i = 0; i < requests.size(); i++) {
+                    TimeSeriesFetchRequest request = requests.get(i);
+                    MetricCache.Entry entry = entries.get(request.getMetric().getKey());
+                    if (hits.get(i) || entry == null) {
+                        continue;
+                    }
+                    if (request.getAggregation() == Aggregation.NONE || this.chunkedSamples) {
+                        raw.add(i);
+                    } else if (this.rollupEnabled && Rollups.chooseResolution(this.rollupResolutions, getStepMillis(request)) > 0) {
+                        results.set(i, readAggregated(conn, entry, request.getStart().toEpochMilli(),
+                                request.getEnd().toEpochMilli(), getStepMillis(request), request.getAggregation()));
+                    } else {
+                        aggregated.computeIfAbsent(request.getAggregation(), a -> new ArrayList<>()).add(i);
+                    }
+                }
+
+                Map<Integer, BucketAggregator> aggregators = new HashMap<>();
+                SampleConsumer[] consumers = new SampleConsumer[raw.size()];
+                for (int j = 0; j < raw.size(); j++) {
+                    TimeSeriesFetchRequest request = requests.get(raw.get(j));
+                    Metric metric = entries.get(request.getMetric().getKey()).getMetric();
+                    if (request.getAggregation() == Aggregation.NONE) {
+                        consumers[j] = collector(metric, results.get(raw.get(j)));
+                    } else {
+                        BucketAggregator aggregator = new BucketAggregator(metric, getStepMillis(request), request.getAggregation());
+                        aggregators.put(raw.get(j), aggregator);
+                        consumers[j] = aggregator;
+                    }
+                }
+                this.dbManager.streamSamples(conn, ids(raw, requests, entries), starts(raw, requests), ends(raw, requests), consumers);
+                aggregators.forEach((i, aggregator) -> results.set(i, aggregator.getResults()));
+
+                for (Map.Entry<Aggregation, List<Integer>> group : aggregated.entrySet()) {
+                    List<Integer> indexes = group.getValue();
+                    SampleConsumer[] bucketConsumers = new SampleConsumer[indexes.size()];
+                    long[] steps = new long[indexes.size()];
+                    for (int j = 0; j < indexes.size(); j++) {
+                        TimeSeriesFetchRequest request = requests.get(indexes.get(j));
+                        bucketConsumers[j] = collector(entries.get(request.getMetric().getKey()).getMetric(), results.get(indexes.get(j)));
+                        steps[j] = getStepMillis(request);
+                    }
+                    this.dbManager.streamAggregatedSamples(conn, ids(indexes, requests, entries), starts(indexes, requests),
+                            ends(indexes, requests), steps, group.getKey(), bucketConsumers);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                this.metrics.counter("getTimeseriesBatch.errors").inc();
+                results.forEach(List::clear);
+            }
+            finally {
+                try {
+                    this.dbManager.releaseConnection(conn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    results.forEach(List::clear);
+                }
+            }
+            this.metrics.meter("samplesRead").mark(results.stream().mapToLong(List::size).sum());
+            return results;
+        }
+    }
+
+    @Override
+    public boolean supportsAggregation(Aggregation aggregation) {
+        return true; // NONE, AVERAGE, MIN and MAX are all computed by the database
+    }
+
+    @Override
+    public void delete(Metric metric) throws StorageException {
+        try (Timer.Context ignored = this.metrics.timer("delete").time()) {
+            Objects.requireNonNull(metric);
+            if (this.shardedStorage != null) {
+                this.shardedStorage.delete(metric);
+                return;
+            }
+            if (this.memoryEngine != null) {
+                this.memoryEngine.delete(metric);
+                return;
+            }
+            Connection conn = null;
+            try {
+                conn = this.dbManager.getConnection();
+                MetricCache.Entry entry = resolveMetric(conn, metric);
+                if (entry != null) {
+                    this.dbManager.deleteMetrics(conn, Collections.singletonList(entry.getId()));
+                    forgetMetric(metric.getKey(), entry.getId());
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                this.metrics.counter("delete.errors").inc();
+            }
+            finally {
+                try {
+                    this.dbManager.releaseConnection(conn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes all metrics matched by the tag matchers, see {@link #findMetrics(Collection)}, together with their
+     * samples. The metrics are deleted in chunks, every chunk in its own transaction: if deleting fails, the metrics
+     * of the chunks before are deleted completely. Returns the number of deleted metrics.
+     */
+    public int delete(Collection<TagMatcher> tagMatchers) throws StorageException {
+        try (Timer.Context ignored = this.metrics.timer("deleteMatching").time()) {
+            if (this.shardedStorage != null) {
+                return this.shardedStorage.delete(tagMatchers);
+            }
+            List<Metric> matches = findMetrics(tagMatchers);
+            if (this.memoryEngine != null) {
+                for (Metric metric : matches) {
+                    this.memoryEngine.delete(metric);
+                }
+                return matches.size();
+            }
+            Connection conn = null;
+            try {
+                conn = this.dbManager.getConnection();
+                int deleted = 0;
+                // resolve and delete chunk by chunk, so neither the ids nor the statements grow with the matches
+                for (int from = 0; from < matches.size(); from += DbManager.DELETE_BATCH_SIZE) {
+                    List<String> keys = new ArrayList<>();
+                    for (Metric metric : matches.subList(from, Math.min(from + DbManager.DELETE_BATCH_SIZE, matches.size()))) {
+                        keys.add(metric.getKey());
+                    }
+                    Map<String, Integer> idsByKey = this.dbManager.findMetricIds(conn, keys);
+                    deleted += this.dbManager.deleteMetrics(conn, new ArrayList<>(idsByKey.values()));
+                    for (Map.Entry<String, Integer> entry : idsByKey.entrySet()) {
+                        forgetMetric(entry.getKey(), entry.getValue());
+                    }
+                }
+                return deleted;
+            } catch (SQLException e) {
+                this.metrics.counter("deleteMatching.errors").inc();
+                throw new StorageException("Deleting the metrics matching " + tagMatchers + " failed.", e);
+            } finally {
+                try {
+                    this.dbManager.releaseConnection(conn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the raw samples of the metric within (start, end), both exclusive, to the consumer in time order without
+     * collecting them, e.g. for bulk exports. The samples are read through a server side cursor, so the memory needed
+     * doesn't depend on the length of the series. The consumer should be quick: it holds a database connection, with
+     * engine=memory the lock of the series.
+     */
+    public void streamTimeseries(Metric metric, Instant start, Instant end, SampleConsumer consumer) throws StorageException {
+        try (Timer.Context ignored = this.metrics.timer("streamTimeseries").time()) {
+            Objects.requireNonNull(metric);
+            Objects.requireNonNull(start);
+            Objects.requireNonNull(end);
+            Objects.requireNonNull(consumer);
+            if (this.shardedStorage != null) {
+                this.shardedStorage.streamTimeseries(metric, start, end, consumer);
+                return;
+            }
+            long[] count = new long[1];
+            SampleConsumer counting = (time, value) -> {
+                count[0]++;
+                consumer.accept(time, value);
+            };
+            if (this.memoryEngine != null) {
+                this.memoryEngine.read(metric, start.toEpochMilli(), end.toEpochMilli(), counting);
+                this.metrics.meter("samplesRead").mark(count[0]);
+                return;
+            }
+            Connection conn = null;
+            try {
+                conn = this.dbManager.getReadConnection(committedAt(Collections.singletonList(metric)));
+                MetricCache.Entry entry = resolveMetric(conn, metric);
+                if (entry != null) {
+                    this.dbManager.streamSamples(conn, entry.getId(), start, end, counting);
+                }
+            } catch (SQLException e) {
+                this.metrics.counter("streamTimeseries.errors").inc();
+                throw new StorageException("Reading the samples of " + metric.getKey() + " failed.", e);
+            } finally {
+                this.metrics.meter("samplesRead").mark(count[0]);
+                try {
+                    this.dbManager.releaseConnection(conn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the latest sample of each of the metrics, in the order of the metrics, metrics without samples are left
+     * out. The latest sample of every metric is kept up to date on each write, in METRIC_LATEST and for cached metrics
+     * in memory, so the cost per metric doesn't depend on the length of its series: cached metrics are answered from
+     * memory, all others with one lookup by primary key.
+     */
+    public List<Sample> getLatestSamples(Collection<Metric> metrics) throws StorageException {
+        try (Timer.Context ignored = this.metrics.timer("getLatestSamples").time()) {
+            Objects.requireNonNull(metrics);
+            if (this.shardedStorage != null) {
+                return this.shardedStorage.getLatestSamples(metrics);
+            }
+            Map<String, Sample> latestByKey = new HashMap<>();
+            if (this.memoryEngine != null) {
+                for (Metric metric : metrics) {
+                    Sample latest = this.memoryEngine.getLatestSample(metric);
+                    if (latest != null) {
+                        latestByKey.put(metric.getKey(), latest);
+                    }
+                }
+                return inOrder(metrics, latestByKey);
+            }
+
+            List<Metric> missing = new ArrayList<>();
+            for (Metric metric : metrics) {
+                MetricCache.Entry entry = this.metricCache.get(metric.getKey());
+                if (entry == null || !entry.readLatest((time, value) -> latestByKey.put(metric.getKey(), ImmutableSample.builder()
+                        .metric(entry.getMetric())
+                        .time(Instant.ofEpochMilli(time))
+                        .value(value)
+                        .build()))) {
+                    missing.add(metric);
+                }
+            }
+            this.metrics.meter("latest.hits").mark(metrics.size() - missing.size());
+            this.metrics.meter("latest.misses").mark(missing.size());
+            if (missing.isEmpty()) {
+                return inOrder(metrics, latestByKey);
+            }
+
+            Connection conn = null;
+            try {
+                // a latest sample read from a lagging replica would be kept in memory
+                conn = this.dbManager.getReadConnection(DbManager.LATEST_COMMIT);
+                Map<Integer, Metric> metricsById = new HashMap<>();
+                Map<MetricCache.Entry, Long> writes = new HashMap<>();
+                for (MetricCache.Entry entry : resolveMetrics(conn, missing).values()) {
+                    metricsById.put(entry.getId(), entry.getMetric());
+                    writes.put(entry, entry.getLatestWrites());
+                }
+                for (Sample latest : this.dbManager.findLatestSamples(conn, metricsById)) {
+                    latestByKey.put(latest.getMetric().getKey(), latest);
+                }
+                // the next reads of these metrics are answered from memory
+                writes.forEach((entry, token) -> entry.loadLatest(token, latestByKey.get(entry.getMetric().getKey())));
+            } catch (SQLException e) {
+                this.metrics.counter("getLatestSamples.errors").inc();
+                throw new StorageException("Reading the latest samples failed.", e);
+            } finally {
+                try {
+                    this.dbManager.releaseConnection(conn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+            return inOrder(metrics, latestByKey);
+        }
+    }
+
+    /** Returns the latest sample of each metric matched by the tag matchers, see {@link #getLatestSamples(Collection)}. */
+    public List<Sample> findLatestSamples(Collection<TagMatcher> tagMatchers) throws StorageException {
+        return getLatestSamples(findMetrics(tagMatchers));
+    }
+
+    /**
+     * Returns the time of the latest commit of samples of the metrics, a read of them has to see it. Metrics which are
+     * not cached were not written lately.
+     */
+    private long committedAt(final Collection<Metric> metrics) {
+        long committedAt = DbManager.ANY_COMMIT;
+        for (Metric metric : metrics) {
+            MetricCache.Entry entry = this.metricCache.get(metric.getKey());
+            if (entry != null) {
+                committedAt = Math.max(committedAt, entry.getCommittedAt());
+            }
+        }
+        return committedAt;
+    }
+
+    private static List<Sample> inOrder(Collection<Metric> metrics, Map<String, Sample> samplesByKey) {
+        List<Sample> samples = new ArrayList<>(samplesByKey.size());
+        for (Metric metric : metrics) {
+            Sample sample = samplesByKey.remove(metric.getKey()); // once per metric, even if it was asked for twice
+            if (sample != null) {
+                samples.add(sample);
+            }
+        }
+        return samples;
+    }
+
+    /** Drops everything kept in memory about a deleted metric. */
+    private void forgetMetric(String key, int idMetric) {
+        this.openChunks.remove(idMetric);
+        this.metricCache.remove(key);
+        this.tagIndex.remove(key);
+        this.hotTier.remove(key);
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getName();
+    }
+
+    public void initialize() throws SQLException {
+        if (!this.shardJdbcUrls.isEmpty() && this.memoryEngine == null) {
+            if (this.shardedStorage == null) {
+                List<InMemoryStorage> shards = new ArrayList<>();
+                for (int i = 0; i < this.shardJdbcUrls.size(); i++) {
+                    shards.add(newShard(i, this.shardJdbcUrls.get(i)));
+                }
+                ShardedStorage sharded = new ShardedStorage(this.shardJdbcUrls, shards, this.metrics);
+                sharded.initialize();
+                this.shardedStorage = sharded;
+            }
+            return;
+        }
+        if (this.writeBehindEnabled) {
+            this.writeBehindQueue = new WriteBehindQueue(this.writeBehindQueueSize, this.writeBehindBatchSize,
+                    this.writeBehindLingerMillis, this.writeBehindPolicy, this.writeBehindThreads, this::storeQueued,
+                    this.metrics);
+            this.writeBehindQueue.start();
+        }
+        if (this.memoryEngine != null) {
+            return;
         }
+        if (this.spoolEnabled) {
+            openSpool();
+        }
+        this.dbManager.initialize();
+        loadMetrics();
+        boolean maintainPartitions = this.dbManager.isPartitioned() || this.retentionDays > 0;
+        if (maintainPartitions) {
+            runMaintenance(); // the partitions for the samples to come have to exist before they are stored
+        }
+        if (this.rollupEnabled) {
+            loadRollupWatermarks();
+            this.metrics.remove("rollups.lagMillis");
+            this.metrics.register("rollups.lagMillis", (Gauge<Long>) () -> {
+                Long watermark = this.rollupWatermarks.get(this.rollupResolutions.get(0));
+                return watermark == null ? -1 : System.currentTimeMillis() - watermark;
+            });
+        }
+        if (this.maintenance != null || (!maintainPartitions && !this.rollupEnabled)) {
+            return;
+        }
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tss-inmemory-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (maintainPartitions) {
+            this.maintenance.scheduleWithFixedDelay(this::runMaintenance, MAINTENANCE_INTERVAL_MINUTES,
+                    MAINTENANCE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
+        if (this.rollupEnabled) {
+            this.maintenance.scheduleWithFixedDelay(this::runRollups, 0, this.rollupResolutions.get(0), TimeUnit.MILLISECONDS);
+        }
+    }
 
+    /**
+     * Computes the rollup tiers up to now minus the rollup delay, continuing at the watermark of every tier, so no
+     * sample is rolled up twice. At most a day is rolled up per transaction, the first run works through the whole
+     * history this way. Buckets behind the watermarks which got samples later, e.g. replayed from the spool, are
+     * computed again. Runs every resolution of the first tier, can be called any time.
+     */
+    public synchronized void runRollups() {
+        if (this.shardedStorage != null) {
+            this.shardedStorage.runRollups();
+            return;
+        }
+        if (this.memoryEngine != null || !this.rollupEnabled) {
+            return;
+        }
         Connection conn = null;
         try {
             conn = this.dbManager.getConnection();
-            int idMetric = this.dbManager.findMetric(conn, request.getMetric());
-            if (idMetric != -1) {
-                Metric metric = this.dbManager.findMetric(conn, request.getMetric().getKey());
-                List<Sample> samples = this.dbManager.findSamplesForMetric(conn, metric, idMetric);
-                results = samples.stream().filter(val -> (val.getTime().isAfter(request.getStart()) && val.getTime().isBefore(request.getEnd()))).collect(Collectors.toList());
+            Long firstSampleTime = null;
+            boolean firstSampleTimeLoaded = false;
+            // every tier is computed up to where the source is complete: the samples up to the delay, the tier before
+            long sourceWatermark = System.currentTimeMillis() - this.rollupDelayMillis;
+            long sourceResolution = 0;
+            for (long resolution : this.rollupResolutions) {
+                long end = Math.floorDiv(sourceWatermark, resolution) * resolution;
+                Long watermark = this.rollupWatermarks.get(resolution);
+                if (watermark == null) {
+                    if (!firstSampleTimeLoaded) {
+                        firstSampleTime = this.dbManager.findFirstSampleTime(conn);
+                        firstSampleTimeLoaded = true;
+                    }
+                    watermark = firstSampleTime == null ? end : Math.floorDiv(firstSampleTime, resolution) * resolution;
+                    this.rollupWatermarks.put(resolution, watermark);
+                }
+                long span = Math.max(resolution, ROLLUP_MAX_SPAN_MILLIS / resolution * resolution);
+                while (watermark < end) {
+                    long to = Math.min(watermark + span, end);
+                    int buckets = sourceResolution == 0
+                            ? this.dbManager.rollupSamples(conn, resolution, watermark, to)
+                            : this.dbManager.rollupTier(conn, resolution, sourceResolution, watermark, to);
+                    this.metrics.meter("rollups.buckets").mark(buckets);
+                    watermark = to;
+                    this.rollupWatermarks.put(resolution, watermark);
+                }
+                sourceWatermark = watermark;
+                sourceResolution = resolution;
             }
+            this.metrics.meter("rollups.lateMetrics").mark(
+                    this.dbManager.rollupLateSamples(conn, this.rollupResolutions, this.rollupWatermarks));
         } catch (SQLException e) {
             e.printStackTrace();
-            results.clear();
+            this.metrics.counter("rollups.errors").inc();
+        } finally {
+            try {
+                this.dbManager.releaseConnection(conn);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
         }
-        finally {
+    }
+
+    private void loadRollupWatermarks() {
+        Connection conn = null;
+        try {
+            conn = this.dbManager.getConnection();
+            this.rollupWatermarks.clear();
+            this.rollupWatermarks.putAll(this.dbManager.findRollupWatermarks(conn));
+        } catch (SQLException e) {
+            e.printStackTrace();
+            this.metrics.counter("rollups.errors").inc();
+        } finally {
             try {
                 this.dbManager.releaseConnection(conn);
             } catch (SQLException e) {
                 e.printStackTrace();
-                results.clear();
             }
         }
-        return results;
     }
 
-    @Override
-    public void delete(Metric metric) {
-        Objects.requireNonNull(metric);
+    /**
+     * Creates the partitions ahead of time and removes the samples and rollups older than the retention period. Runs
+     * once per hour, can be called any time.
+     */
+    public void runMaintenance() {
+        if (this.shardedStorage != null) {
+            this.shardedStorage.runMaintenance();
+            return;
+        }
+        if (this.memoryEngine != null) {
+            return;
+        }
         Connection conn = null;
         try {
             conn = this.dbManager.getConnection();
-            int idMetric = this.dbManager.findMetric(conn, metric);
-            if (idMetric != -1) {
-                List<Integer> idSamples = this.dbManager.deleteSeriesForMetric(conn, idMetric);
-                this.dbManager.deleteSamples(conn, idSamples);
-                this.dbManager.deleteMetric(conn, idMetric);
+            long now = System.currentTimeMillis();
+            this.metrics.counter("partitions.created").inc(this.dbManager.createPartitions(conn, now,
+                    TimeUnit.HOURS.toMillis(this.partitionIntervalHours), PARTITIONS_AHEAD).size());
+            if (this.retentionDays > 0) {
+                long cutoff = now - TimeUnit.DAYS.toMillis(this.retentionDays);
+                this.metrics.counter("partitions.dropped").inc(this.dbManager.applyRetention(conn, cutoff).size());
+                this.hotTier.removeBefore(cutoff);
             }
         } catch (SQLException e) {
             e.printStackTrace();
-        }
-        finally {
+            this.metrics.counter("maintenance.errors").inc();
+        } finally {
             try {
                 this.dbManager.releaseConnection(conn);
             } catch (SQLException e) {
@@ -158,53 +929,899 @@ public class InMemoryStorage implements TimeSeriesStorage {
         }
     }
 
-    @Override
-    public String toString() {
-        return this.getClass().getName();
+    /**
+     * Writes the samples still waiting in the write-behind queue and the open chunks, whose samples would remain
+     * uncompressed rows otherwise, and closes the spool and the connection pool.
+     */
+    public void shutdown() {
+        ShardedStorage sharded = this.shardedStorage;
+        if (sharded != null) {
+            this.shardedStorage = null;
+            sharded.shutdown();
+            return;
+        }
+        WriteBehindQueue queue = this.writeBehindQueue;
+        if (queue != null) {
+            this.writeBehindQueue = null;
+            queue.stop(WRITE_BEHIND_STOP_TIMEOUT_MILLIS);
+        }
+        if (this.spoolReplayer != null) {
+            this.spoolReplayer.shutdownNow();
+            try {
+                this.spoolReplayer.awaitTermination(WRITE_BEHIND_STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.spoolReplayer = null;
+        }
+        if (this.maintenance != null) {
+            this.maintenance.shutdownNow();
+            this.maintenance = null;
+        }
+        if (this.memoryEngine == null && this.chunkedSamples) {
+            Connection conn = null;
+            try {
+                conn = this.dbManager.getConnection();
+                writeChunks(conn, this.openChunks.sealAll());
+            } catch (SQLException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    this.dbManager.releaseConnection(conn);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        SampleSpool currentSpool = this.spool;
+        if (currentSpool != null) {
+            this.spool = null;
+            currentSpool.close(); // what is still spooled is replayed on the next start
+            this.metrics.remove("spool.pendingBytes");
+        }
+        this.dbManager.close();
     }
 
-    public void initialize() throws SQLException {
-        this.dbManager.initialize();
+    /** Opens the spool and replays what is left from the last run, then keeps replaying in the background. */
+    private void openSpool() {
+        Path directory = getSpoolDirectory();
+        try {
+            this.spool = new SampleSpool(directory, this.spoolSegmentSizeMb * 1024 * 1024,
+                    this.spoolMaxSizeMb * 1024L * 1024L);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        this.metrics.remove("spool.pendingBytes");
+        this.metrics.register("spool.pendingBytes", (Gauge<Long>) this.spool::getPendingBytes);
+        this.spoolReplayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tss-inmemory-spool-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.spoolReplayer.scheduleWithFixedDelay(this::replaySpool, 0, this.spoolReplayIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private Path getSpoolDirectory() {
+        return this.spoolDirectory == null || this.spoolDirectory.trim().isEmpty()
+                ? Paths.get(System.getProperty("karaf.data", System.getProperty("java.io.tmpdir")), "tss-inmemory-spool")
+                : Paths.get(this.spoolDirectory.trim());
     }
 
     public void dropTables() throws SQLException {
+        if (this.shardedStorage != null) {
+            this.shardedStorage.dropTables();
+            return;
+        }
+        if (this.memoryEngine != null) {
+            this.memoryEngine.clear();
+            return;
+        }
+        this.metricCache.clear();
+        this.tagIndex.clear();
+        this.openChunks.clear();
+        this.rollupWatermarks.clear();
+        this.hotTier.clear();
         this.dbManager.dropTables();
     }
 
-    public MetricRegistry getMetrics() {
-        return metrics;
+    public void setMetricCacheSize(int metricCacheSize) {
+        this.metricCache.setMaximumSize(metricCacheSize);
     }
 
-    /** Each matcher must be matched by at least one tag. */
-    private boolean matches(final Collection<TagMatcher> matchers, final Metric metric) {
-        final Set<Tag> searchableTags = new HashSet<>(metric.getIntrinsicTags());
-        searchableTags.addAll(metric.getMetaTags());
+    public void setCopyThreshold(int copyThreshold) {
+        this.copyThreshold = copyThreshold;
+    }
 
-        for (TagMatcher matcher : matchers) {
-            if (searchableTags.stream().noneMatch(t -> this.matches(matcher, t))) {
-                return false; // this TagMatcher didn't find any matching tag => this Metric is not part of search result;
-            }
+    /** Selects where the data is kept: {@value #ENGINE_POSTGRES} (default) or {@value #ENGINE_MEMORY}. */
+    public void setEngine(String engine) {
+        if (ENGINE_MEMORY.equals(engine)) {
+            this.memoryEngine = new MemoryEngine();
+        } else if (ENGINE_POSTGRES.equals(engine)) {
+            this.memoryEngine = null;
+        } else {
+            throw new IllegalArgumentException("Unknown engine " + engine + ", expected " + ENGINE_POSTGRES + " or " + ENGINE_MEMORY);
         }
-        return true; // all matched
     }
 
-    private boolean matches(final TagMatcher matcher, final Tag tag) {
-
-        if (!matcher.getKey().equals(tag.getKey())) {
-            return false; // not even the key matches => we are done.
+    /** Selects how samples are stored: {@value #FORMAT_ROWS} (default) or compressed {@value #FORMAT_CHUNKS}. */
+    public void setStorageFormat(String storageFormat) {
+        if (FORMAT_CHUNKS.equals(storageFormat)) {
+            this.chunkedSamples = true;
+        } else if (FORMAT_ROWS.equals(storageFormat)) {
+            this.chunkedSamples = false;
+        } else {
+            throw new IllegalArgumentException("Unknown storage format " + storageFormat + ", expected " + FORMAT_ROWS + " or " + FORMAT_CHUNKS);
+        }
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.openChunks.setChunkSize(chunkSize);
+    }
+
+    public void setChunkDurationSeconds(long chunkDurationSeconds) {
+        this.openChunks.setChunkDuration(chunkDurationSeconds * 1000);
+    }
+
+    /** Let store() only queue the samples, they are written by background threads. Takes effect on initialize(). */
+    public void setWriteBehindEnabled(boolean writeBehindEnabled) {
+        this.writeBehindEnabled = writeBehindEnabled;
+    }
+
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        this.writeBehindQueueSize = writeBehindQueueSize;
+    }
+
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    public void setWriteBehindLingerMillis(long writeBehindLingerMillis) {
+        this.writeBehindLingerMillis = writeBehindLingerMillis;
+    }
+
+    public void setWriteBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    /** One of block, drop-oldest or reject, see {@link WriteBehindQueue.Policy}. */
+    public void setWriteBehindPolicy(String writeBehindPolicy) {
+        this.writeBehindPolicy = WriteBehindQueue.Policy.parse(writeBehindPolicy);
+    }
+
+    /** Spool samples to local disk while the database is unavailable. Takes effect on initialize(). */
+    public void setSpoolEnabled(boolean spoolEnabled) {
+        this.spoolEnabled = spoolEnabled;
+    }
+
+    /** Directory of the spool segments, defaults to tss-inmemory-spool in the Karaf data directory if empty. */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setSpoolSegmentSizeMb(int spoolSegmentSizeMb) {
+        this.spoolSegmentSizeMb = spoolSegmentSizeMb;
+    }
+
+    public void setSpoolMaxSizeMb(int spoolMaxSizeMb) {
+        this.spoolMaxSizeMb = spoolMaxSizeMb;
+    }
+
+    public void setSpoolReplayIntervalSeconds(int spoolReplayIntervalSeconds) {
+        this.spoolReplayIntervalSeconds = spoolReplayIntervalSeconds;
+    }
+
+    public void setTagIndexEnabled(boolean tagIndexEnabled) {
+        this.tagIndexEnabled = tagIndexEnabled;
+    }
+
+    /** Store the samples in partitions of partitionIntervalHours each. Takes effect on initialize(). */
+    public void setPartitioningEnabled(boolean partitioningEnabled) {
+        this.dbManager.setPartitioningEnabled(partitioningEnabled);
+    }
+
+    /** Time span of new partitions, existing partitions keep theirs. */
+    public void setPartitionIntervalHours(int partitionIntervalHours) {
+        if (partitionIntervalHours < 1) {
+            throw new IllegalArgumentException("partitionIntervalHours must be positive but was " + partitionIntervalHours);
         }
+        this.partitionIntervalHours = partitionIntervalHours;
+    }
+
+    /**
+     * Remove samples older than this many days, whole partitions at once if partitioned, together with the rollup
+     * buckets aggregating only such samples. 0 keeps all samples.
+     */
+    public void setRetentionDays(int retentionDays) {
+        this.retentionDays = retentionDays;
+    }
+
+    /** Compute rollup tiers in the background and read aggregates from them. Takes effect on initialize(). */
+    public void setRollupEnabled(boolean rollupEnabled) {
+        this.rollupEnabled = rollupEnabled;
+    }
+
+    /** Comma separated resolutions of the rollup tiers like 5m,1h, each a multiple of the one before. */
+    public void setRollupTiers(String rollupTiers) {
+        List<Long> resolutions = Rollups.parseResolutions(rollupTiers);
+        if (resolutions.isEmpty()) {
+            throw new IllegalArgumentException("At least one rollup tier is required.");
+        }
+        this.rollupResolutions = resolutions;
+    }
+
+    /** Samples are rolled up once they are this old, samples arriving later are not part of the rollups. */
+    public void setRollupDelaySeconds(int rollupDelaySeconds) {
+        this.rollupDelayMillis = TimeUnit.SECONDS.toMillis(rollupDelaySeconds);
+    }
+
+    /** Keeps the latest samples of recently read metrics in memory, reads covered by them skip the database. */
+    public void setHotTierEnabled(boolean hotTierEnabled) {
+        this.hotTierEnabled = hotTierEnabled;
+    }
+
+    /** Number of the latest samples kept per metric. */
+    public void setHotTierSamplesPerMetric(int hotTierSamplesPerMetric) {
+        this.hotTier.setSamplesPerMetric(hotTierSamplesPerMetric);
+    }
+
+    public void setHotTierMaxSizeMb(int hotTierMaxSizeMb) {
+        this.hotTier.setMaximumBytes(hotTierMaxSizeMb * 1024L * 1024L);
+    }
+
+    /**
+     * Comma separated JDBC URLs of the databases to spread the metrics over, each metric is stored in one of them. The
+     * URLs identify the shards: adding one moves about 1/N of the metrics, see {@link #rebalance(LongConsumer)}. Empty
+     * to store everything in the database at jdbcUrl. Takes effect on initialize().
+     */
+    public void setShardJdbcUrls(String shardJdbcUrls) {
+        this.shardJdbcUrls = splitUrls(shardJdbcUrls);
+    }
+
+    /** The connection settings take effect when the pool is created by the first database access. */
+    public void setJdbcUrl(String jdbcUrl) {
+        this.dbManager.setJdbcUrl(jdbcUrl);
+    }
+
+    public void setJdbcUser(String jdbcUser) {
+        this.dbManager.setJdbcUser(jdbcUser);
+    }
+
+    public void setJdbcPassword(String jdbcPassword) {
+        this.dbManager.setJdbcPassword(jdbcPassword);
+    }
+
+    public void setPoolMinSize(int poolMinSize) {
+        this.dbManager.setPoolMinSize(poolMinSize);
+    }
+
+    /** Should be at least the number of threads writing concurrently, e.g. the write-behind threads. */
+    public void setPoolMaxSize(int poolMaxSize) {
+        this.dbManager.setPoolMaxSize(poolMaxSize);
+    }
+
+    public void setPoolAcquireTimeoutMillis(int poolAcquireTimeoutMillis) {
+        this.dbManager.setPoolAcquireTimeoutMillis(poolAcquireTimeoutMillis);
+    }
+
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.dbManager.setStatementCacheSize(statementCacheSize);
+    }
+
+    /** Connections for reads on the primary, kept apart from those of the writes. With a maximum of 0 both share one pool. */
+    public void setReadPoolMinSize(int readPoolMinSize) {
+        this.dbManager.setReadPoolMinSize(readPoolMinSize);
+    }
 
-        // Tags have always a non null value so we don't have to null check for them.
-        if (TagMatcher.Type.EQUALS == matcher.getType()) {
-            return tag.getValue().equals(matcher.getValue());
-        } else if (TagMatcher.Type.NOT_EQUALS == matcher.getType()) {
-            return !tag.getValue().equals(matcher.getValue());
-        } else if (TagMatcher.Type.EQUALS_REGEX == matcher.getType()) {
-            return tag.getValue().matches(matcher.getValue());
-        } else if (TagMatcher.Type.NOT_EQUALS_REGEX == matcher.getType()) {
-            return !tag.getValue().matches(matcher.getValue());
+    public void setReadPoolMaxSize(int readPoolMaxSize) {
+        this.dbManager.setReadPoolMaxSize(readPoolMaxSize);
+    }
+
+    /**
+     * Comma separated JDBC URLs of streaming replicas to send reads to, reads of metrics written more recently than a
+     * replica has replayed go to the primary. Not used with shards.
+     */
+    public void setReadReplicaJdbcUrls(String readReplicaJdbcUrls) {
+        this.dbManager.setReplicaJdbcUrls(splitUrls(readReplicaJdbcUrls));
+    }
+
+    public void setReplicaMaxLagMillis(long replicaMaxLagMillis) {
+        this.dbManager.setReplicaMaxLagMillis(replicaMaxLagMillis);
+    }
+
+    private static List<String> splitUrls(String urls) {
+        List<String> result = new ArrayList<>();
+        for (String url : (urls == null ? "" : urls).split(",")) {
+            if (!url.trim().isEmpty()) {
+                result.add(url.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves the samples of the legacy SAMPLES/SERIES tables in chunks into the current layout and drops the legacy
+     * tables afterwards. Every chunk is its own transaction, so the storage stays usable while migrating.
+     * Returns the number of moved samples, the progress consumer receives the running total after every chunk.
+     */
+    public long migrateLegacySamples(int chunkSize, LongConsumer progress) throws SQLException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be positive but was " + chunkSize);
+        }
+        if (this.shardedStorage != null) {
+            return this.shardedStorage.migrateLegacySamples(chunkSize, progress);
+        }
+        Connection conn = null;
+        long total = 0;
+        try {
+            conn = this.dbManager.getConnection();
+            int moved;
+            while ((moved = this.dbManager.migrateLegacySamples(conn, chunkSize)) > 0) {
+                total += moved;
+                progress.accept(total);
+            }
+            if (this.dbManager.hasLegacyTables()) {
+                this.dbManager.dropLegacyTables(conn);
+            }
+        } finally {
+            this.dbManager.releaseConnection(conn);
+        }
+        return total;
+    }
+
+    public boolean hasLegacyTables() {
+        if (this.shardedStorage != null) {
+            return this.shardedStorage.hasLegacyTables();
+        }
+        return this.dbManager.hasLegacyTables();
+    }
+
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    /** Starts all meters, timers, histograms and counters from scratch. Gauges show current values and are kept. */
+    public void resetMetrics() {
+        if (this.shardedStorage != null) {
+            this.shardedStorage.resetMetrics();
+        }
+        this.metrics.removeMatching((name, metric) -> !(metric instanceof Gauge));
+    }
+
+    /** Number of databases the metrics are spread over, 1 without sharding. */
+    public int getShardCount() {
+        ShardedStorage sharded = this.shardedStorage;
+        return sharded == null ? 1 : sharded.size();
+    }
+
+    /**
+     * Moves the metrics which are stored on another shard than the one they belong to, e.g. after a shard was added,
+     * see {@link ShardedStorage#rebalance(LongConsumer)}. Returns the number of moved metrics, 0 without sharding.
+     */
+    public long rebalance(LongConsumer progress) throws StorageException {
+        ShardedStorage sharded = this.shardedStorage;
+        return sharded == null ? 0 : sharded.rebalance(progress);
+    }
+
+    /**
+     * Writes the samples right away as one batch, bypassing write-behind queue and spool, e.g. to move them to another
+     * shard. Unlike store() there is no sample by sample fallback: if the batch fails none of the samples is written.
+     */
+    void storeDirectly(final List<Sample> samples) throws StorageException {
+        if (this.memoryEngine != null) {
+            this.memoryEngine.store(samples);
+            return;
+        }
+        if (samples.isEmpty()) {
+            return;
+        }
+        Connection conn = null;
+        try {
+            conn = this.dbManager.getConnection();
+            Map<String, Integer> idsByKey = storeBatch(conn, samples);
+            this.metrics.meter("samplesWritten").mark(samples.size());
+            if (this.chunkedSamples) {
+                writeChunks(conn, this.openChunks.add(samples, idsByKey));
+            }
+        } catch (SQLException e) {
+            this.metrics.counter("store.errors").inc();
+            throw new StorageException("Writing " + samples.size() + " samples failed.", e);
+        } finally {
+            try {
+                this.dbManager.releaseConnection(conn);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Deletes the metric and its samples, unlike delete() a failure is thrown, e.g. after it was moved to another shard. */
+    void deleteDirectly(final Metric metric) throws StorageException {
+        if (this.memoryEngine != null) {
+            this.memoryEngine.delete(metric);
+            return;
+        }
+        Connection conn = null;
+        try {
+            conn = this.dbManager.getConnection();
+            MetricCache.Entry entry = resolveMetric(conn, metric);
+            if (entry != null) {
+                this.dbManager.deleteMetrics(conn, Collections.singletonList(entry.getId()));
+                forgetMetric(metric.getKey(), entry.getId());
+            }
+        } catch (SQLException e) {
+            this.metrics.counter("delete.errors").inc();
+            throw new StorageException("Deleting the metric " + metric.getKey() + " failed.", e);
+        } finally {
+            try {
+                this.dbManager.releaseConnection(conn);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Returns every stored metric, e.g. to find the metrics to move to another shard. */
+    List<Metric> getAllMetrics() throws StorageException {
+        if (this.memoryEngine != null) {
+            return this.memoryEngine.getAllMetrics();
+        }
+        Connection conn = null;
+        try {
+            conn = this.dbManager.getConnection();
+            return this.dbManager.findAllMetrics(conn);
+        } catch (SQLException e) {
+            throw new StorageException("Loading the metrics failed.", e);
+        } finally {
+            try {
+                this.dbManager.releaseConnection(conn);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Creates a shard writing to the database at jdbcUrl with the settings of this storage. The memory budgets of
+     * metric cache and hot tier are split between the shards, each one holds about its share of the metrics.
+     */
+    private InMemoryStorage newShard(int index, String jdbcUrl) {
+        int shardCount = this.shardJdbcUrls.size();
+        InMemoryStorage shard = new InMemoryStorage();
+        this.dbManager.copySettingsTo(shard.dbManager);
+        shard.dbManager.setJdbcUrl(jdbcUrl);
+        shard.metricCache.setMaximumSize(Math.max(1, this.metricCache.getMaximumSize() / shardCount));
+        shard.copyThreshold = this.copyThreshold;
+        shard.tagIndexEnabled = this.tagIndexEnabled;
+        shard.chunkedSamples = this.chunkedSamples;
+        shard.openChunks.setChunkSize(this.openChunks.getChunkSize());
+        shard.openChunks.setChunkDuration(this.openChunks.getChunkDuration());
+        shard.writeBehindEnabled = this.writeBehindEnabled;
+        shard.writeBehindQueueSize = this.writeBehindQueueSize;
+        shard.writeBehindBatchSize = this.writeBehindBatchSize;
+        shard.writeBehindLingerMillis = this.writeBehindLingerMillis;
+        shard.writeBehindThreads = this.writeBehindThreads;
+        shard.writeBehindPolicy = this.writeBehindPolicy;
+        shard.spoolEnabled = this.spoolEnabled;
+        shard.spoolDirectory = getSpoolDirectory().resolve("shard-" + index).toString();
+        shard.spoolSegmentSizeMb = this.spoolSegmentSizeMb;
+        shard.spoolMaxSizeMb = this.spoolMaxSizeMb;
+        shard.spoolReplayIntervalSeconds = this.spoolReplayIntervalSeconds;
+        shard.partitionIntervalHours = this.partitionIntervalHours;
+        shard.retentionDays = this.retentionDays;
+        shard.rollupEnabled = this.rollupEnabled;
+        shard.rollupResolutions = this.rollupResolutions;
+        shard.rollupDelayMillis = this.rollupDelayMillis;
+        shard.hotTierEnabled = this.hotTierEnabled;
+        shard.hotTier.setSamplesPerMetric(this.hotTier.getSamplesPerMetric());
+        shard.hotTier.setMaximumBytes(Math.max(1, this.hotTier.getMaximumBytes() / shardCount));
+        return shard;
+    }
+
+    /**
+     * Stores all samples in one transaction: the distinct metrics of the batch are resolved with one query,
+     * unknown metrics are inserted as one batch and the samples are written as JDBC batches, or streamed via
+     * COPY for batches of at least {@link #copyThreshold} samples.
+     */
+    private Map<String, Integer> storeBatch(final Connection conn, final List<Sample> samples) throws SQLException {
+        Map<String, Metric> metricsByKey = new HashMap<>();
+        Map<String, Sample> latestByKey = new HashMap<>();
+        for (Sample sample : samples) {
+            metricsByKey.putIfAbsent(sample.getMetric().getKey(), sample.getMetric());
+            latestByKey.merge(sample.getMetric().getKey(), sample,
+                    (latest, next) -> next.getTime().isBefore(latest.getTime()) ? latest : next);
+        }
+
+        // resolved (and committed) before the transaction so that the cache never sees ids of rolled back metrics
+        Map<String, Integer> idsByKey = resolveMetricIds(conn, metricsByKey);
+
+        // the latest samples of metrics getting a hot tier buffer are looked up before this batch is written
+        HotTier.Admission admission = null;
+        Map<String, Long> latestTimes = new HashMap<>();
+        if (this.hotTierEnabled) {
+            admission = this.hotTier.admit(idsByKey.keySet());
+            Map<Integer, String> keysById = new HashMap<>();
+            for (String key : admission.getKeys()) {
+                keysById.put(idsByKey.get(key), key);
+            }
+            this.dbManager.findLatestSampleTimes(conn, keysById.keySet())
+                    .forEach((id, time) -> latestTimes.put(keysById.get(id), time));
+        }
+
+        conn.setAutoCommit(false);
+        try {
+            if (copyThreshold > 0 && samples.size() >= copyThreshold) {
+                this.dbManager.copySamples(conn, samples, idsByKey);
+            } else {
+                this.dbManager.addNewSamples(conn, samples, idsByKey);
+            }
+            this.dbManager.updateLatestSamples(conn, latestByKey.values(), idsByKey);
+            if (this.rollupEnabled) {
+                this.dbManager.addLateSamples(conn, findLateSamples(samples, idsByKey));
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            rollback(conn);
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        long committedAt = System.currentTimeMillis();
+        for (Sample latest : latestByKey.values()) {
+            MetricCache.Entry entry = this.metricCache.get(latest.getMetric().getKey());
+            if (entry != null && idsByKey.containsKey(latest.getMetric().getKey())) {
+                entry.writeLatest(latest.getTime().toEpochMilli(), latest.getValue());
+                entry.setCommittedAt(committedAt);
+            }
+        }
+        if (admission != null) {
+            // samples of metrics without an id were skipped
+            this.hotTier.add(idsByKey.size() == metricsByKey.size() ? samples : samples.stream()
+                    .filter(sample -> idsByKey.containsKey(sample.getMetric().getKey()))
+                    .collect(Collectors.toList()), admission, latestTimes);
+        }
+        return idsByKey;
+    }
+
+    /**
+     * Returns the time of the oldest late sample per metric id, samples the rollups may have passed already. Half the
+     * rollup delay is left as margin for batches which are committed while the rollups run.
+     */
+    private Map<Integer, Long> findLateSamples(final List<Sample> samples, final Map<String, Integer> idsByKey) {
+        long lateBefore = System.currentTimeMillis() - this.rollupDelayMillis / 2;
+        Map<Integer, Long> sinceById = new HashMap<>();
+        for (Sample sample : samples) {
+            long time = sample.getTime().toEpochMilli();
+            Integer idMetric = idsByKey.get(sample.getMetric().getKey());
+            if (time < lateBefore && idMetric != null) {
+                sinceById.merge(idMetric, time, Math::min);
+            }
+        }
+        return sinceById;
+    }
+
+    /**
+     * Replaces the rows of the sealed chunks by the compressed chunks in one transaction. If that fails the samples
+     * simply stay rows.
+     */
+    private void writeChunks(final Connection conn, final List<OpenChunks.SealedChunk> chunks) throws SQLException {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        conn.setAutoCommit(false);
+        try {
+            this.dbManager.addChunks(conn, chunks);
+            conn.commit();
+        } catch (SQLException e) {
+            rollback(conn);
+            e.printStackTrace();
+            this.metrics.counter("chunks.errors").inc();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /** Streams rows and chunks of the metric in time order straight into the result. */
+    private List<Sample> readSamples(final Connection conn, final MetricCache.Entry entry,
+                                     final TimeSeriesFetchRequest request) throws SQLException {
+        List<Sample> results = new ArrayList<>();
+        this.dbManager.streamSamples(conn, entry.getId(), request.getStart(), request.getEnd(),
+                collector(entry.getMetric(), results));
+        return results;
+    }
+
+    /**
+     * Reads the samples of the request from the hot tier into the buffer and returns the time from which on these are
+     * all samples of the metric, {@link Long#MAX_VALUE} if the tier is disabled or doesn't hold the metric.
+     */
+    private long readHotTier(final TimeSeriesFetchRequest request, final SampleBuffer samples) {
+        if (!this.hotTierEnabled) {
+            return Long.MAX_VALUE;
+        }
+        long start = request.getStart().toEpochMilli();
+        long end = request.getEnd().toEpochMilli();
+        long coveredFrom = this.hotTier.read(request.getMetric().getKey(), start, end, samples);
+        if (coveredFrom <= start + 1) {
+            this.metrics.meter("hotTier.hits").mark();
+        } else if (coveredFrom < end) {
+            this.metrics.meter("hotTier.partialHits").mark();
         } else {
-            throw new IllegalArgumentException("Implement me for " + matcher.getType());
+            this.metrics.meter("hotTier.misses").mark();
+        }
+        return coveredFrom;
+    }
+
+    /**
+     * Reads a request of which the hot tier holds the samples from coveredFrom on only, the time before is read from
+     * the database. Aggregated requests are split at the first bucket boundary at or after coveredFrom so that no
+     * bucket mixes both sources.
+     */
+    private List<Sample> readStraddling(final Connection conn, final MetricCache.Entry entry, final TimeSeriesFetchRequest request,
+                                        final SampleBuffer hot, final long coveredFrom) throws SQLException {
+        if (request.getAggregation() == Aggregation.NONE) {
+            List<Sample> results = new ArrayList<>();
+            this.dbManager.streamSamples(conn, entry.getId(), request.getStart(), Instant.ofEpochMilli(coveredFrom),
+                    collector(entry.getMetric(), results));
+            results.addAll(toResults(entry.getMetric(), request, hot, coveredFrom));
+            return results;
+        }
+        long start = request.getStart().toEpochMilli();
+        long end = request.getEnd().toEpochMilli();
+        long step = getStepMillis(request);
+        long boundary = Math.floorDiv(coveredFrom + step - 1, step) * step;
+        if (boundary >= end) {
+            return readAggregated(conn, entry, start, end, step, request.getAggregation());
+        }
+        List<Sample> results = readAggregated(conn, entry, start, boundary, step, request.getAggregation());
+        results.addAll(toResults(entry.getMetric(), request, hot, boundary));
+        return results;
+    }
+
+    /** Turns the samples read from the hot tier at or after from into the result of the request, aggregated if asked for. */
+    private static List<Sample> toResults(final Metric metric, final TimeSeriesFetchRequest request,
+                                          final SampleBuffer samples, final long from) {
+        List<Sample> results = new ArrayList<>(request.getAggregation() == Aggregation.NONE ? samples.size() : 0);
+        SampleConsumer consumer = request.getAggregation() == Aggregation.NONE ? collector(metric, results)
+                : new BucketAggregator(metric, getStepMillis(request), request.getAggregation());
+        samples.forEach((time, value) -> {
+            if (time >= from) {
+                consumer.accept(time, value);
+            }
+        });
+        return consumer instanceof BucketAggregator ? ((BucketAggregator) consumer).getResults() : results;
+    }
+
+    /** Returns the metric as it was stored, with its meta tags, if it is cached, otherwise the given one. */
+    private Metric cachedMetric(final Metric metric) {
+        MetricCache.Entry entry = this.metricCache.get(metric.getKey());
+        return entry != null ? entry.getMetric() : metric;
+    }
+
+    /** Returns a consumer adding every sample it receives to the list. */
+    private static SampleConsumer collector(final Metric metric, final List<Sample> samples) {
+        return (time, value) -> samples.add(ImmutableSample.builder()
+                .metric(metric)
+                .time(Instant.ofEpochMilli(time))
+                .value(value)
+                .build());
+    }
+
+    private static int[] ids(List<Integer> indexes, List<TimeSeriesFetchRequest> requests, Map<String, MetricCache.Entry> entries) {
+        return indexes.stream().mapToInt(i -> entries.get(requests.get(i).getMetric().getKey()).getId()).toArray();
+    }
+
+    private static long[] starts(List<Integer> indexes, List<TimeSeriesFetchRequest> requests) {
+        return indexes.stream().mapToLong(i -> requests.get(i).getStart().toEpochMilli()).toArray();
+    }
+
+    private static long[] ends(List<Integer> indexes, List<TimeSeriesFetchRequest> requests) {
+        return indexes.stream().mapToLong(i -> requests.get(i).getEnd().toEpochMilli()).toArray();
+    }
+
+    /**
+     * Aggregates the samples within (start, end) into buckets of step. The buckets which lie completely within the
+     * range and before the watermark of the coarsest rollup tier dividing the step are read from that tier, the
+     * others from the samples.
+     */
+    private List<Sample> readAggregated(final Connection conn, final MetricCache.Entry entry, final long start,
+                                        final long end, final long step, final Aggregation aggregation) throws SQLException {
+        long resolution = this.rollupEnabled ? Rollups.chooseResolution(this.rollupResolutions, step) : 0;
+        Long watermark = resolution > 0 ? this.rollupWatermarks.get(resolution) : null;
+        if (watermark != null) {
+            long from = (Math.floorDiv(start, step) + 1) * step; // the first bucket starting after start
+            long to = Math.min(Math.floorDiv(watermark, step), Math.floorDiv(end, step)) * step;
+            if (from < to) {
+                List<Sample> results = readAggregatedSamples(conn, entry, start, from, step, aggregation);
+                results.addAll(this.dbManager.findRollupSamplesForMetric(conn, entry.getMetric(), entry.getId(),
+                        resolution, from, to, step, aggregation));
+                results.addAll(readAggregatedSamples(conn, entry, to - 1, end, step, aggregation));
+                this.metrics.meter("rollups.reads").mark();
+                return results;
+            }
+        }
+        return readAggregatedSamples(conn, entry, start, end, step, aggregation);
+    }
+
+    /** Aggregates the samples within (start, end), both exclusive, into buckets of step. */
+    private List<Sample> readAggregatedSamples(final Connection conn, final MetricCache.Entry entry, final long start,
+                                               final long end, final long step, final Aggregation aggregation) throws SQLException {
+        if (!this.chunkedSamples) {
+            return this.dbManager.findAggregatedSamplesForMetric(conn, entry.getMetric(), entry.getId(),
+                    Instant.ofEpochMilli(start), Instant.ofEpochMilli(end), step, aggregation);
+        }
+        BucketAggregator aggregator = new BucketAggregator(entry.getMetric(), step, aggregation);
+        this.dbManager.streamSamples(conn, entry.getId(), Instant.ofEpochMilli(start), Instant.ofEpochMilli(end), aggregator);
+        return aggregator.getResults();
+    }
+
+    /**
+     * Returns the ids of the given metrics. Known metrics are served from the cache, the others are registered
+     * in the database. Registration holds the lock stripes of the new keys, so concurrent batches containing the
+     * same new metric don't both go to the database; the unique key on METRICS covers everything outside this JVM.
+     */
+    private Map<String, Integer> resolveMetricIds(final Connection conn, final Map<String, Metric> metricsByKey) throws SQLException {
+        Map<String, Integer> idsByKey = new HashMap<>();
+        List<String> missingKeys = new ArrayList<>();
+        for (String key : metricsByKey.keySet()) {
+            MetricCache.Entry entry = this.metricCache.get(key);
+            if (entry != null) {
+                idsByKey.put(key, entry.getId());
+            } else {
+                missingKeys.add(key);
+            }
+        }
+        if (missingKeys.isEmpty()) {
+            return idsByKey;
+        }
+
+        List<Lock> locks = this.metricCache.locksFor(missingKeys);
+        locks.forEach(Lock::lock);
+        try {
+            List<Metric> newMetrics = new ArrayList<>();
+            for (String key : missingKeys) {
+                MetricCache.Entry entry = this.metricCache.get(key); // maybe registered while we were waiting
+                if (entry != null) {
+                    idsByKey.put(key, entry.getId());
+                } else {
+                    newMetrics.add(metricsByKey.get(key));
+                }
+            }
+            if (!newMetrics.isEmpty()) {
+                this.dbManager.addNewMetrics(conn, newMetrics);
+                Map<String, Integer> newIds = this.dbManager.findMetricIds(conn,
+                        newMetrics.stream().map(Metric::getKey).collect(Collectors.toList()));
+                for (Metric metric : newMetrics) {
+                    Integer id = newIds.get(metric.getKey());
+                    if (id != null) {
+                        this.tagIndex.add(this.metricCache.put(id, metric).getMetric());
+                        idsByKey.put(metric.getKey(), id);
+                    }
+                }
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+        return idsByKey;
+    }
+
+    /** Returns the cached metrics by key, the others are loaded from the database with one query. Unknown metrics are absent. */
+    private Map<String, MetricCache.Entry> resolveMetrics(final Connection conn, final Collection<Metric> metrics) throws SQLException {
+        Map<String, MetricCache.Entry> entries = new HashMap<>();
+        Set<String> missingKeys = new HashSet<>();
+        for (Metric metric : metrics) {
+            MetricCache.Entry entry = this.metricCache.get(metric.getKey());
+            if (entry != null) {
+                entries.put(metric.getKey(), entry);
+            } else {
+                missingKeys.add(metric.getKey());
+            }
+        }
+        this.dbManager.loadMetrics(conn, missingKeys, (m, id) -> entries.put(m.getKey(), this.metricCache.put(id, m)));
+        return entries;
+    }
+
+    /** Returns the cached metric or loads it from the database, null if the metric is unknown. */
+    private MetricCache.Entry resolveMetric(final Connection conn, final Metric metric) throws SQLException {
+        MetricCache.Entry entry = this.metricCache.get(metric.getKey());
+        if (entry == null) {
+            MetricCache.Entry[] loaded = new MetricCache.Entry[1];
+            this.dbManager.loadMetrics(conn, Collections.singletonList(metric.getKey()),
+                    (m, id) -> loaded[0] = this.metricCache.put(id, m));
+            entry = loaded[0];
+        }
+        return entry;
+    }
+
+    /**
+     * Builds the tag index and fills the metric cache by streaming the METRICS table once. If this fails the cache
+     * is filled lazily and findMetrics() scans the table until the index could be built.
+     */
+    private void loadMetrics() {
+        Connection conn = null;
+        try {
+            conn = this.dbManager.getReadConnection(DbManager.LATEST_COMMIT); // the index has to know every metric
+            this.dbManager.loadMetrics(conn, null, (metric, id) -> {
+                if (!this.metricCache.isFull()) {
+                    this.tagIndex.add(this.metricCache.put(id, metric).getMetric());
+                } else {
+                    this.tagIndex.add(metric);
+                }
+            });
+            this.tagIndex.setComplete(true);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                this.dbManager.releaseConnection(conn);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Returns true if the tag index is complete, tries to build it if not. */
+    private boolean ensureTagIndex() {
+        if (!this.tagIndex.isComplete()) {
+            synchronized (this.tagIndex) {
+                if (!this.tagIndex.isComplete()) {
+                    loadMetrics();
+                }
+            }
+        }
+        return this.tagIndex.isComplete();
+    }
+
+    /**
+     * Slow path, used when the batch could not be stored: every sample is stored on its own. Samples the database
+     * rejects are counted as samplesRejected, a connection error is thrown. Returns the number of written samples.
+     */
+    private int storeOneByOne(final Connection conn, final List<Sample> samples) throws SQLException {
+        int written = 0;
+        for (Sample sample : samples) {
+            this.hotTier.remove(sample.getMetric().getKey()); // whether the sample is written or not is unknown
+            MetricCache.Entry entry = this.metricCache.get(sample.getMetric().getKey());
+            try {
+                int idMetric = entry != null ? entry.getId() : this.dbManager.addNewMetric(conn, sample.getMetric());
+                if (idMetric == -1) {
+                    this.metrics.meter("samplesRejected").mark();
+                    continue;
+                }
+                if (entry == null) {
+                    entry = this.metricCache.put(idMetric, sample.getMetric());
+                    this.tagIndex.add(entry.getMetric());
+                }
+                entry.forgetLatest(); // whether the sample is written or not is unknown
+                this.dbManager.addNewSample(conn, idMetric, sample);
+                if (this.rollupEnabled) {
+                    this.dbManager.addLateSamples(conn, findLateSamples(Collections.singletonList(sample),
+                            Collections.singletonMap(sample.getMetric().getKey(), idMetric)));
+                }
+                entry.setCommittedAt(System.currentTimeMillis());
+                written++;
+            } catch (SQLException e) {
+                if (isConnectionError(e)) {
+                    throw e;
+                }
+                e.printStackTrace();
+                this.metrics.meter("samplesRejected").mark();
+            }
+        }
+        return written;
+    }
+
+    private void rollback(final Connection conn) {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Returns the bucket size of an aggregated request, without a step the length of the requested range is used. */
+    static long getStepMillis(final TimeSeriesFetchRequest request) {
+        if (request.getStep() != null && request.getStep().toMillis() > 0) {
+            return request.getStep().toMillis();
         }
+        return Math.max(1, request.getEnd().toEpochMilli() - request.getStart().toEpochMilli());
     }
-}
\ No newline at end of file
+}
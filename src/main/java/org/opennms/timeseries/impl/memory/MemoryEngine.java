@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import org.opennms.integration.api.v1.timeseries.*;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage which keeps everything on the heap, without any database. Every metric owns a list of time ordered
+ * {@link SampleChunk}s, so samples at rest are primitive arrays and range reads are binary searches.
+ * Writers and readers of a metric synchronize on its series only, so different metrics never contend.
+ * Metric searches are answered by a {@link TagIndex}.
+ */
+public class MemoryEngine implements TimeSeriesStorage {
+
+    static final int CHUNK_CAPACITY = 512;
+
+    /** The samples of one metric: chunks ordered by time, their time ranges don't overlap. */
+    private static class Series {
+        private final Metric metric;
+        private final List<SampleChunk> chunks = new ArrayList<>();
+
+        private Series(Metric metric) {
+            this.metric = metric;
+        }
+
+        private synchronized void add(long time, double value) {
+            int index = chunks.size() - 1;
+            if (index < 0) {
+                chunks.add(new SampleChunk(CHUNK_CAPACITY));
+                index = 0;
+            } else {
+                // out of order samples go into the last chunk which starts before them
+                while (index > 0 && chunks.get(index).getFirstTime() > time) {
+                    index--;
+                }
+            }
+            SampleChunk chunk = chunks.get(index);
+            if (chunk.isFull()) {
+                if (index == chunks.size() - 1 && time >= chunk.getLastTime()) {
+                    chunk = new SampleChunk(CHUNK_CAPACITY); // in order: start a new chunk
+                    chunks.add(chunk);
+                } else {
+                    SampleChunk upper = chunk.split();
+                    chunks.add(index + 1, upper);
+                    if (time >= upper.getFirstTime()) {
+                        chunk = upper;
+                    }
+                }
+            }
+            chunk.add(time, value);
+        }
+
+        private synchronized void read(long start, long end, SampleConsumer consumer) {
+            for (int i = firstChunk(start); i < chunks.size(); i++) {
+                SampleChunk chunk = chunks.get(i);
+                if (chunk.getFirstTime() >= end) {
+                    break;
+                }
+                chunk.read(start, end, consumer);
+            }
+        }
+
+        /** Returns the sample with the highest time, null if there is none. */
+        private synchronized Sample latest() {
+            for (int i = chunks.size() - 1; i >= 0; i--) {
+                SampleChunk chunk = chunks.get(i);
+                if (chunk.size() > 0) {
+                    return ImmutableSample.builder()
+                            .metric(metric)
+                            .time(Instant.ofEpochMilli(chunk.getLastTime()))
+                            .value(chunk.getValue(chunk.size() - 1))
+                            .build();
+                }
+            }
+            return null;
+        }
+
+        /** Binary search for the first chunk which may contain samples after start. */
+        private int firstChunk(long start) {
+            int low = 0;
+            int high = chunks.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (chunks.get(mid).getLastTime() <= start) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    private final TagIndex tagIndex = new TagIndex();
+    private final QueryPlanner queryPlanner = new QueryPlanner();
+
+    public MemoryEngine() {
+        tagIndex.setComplete(true); // nothing to load
+    }
+
+    @Override
+    public void store(List<Sample> samples) {
+        Objects.requireNonNull(samples);
+        for (Sample sample : samples) {
+            Series s = series.computeIfAbsent(sample.getMetric().getKey(), key -> {
+                tagIndex.add(sample.getMetric());
+                return new Series(sample.getMetric());
+            });
+            s.add(sample.getTime().toEpochMilli(), sample.getValue());
+        }
+    }
+
+    @Override
+    public List<Metric> findMetrics(Collection<TagMatcher> tagMatchers) {
+        Objects.requireNonNull(tagMatchers);
+        if (tagMatchers.isEmpty()) {
+            throw new IllegalArgumentException("We expect at least one TagMatcher but none was given.");
+        }
+        return tagIndex.find(queryPlanner.compile(tagMatchers));
+    }
+
+    @Override
+    public List<Sample> getTimeseries(TimeSeriesFetchRequest request) {
+        Objects.requireNonNull(request);
+        Series s = series.get(request.getMetric().getKey());
+        if (s == null) {
+            return new ArrayList<>();
+        }
+        long start = request.getStart().toEpochMilli();
+        long end = request.getEnd().toEpochMilli();
+        if (request.getAggregation() != Aggregation.NONE) {
+            BucketAggregator aggregator = new BucketAggregator(s.metric, InMemoryStorage.getStepMillis(request),
+                    request.getAggregation());
+            s.read(start, end, aggregator);
+            return aggregator.getResults();
+        }
+        List<Sample> results = new ArrayList<>();
+        s.read(start, end, (time, value) -> results.add(ImmutableSample.builder()
+                .metric(s.metric)
+                .time(Instant.ofEpochMilli(time))
+                .value(value)
+                .build()));
+        return results;
+    }
+
+    /** Hands the samples of the metric within (start, end) to the consumer in time order, holding the lock of the series. */
+    public void read(Metric metric, long start, long end, SampleConsumer consumer) {
+        Series s = series.get(metric.getKey());
+        if (s != null) {
+            s.read(start, end, consumer);
+        }
+    }
+
+    public List<Metric> getAllMetrics() {
+        List<Metric> metrics = new ArrayList<>(series.size());
+        for (Series s : series.values()) {
+            metrics.add(s.metric);
+        }
+        return metrics;
+    }
+
+    /** Returns the latest sample of the metric, null if it has none. */
+    public Sample getLatestSample(Metric metric) {
+        Series s = series.get(metric.getKey());
+        return s == null ? null : s.latest();
+    }
+
+    @Override
+    public boolean supportsAggregation(Aggregation aggregation) {
+        return true;
+    }
+
+    @Override
+    public void delete(Metric metric) {
+        Objects.requireNonNull(metric);
+        if (series.remove(metric.getKey()) != null) {
+            tagIndex.remove(metric.getKey());
+        }
+    }
+
+    public void clear() {
+        series.clear();
+        tagIndex.clear();
+        tagIndex.setComplete(true);
+    }
+}
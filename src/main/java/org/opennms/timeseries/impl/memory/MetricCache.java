@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded, thread safe cache of metric key -> (database id, metric, latest sample).
+ * Eviction follows the CLOCK algorithm: every hit marks an entry as referenced, when the cache grows beyond its
+ * maximum size unreferenced entries are removed and referenced ones get a second chance.
+ * The registration of new metrics is coordinated per key via a fixed set of striped locks.
+ */
+public class MetricCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 500_000;
+
+    private static final int LOCK_STRIPES = 64;
+
+    public static class Entry {
+        private final int id;
+        private final Metric metric;
+        private volatile boolean referenced = true;
+
+        // the latest sample of the metric, unknown until it was loaded from the database
+        private boolean latestKnown = false;
+        private long latestTime = Long.MIN_VALUE; // Long.MIN_VALUE: the metric has no sample
+        private double latestValue;
+        private long latestWrites = 0;
+
+        // wall clock time of the latest commit of samples of the metric, reads from replicas have to include it
+        private volatile long committedAt = DbManager.ANY_COMMIT;
+
+        private Entry(int id, Metric metric) {
+            this.id = id;
+            this.metric = metric;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public Metric getMetric() {
+            return metric;
+        }
+
+        public long getCommittedAt() {
+            return committedAt;
+        }
+
+        /** Records that samples of the metric were committed, to be called once the commit succeeded. */
+        public synchronized void setCommittedAt(long committedAt) {
+            this.committedAt = Math.max(this.committedAt, committedAt);
+        }
+
+        /** Hands the latest sample to the consumer if there is one, returns false if it is unknown. */
+        public synchronized boolean readLatest(SampleConsumer consumer) {
+            if (!latestKnown) {
+                return false;
+            }
+            if (latestTime != Long.MIN_VALUE) {
+                consumer.accept(latestTime, latestValue);
+            }
+            return true;
+        }
+
+        /** Records a sample written to the database, it replaces a known latest sample which is not newer. */
+        public synchronized void writeLatest(long time, double value) {
+            latestWrites++;
+            if (latestKnown && time >= latestTime) {
+                latestTime = time;
+                latestValue = value;
+            }
+        }
+
+        /** Makes the latest sample unknown, e.g. because it is not known whether a sample was written. */
+        public synchronized void forgetLatest() {
+            latestWrites++;
+            latestKnown = false;
+        }
+
+        /** Returns the token to pass to {@link #loadLatest}, taken before the latest sample is read from the database. */
+        public synchronized long getLatestWrites() {
+            return latestWrites;
+        }
+
+        /**
+         * Takes over the latest sample read from the database, null if the metric has none, unless a sample was
+         * written since the token was taken: the database may have been read before that write.
+         */
+        public synchronized void loadLatest(long writes, Sample latest) {
+            if (latestKnown || writes != latestWrites) {
+                return;
+            }
+            latestKnown = true;
+            latestTime = latest == null ? Long.MIN_VALUE : latest.getTime().toEpochMilli();
+            latestValue = latest == null ? 0 : latest.getValue();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Tag, Tag> tags = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+    private volatile int maximumSize;
+
+    public MetricCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public MetricCache(int maximumSize) {
+        setMaximumSize(maximumSize);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && !entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Adds the metric, its tags are interned so equal tags of different metrics share one instance. If the metric is
+     * cached with the same id already, e.g. registered by a writer while a reader loaded it, the cached entry is kept
+     * and returned, so that what is known about its latest sample and commit is not lost.
+     */
+    public Entry put(int id, Metric metric) {
+        Entry entry = entries.compute(metric.getKey(),
+                (key, cached) -> cached != null && cached.id == id ? cached : new Entry(id, intern(metric)));
+        if (entries.size() > maximumSize) {
+            evict();
+        }
+        return entry;
+    }
+
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+        tags.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean isFull() {
+        return entries.size() >= maximumSize;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public void setMaximumSize(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be positive but was " + maximumSize);
+        }
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Returns the locks guarding the given keys, ordered by stripe so that they can be acquired one after the other
+     * without risking a deadlock between two callers.
+     */
+    public List<Lock> locksFor(Collection<String> keys) {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (String key : keys) {
+            stripes.add((key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES);
+        }
+        List<Lock> result = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            result.add(locks[stripe]);
+        }
+        return result;
+    }
+
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return; // someone else is already evicting
+        }
+        try {
+            // free some headroom so that we don't have to evict on every insert
+            int target = maximumSize - Math.max(1, maximumSize / 10);
+            while (entries.size() > target) {
+                Iterator<Entry> it = entries.values().iterator();
+                while (it.hasNext() && entries.size() > target) {
+                    Entry entry = it.next();
+                    if (entry.referenced) {
+                        entry.referenced = false;
+                    } else {
+                        it.remove();
+                    }
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private Metric intern(Metric metric) {
+        return new ImmutableMetric(intern(metric.getIntrinsicTags()), intern(metric.getMetaTags()),
+                intern(metric.getExternalTags()));
+    }
+
+    private Set<Tag> intern(Set<Tag> tagsToIntern) {
+        Set<Tag> result = new HashSet<>(tagsToIntern.size());
+        for (Tag tag : tagsToIntern) {
+            Tag existing = tags.putIfAbsent(tag, tag);
+            result.add(existing == null ? tag : existing);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The chunks which are still being filled, one per metric. A chunk is sealed once it holds
+ * {@link #setChunkSize(int) chunkSize} samples or a sample arrives which is more than
+ * {@link #setChunkDuration(long) chunkDuration} milliseconds newer than its first sample.
+ * <p>
+ * The samples of open chunks are stored as rows as well, so nothing is lost if the chunks are: sealing a chunk
+ * replaces its rows by the compressed chunk.
+ */
+public class OpenChunks {
+
+    public static final int DEFAULT_CHUNK_SIZE = 120;
+    public static final long DEFAULT_CHUNK_DURATION = 2 * 60 * 60 * 1000L;
+
+    /** A chunk which is complete and ready to be written. */
+    public static class SealedChunk {
+        private final int idMetric;
+        private final SampleChunk samples;
+
+        private SealedChunk(int idMetric, SampleChunk samples) {
+            this.idMetric = idMetric;
+            this.samples = samples;
+        }
+
+        public int getIdMetric() {
+            return idMetric;
+        }
+
+        public SampleChunk getSamples() {
+            return samples;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, SampleChunk> chunks = new ConcurrentHashMap<>();
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile long chunkDuration = DEFAULT_CHUNK_DURATION;
+
+    /**
+     * Adds the samples to the open chunks of their metrics and returns the chunks which got sealed.
+     * Samples whose metric is missing in idsByKey are skipped.
+     */
+    public List<SealedChunk> add(List<Sample> samples, Map<String, Integer> idsByKey) {
+        List<SealedChunk> sealed = new ArrayList<>();
+        for (Sample sample : samples) {
+            Integer idMetric = idsByKey.get(sample.getMetric().getKey());
+            if (idMetric == null) {
+                continue;
+            }
+            long time = sample.getTime().toEpochMilli();
+            chunks.compute(idMetric, (id, chunk) -> {
+                if (chunk != null && time - chunk.getFirstTime() >= chunkDuration) {
+                    sealed.add(new SealedChunk(id, chunk));
+                    chunk = null;
+                }
+                if (chunk == null) {
+                    chunk = new SampleChunk(chunkSize);
+                }
+                chunk.add(time, sample.getValue());
+                if (chunk.isFull()) {
+                    sealed.add(new SealedChunk(id, chunk));
+                    return null;
+                }
+                return chunk;
+            });
+        }
+        return sealed;
+    }
+
+    /** Seals and returns all open chunks, e.g. before shutting down. */
+    public List<SealedChunk> sealAll() {
+        List<SealedChunk> sealed = new ArrayList<>();
+        for (Integer idMetric : chunks.keySet()) {
+            SampleChunk chunk = chunks.remove(idMetric);
+            if (chunk != null) {
+                sealed.add(new SealedChunk(idMetric, chunk));
+            }
+        }
+        return sealed;
+    }
+
+    /** Drops the open chunk of the metric, its samples are still stored as rows. */
+    public void remove(int idMetric) {
+        chunks.remove(idMetric);
+    }
+
+    public void clear() {
+        chunks.clear();
+    }
+
+    public int size() {
+        return chunks.size();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 2) {
+            throw new IllegalArgumentException("chunkSize must be at least 2 but was " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public long getChunkDuration() {
+        return chunkDuration;
+    }
+
+    public void setChunkDuration(long chunkDuration) {
+        if (chunkDuration < 1) {
+            throw new IllegalArgumentException("chunkDuration must be positive but was " + chunkDuration);
+        }
+        this.chunkDuration = chunkDuration;
+    }
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+/**
+ * Translates the Java regular expressions of {@link org.opennms.integration.api.v1.timeseries.TagMatcher}s into
+ * PostgreSQL advanced regular expressions (AREs). Only a common subset of both dialects is translated, for which every
+ * value matched by Java is matched by PostgreSQL too: the database may return more candidates than Java would match,
+ * never fewer. Everything else (flags, lookarounds, possessive quantifiers, nested classes, most backslash escapes)
+ * has to be evaluated in Java.
+ */
+public final class PostgresRegex {
+
+    /** PostgreSQL rejects bounds of repetitions above this value. */
+    private static final int MAX_REPETITION = 255;
+
+    private PostgresRegex() {
+    }
+
+    /** Returns true if the expression can be evaluated by PostgreSQL without losing matches. */
+    public static boolean isPortable(String regex) {
+        boolean inClass = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 >= regex.length()) {
+                    return false;
+                }
+                char escaped = regex.charAt(++i);
+                // \d, \w and \s match a superset in PostgreSQL, which is only safe outside of (negatable) classes
+                if (Character.isLetterOrDigit(escaped) && (inClass || "dws".indexOf(escaped) < 0)) {
+                    return false;
+                }
+                continue;
+            }
+            if (inClass) {
+                if (c == '[' || regex.startsWith("&&", i)) {
+                    return false; // unions, intersections and POSIX classes differ
+                }
+                inClass = c != ']';
+                continue;
+            }
+            switch (c) {
+                case '[':
+                    inClass = true;
+                    if (regex.startsWith("^", i + 1)) {
+                        i++;
+                    }
+                    if (regex.startsWith("]", i + 1)) {
+                        return false; // a leading ']' is literal in PostgreSQL only
+                    }
+                    break;
+                case '(':
+                    if (regex.startsWith("(?", i) && !regex.startsWith("(?:", i)) {
+                        return false; // flags, lookarounds and named groups
+                    }
+                    break;
+                case '{':
+                    int close = regex.indexOf('}', i);
+                    if (close < 0 || !isPortableBound(regex.substring(i + 1, close))) {
+                        return false;
+                    }
+                    i = close;
+                    // fall through to the check of the quantifier
+                case '*':
+                case '+':
+                case '?':
+                    if (regex.startsWith("+", i + 1)) {
+                        return false; // possessive quantifier
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return !inClass;
+    }
+
+    /** Anchors the expression at both ends, since Java matches tag values as a whole. */
+    public static String anchored(String regex) {
+        return "^(?:" + regex + ")$";
+    }
+
+    /** Returns a LIKE pattern matching every value starting with the given literal prefix. */
+    public static String likePrefix(String prefix) {
+        StringBuilder pattern = new StringBuilder(prefix.length() + 1);
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c == '\\' || c == '%' || c == '_') {
+                pattern.append('\\');
+            }
+            pattern.append(c);
+        }
+        return pattern.append('%').toString();
+    }
+
+    private static boolean isPortableBound(String bounds) {
+        for (String bound : bounds.split(",", -1)) {
+            if (bound.isEmpty()) {
+                continue;
+            }
+            if (bound.length() > 3 || !bound.chars().allMatch(b -> b >= '0' && b <= '9')
+                    || Integer.parseInt(bound) > MAX_REPETITION) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a collection of {@link TagMatcher}s into a {@link Plan}: regular expressions are compiled once (and cached
+ * across queries), the literal prefix of every regular expression is extracted and the matchers are ordered so that
+ * the cheapest and most selective ones are evaluated first.
+ */
+public class QueryPlanner {
+
+    private static final int PATTERN_CACHE_SIZE = 1000;
+
+    private static final String REGEX_META_CHARACTERS = ".[]{}()*+?^$|";
+
+    /** A matcher with everything precomputed which is needed to evaluate it. */
+    public static class CompiledTagMatcher {
+        private final TagMatcher.Type type;
+        private final String key;
+        private final String value;
+        private final Pattern pattern;
+        private final String literalPrefix;
+
+        private CompiledTagMatcher(TagMatcher.Type type, String key, String value, Pattern pattern, String literalPrefix) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+            this.pattern = pattern;
+            this.literalPrefix = literalPrefix;
+        }
+
+        public TagMatcher.Type getType() {
+            return type;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /** Every value matched by the regular expression starts with this prefix, empty if there is none. */
+        public String getLiteralPrefix() {
+            return literalPrefix;
+        }
+
+        public boolean isRegex() {
+            return pattern != null;
+        }
+
+        /** Evaluates the matcher against the value of a tag with the key of this matcher. */
+        public boolean matchesValue(String tagValue) {
+            switch (type) {
+                case EQUALS:
+                    return tagValue.equals(value);
+                case NOT_EQUALS:
+                    return !tagValue.equals(value);
+                case EQUALS_REGEX:
+                    return tagValue.startsWith(literalPrefix) && pattern.matcher(tagValue).matches();
+                case NOT_EQUALS_REGEX:
+                    return !tagValue.startsWith(literalPrefix) || !pattern.matcher(tagValue).matches();
+                default:
+                    throw new IllegalArgumentException("Implement me for " + type);
+            }
+        }
+
+        public boolean matches(Tag tag) {
+            return key.equals(tag.getKey()) && matchesValue(tag.getValue());
+        }
+
+        /** A matcher matches a metric if at least one of its searchable (intrinsic or meta) tags matches. */
+        public boolean matches(Metric metric) {
+            for (Tag tag : metric.getIntrinsicTags()) {
+                if (matches(tag)) {
+                    return true;
+                }
+            }
+            for (Tag tag : metric.getMetaTags()) {
+                if (matches(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Rough cost of evaluating the matcher, used to break ties between equally selective matchers. */
+        int getEvaluationCost() {
+            switch (type) {
+                case EQUALS:
+                    return 0;
+                case NOT_EQUALS:
+                    return 1;
+                case EQUALS_REGEX:
+                    return literalPrefix.isEmpty() ? 3 : 2;
+                default:
+                    return 4;
+            }
+        }
+    }
+
+    /** The compiled matchers of a query, in evaluation order. */
+    public static class Plan {
+        private final List<CompiledTagMatcher> matchers;
+
+        private Plan(List<CompiledTagMatcher> matchers) {
+            this.matchers = matchers;
+        }
+
+        public List<CompiledTagMatcher> getMatchers() {
+            return matchers;
+        }
+
+        /** Each matcher must be matched by at least one tag. */
+        public boolean matches(Metric metric) {
+            for (CompiledTagMatcher matcher : matchers) {
+                if (!matcher.matches(metric)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns a copy of this plan ordered by the given estimate of matching metrics, ascending. Equal estimates
+         * are ordered by evaluation cost.
+         */
+        public Plan orderBy(ToLongFunction<CompiledTagMatcher> estimatedMatches) {
+            Map<CompiledTagMatcher, Long> estimates = new IdentityHashMap<>();
+            for (CompiledTagMatcher matcher : matchers) {
+                estimates.put(matcher, estimatedMatches.applyAsLong(matcher));
+            }
+            List<CompiledTagMatcher> ordered = new ArrayList<>(matchers);
+            ordered.sort(Comparator.<CompiledTagMatcher>comparingLong(estimates::get)
+                    .thenComparingInt(CompiledTagMatcher::getEvaluationCost));
+            return new Plan(ordered);
+        }
+    }
+
+    private final Map<String, Pattern> patterns = Collections.synchronizedMap(
+            new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+                    return size() > PATTERN_CACHE_SIZE;
+                }
+            });
+
+    /** Compiles the matchers, without statistics they are ordered by their evaluation cost only. */
+    public Plan compile(Collection<TagMatcher> tagMatchers) {
+        List<CompiledTagMatcher> compiled = new ArrayList<>(tagMatchers.size());
+        for (TagMatcher matcher : tagMatchers) {
+            compiled.add(compile(matcher));
+        }
+        compiled.sort(Comparator.comparingInt(CompiledTagMatcher::getEvaluationCost));
+        return new Plan(compiled);
+    }
+
+    private CompiledTagMatcher compile(TagMatcher matcher) {
+        TagMatcher.Type type = matcher.getType();
+        if (type != TagMatcher.Type.EQUALS_REGEX && type != TagMatcher.Type.NOT_EQUALS_REGEX) {
+            return new CompiledTagMatcher(type, matcher.getKey(), matcher.getValue(), null, "");
+        }
+        String regex = matcher.getValue();
+        if (isLiteral(regex)) {
+            // a regular expression without meta characters can only match itself
+            return new CompiledTagMatcher(type == TagMatcher.Type.EQUALS_REGEX ? TagMatcher.Type.EQUALS : TagMatcher.Type.NOT_EQUALS,
+                    matcher.getKey(), regex, null, "");
+        }
+        Pattern pattern = patterns.computeIfAbsent(regex, Pattern::compile);
+        return new CompiledTagMatcher(type, matcher.getKey(), regex, pattern, literalPrefix(regex));
+    }
+
+    static boolean isLiteral(String regex) {
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\' || REGEX_META_CHARACTERS.indexOf(c) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the literal text every match of the regular expression has to start with. Since tag values are matched
+     * as a whole the expression is anchored at the beginning anyway. Alternations make the prefix unknown.
+     */
+    static String literalPrefix(String regex) {
+        if (regex.indexOf('|') >= 0) {
+            return "";
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = regex.startsWith("^") ? 1 : 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next;
+            if (c == '\\') {
+                if (i + 1 >= regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    break; // character class like \d or a quote like \Q
+                }
+                c = regex.charAt(i + 1);
+                next = i + 2;
+            } else if (REGEX_META_CHARACTERS.indexOf(c) >= 0) {
+                break;
+            } else {
+                next = i + 1;
+            }
+            if (next < regex.length()) {
+                char quantifier = regex.charAt(next);
+                if (quantifier == '*' || quantifier == '?' || quantifier == '{') {
+                    break; // the character is optional or repeated a variable number of times
+                }
+                if (quantifier == '+') {
+                    prefix.append(c);
+                    break;
+                }
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+}
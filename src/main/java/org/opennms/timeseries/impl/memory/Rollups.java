@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rollup tiers: every tier holds min, max, sum and count of the samples of each metric per bucket of its resolution.
+ * The first tier is computed from the samples, every further tier from the tier before, so the resolution of a tier
+ * has to be a multiple of the one before.
+ */
+public final class Rollups {
+
+    /** min, max, sum and count of the samples of one bucket. */
+    public static class Aggregate {
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double sum = 0;
+        private long count = 0;
+
+        void add(double value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            count++;
+        }
+
+        void merge(double otherMin, double otherMax, double otherSum, long otherCount) {
+            min = Math.min(min, otherMin);
+            max = Math.max(max, otherMax);
+            sum += otherSum;
+            count += otherCount;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    /** Receives the aggregates, typically to write them to the database. */
+    @FunctionalInterface
+    public interface AggregateConsumer {
+        void accept(int idMetric, long bucket, Aggregate aggregate) throws SQLException;
+    }
+
+    /** Collects the aggregates per metric and bucket of one resolution. */
+    public static class Builder {
+        private final long resolution;
+        private final Map<Integer, Map<Long, Aggregate>> aggregates = new HashMap<>();
+
+        public Builder(long resolution) {
+            if (resolution < 1) {
+                throw new IllegalArgumentException("resolution must be positive but was " + resolution);
+            }
+            this.resolution = resolution;
+        }
+
+        public void add(int idMetric, long time, double value) {
+            aggregate(idMetric, Math.floorDiv(time, resolution) * resolution).add(value);
+        }
+
+        /** Adds the aggregate of samples of the bucket which were aggregated elsewhere, e.g. by the database. */
+        public void merge(int idMetric, long bucket, double min, double max, double sum, long count) {
+            aggregate(idMetric, bucket).merge(min, max, sum, count);
+        }
+
+        /** Returns a consumer adding the samples of one metric. */
+        public SampleConsumer samplesOf(int idMetric) {
+            return (time, value) -> add(idMetric, time, value);
+        }
+
+        public void forEach(AggregateConsumer consumer) throws SQLException {
+            for (Map.Entry<Integer, Map<Long, Aggregate>> metric : aggregates.entrySet()) {
+                for (Map.Entry<Long, Aggregate> bucket : metric.getValue().entrySet()) {
+                    consumer.accept(metric.getKey(), bucket.getKey(), bucket.getValue());
+                }
+            }
+        }
+
+        public int size() {
+            int size = 0;
+            for (Map<Long, Aggregate> buckets : aggregates.values()) {
+                size += buckets.size();
+            }
+            return size;
+        }
+
+        private Aggregate aggregate(int idMetric, long bucket) {
+            return aggregates.computeIfAbsent(idMetric, id -> new HashMap<>()).computeIfAbsent(bucket, b -> new Aggregate());
+        }
+    }
+
+    private Rollups() {
+    }
+
+    /**
+     * Parses a comma separated list of resolutions like "5m,1h", units are s, m, h and d. The resolutions have to be
+     * ascending and each one a multiple of the one before. Returns the resolutions in milliseconds.
+     */
+    public static List<Long> parseResolutions(String tiers) {
+        List<Long> resolutions = new ArrayList<>();
+        if (tiers == null || tiers.trim().isEmpty()) {
+            return resolutions;
+        }
+        for (String tier : tiers.split(",")) {
+            String trimmed = tier.trim();
+            TimeUnit unit;
+            switch (trimmed.isEmpty() ? ' ' : trimmed.charAt(trimmed.length() - 1)) {
+                case 's':
+                    unit = TimeUnit.SECONDS;
+                    break;
+                case 'm':
+                    unit = TimeUnit.MINUTES;
+                    break;
+                case 'h':
+                    unit = TimeUnit.HOURS;
+                    break;
+                case 'd':
+                    unit = TimeUnit.DAYS;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid rollup tier '" + trimmed + "', expected a number followed by s, m, h or d.");
+            }
+            long resolution;
+            try {
+                resolution = unit.toMillis(Long.parseLong(trimmed.substring(0, trimmed.length() - 1)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid rollup tier '" + trimmed + "', expected a number followed by s, m, h or d.");
+            }
+            if (resolution < 1) {
+                throw new IllegalArgumentException("Invalid rollup tier '" + trimmed + "', the resolution must be positive.");
+            }
+            if (!resolutions.isEmpty()) {
+                long previous = resolutions.get(resolutions.size() - 1);
+                if (resolution <= previous || resolution % previous != 0) {
+                    throw new IllegalArgumentException("Invalid rollup tier '" + trimmed + "', it has to be a multiple of the tier before.");
+                }
+            }
+            resolutions.add(resolution);
+        }
+        return resolutions;
+    }
+
+    /**
+     * Returns the coarsest resolution which evenly divides the step, so that every step bucket consists of whole
+     * rollup buckets. Returns 0 if there is none.
+     */
+    public static long chooseResolution(List<Long> resolutions, long step) {
+        long chosen = 0;
+        for (long resolution : resolutions) {
+            if (resolution <= step && step % resolution == 0) {
+                chosen = resolution;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Returns the first bucket of the resolution which ends after the cutoff, all buckets before it only aggregate
+     * samples older than the cutoff.
+     */
+    public static long firstRetainedBucket(long cutoff, long resolution) {
+        return Math.floorDiv(cutoff, resolution) * resolution;
+    }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import java.util.Arrays;
+
+/**
+ * Growable collection of samples of one metric in primitive arrays. Used to merge samples from several sources
+ * (rows and chunks) which each deliver them in time order, but not in time order with respect to each other.
+ */
+public class SampleBuffer implements SampleConsumer {
+
+    private long[] times = new long[64];
+    private double[] values = new double[64];
+    private int size = 0;
+    private boolean sorted = true;
+
+    @Override
+    public void accept(long time, double value) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        if (size > 0 && time < times[size - 1]) {
+            sorted = false;
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Hands all samples to the consumer in time order, samples with equal times in the order they were added. */
+    public void forEach(SampleConsumer consumer) {
+        if (!sorted) {
+            sort();
+        }
+        for (int i = 0; i < size; i++) {
+            consumer.accept(times[i], values[i]);
+        }
+    }
+
+    private void sort() {
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b])); // stable
+        long[] sortedTimes = new long[times.length];
+        double[] sortedValues = new double[values.length];
+        for (int i = 0; i < size; i++) {
+            sortedTimes[i] = times[order[i]];
+            sortedValues[i] = values[order[i]];
+        }
+        times = sortedTimes;
+        values = sortedValues;
+        sorted = true;
+    }
+}
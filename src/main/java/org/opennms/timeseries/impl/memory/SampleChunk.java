@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import java.util.Arrays;
+
+/**
+ * Fixed capacity block of samples of one metric, held in primitive arrays and sorted by time.
+ * The arrays grow on demand up to the capacity, so chunks which are rarely filled stay small.
+ * Not thread safe, callers synchronize on the owning series.
+ */
+public class SampleChunk {
+
+    private static final int INITIAL_SIZE = 8;
+
+    private final int capacity;
+    private long[] times;
+    private double[] values;
+    private int size = 0;
+
+    public SampleChunk(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive but was " + capacity);
+        }
+        this.capacity = capacity;
+        this.times = new long[Math.min(capacity, INITIAL_SIZE)];
+        this.values = new double[times.length];
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getFirstTime() {
+        return times[0];
+    }
+
+    public long getLastTime() {
+        return times[size - 1];
+    }
+
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    /** Adds the sample at its position in time order, the chunk must not be full. */
+    public void add(long time, double value) {
+        if (size == times.length) {
+            int length = Math.min(capacity, times.length * 2);
+            times = Arrays.copyOf(times, length);
+            values = Arrays.copyOf(values, length);
+        }
+        int position = size;
+        if (size > 0 && time < times[size - 1]) {
+            position = upperBound(time); // out of order: keep samples with equal times in arrival order
+            System.arraycopy(times, position, times, position + 1, size - position);
+            System.arraycopy(values, position, values, position + 1, size - position);
+        }
+        times[position] = time;
+        values[position] = value;
+        size++;
+    }
+
+    /** Moves the upper half of the samples into a new chunk of the same capacity. */
+    public SampleChunk split() {
+        SampleChunk upper = new SampleChunk(capacity);
+        int half = size / 2;
+        upper.size = size - half;
+        upper.times = new long[Math.max(upper.size, upper.times.length)];
+        upper.values = new double[upper.times.length];
+        System.arraycopy(times, half, upper.times, 0, upper.size);
+        System.arraycopy(values, half, upper.values, 0, upper.size);
+        size = half;
+        return upper;
+    }
+
+    /** Hands all samples within (start, end), both exclusive, to the consumer. */
+    public void read(long start, long end, SampleConsumer consumer) {
+        for (int i = upperBound(start); i < size && times[i] < end; i++) {
+            consumer.accept(times[i], values[i]);
+        }
+    }
+
+    /** Returns the index of the first sample with a time greater than the given one. */
+    private int upperBound(long time) {
+        int position = Arrays.binarySearch(times, 0, size, time);
+        if (position < 0) {
+            return -position - 1;
+        }
+        while (position < size && times[position] == time) {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import java.util.Arrays;
+
+/**
+ * Merges the samples of one metric stored as rows and as chunks into a single stream in time order. Rows and chunks
+ * have to be added ordered by their time respectively start time, as the database returns them. The samples of a
+ * chunk are held back in a heap until no row or chunk added later can precede them, so the memory used is bounded by
+ * the samples of the chunks overlapping each other, not by the length of the series.
+ */
+public class SampleMerger {
+
+    private final SampleConsumer consumer;
+
+    /** Binary min-heap on time of the decoded samples not yet handed to the consumer. */
+    private long[] times = new long[64];
+    private double[] values = new double[64];
+    private int size = 0;
+
+    public SampleMerger(SampleConsumer consumer) {
+        this.consumer = consumer;
+    }
+
+    public void addRow(long time, double value) {
+        release(time);
+        consumer.accept(time, value);
+    }
+
+    /** Adds the samples of the chunk within (start, end), both exclusive. */
+    public void addChunk(long startTime, byte[] data, long start, long end) {
+        release(startTime);
+        ChunkCodec.decode(data, start, end, this::push);
+    }
+
+    /** Hands the remaining samples to the consumer, to be called after the last row or chunk. */
+    public void finish() {
+        release(Long.MAX_VALUE);
+    }
+
+    /** Hands all held back samples up to and including the given time to the consumer. */
+    private void release(long time) {
+        while (size > 0 && times[0] <= time) {
+            consumer.accept(times[0], values[0]);
+            pop();
+        }
+    }
+
+    private void push(long time, double value) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (times[parent] <= time) {
+                break;
+            }
+            times[i] = times[parent];
+            values[i] = values[parent];
+            i = parent;
+        }
+        times[i] = time;
+        values[i] = value;
+    }
+
+    private void pop() {
+        size--;
+        long time = times[size];
+        double value = values[size];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && times[child + 1] < times[child]) {
+                child++;
+            }
+            if (times[child] >= time) {
+                break;
+            }
+            times[i] = times[child];
+            values[i] = values[child];
+            i = child;
+        }
+        times[i] = time;
+        values[i] = value;
+    }
+}
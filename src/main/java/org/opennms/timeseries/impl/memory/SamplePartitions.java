@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Layout of the time partitions of the sample table. Every partition holds the samples within [start, end), new
+ * partitions are aligned to multiples of the partition interval since the epoch. Partitions created with another
+ * interval are kept, new ones only fill the gaps between them.
+ * Samples outside of all partitions end up in the default partition.
+ */
+public final class SamplePartitions {
+
+    static final String NAME_PREFIX = "metric_samples_p";
+
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmm").withZone(ZoneOffset.UTC);
+
+    /** Matches the bound of a range partition as printed by pg_get_expr(relpartbound, oid). */
+    private static final Pattern RANGE_BOUND = Pattern.compile("FROM \\('?(-?\\d+)'?\\) TO \\('?(-?\\d+)'?\\)");
+
+    /** A partition holding the samples within [start, end). */
+    public static class Partition {
+        private final String name;
+        private final long start;
+        private final long end;
+
+        Partition(String name, long start, long end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Partition)) {
+                return false;
+            }
+            Partition partition = (Partition) o;
+            return start == partition.start && end == partition.end && name.equals(partition.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, start, end);
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + start + ", " + end + ")";
+        }
+    }
+
+    private SamplePartitions() {
+    }
+
+    /** Returns the partition described by the bound, null if it isn't a range partition, e.g. the default one. */
+    static Partition parse(String name, String bound) {
+        Matcher matcher = bound == null ? null : RANGE_BOUND.matcher(bound);
+        if (matcher == null || !matcher.find()) {
+            return null;
+        }
+        return new Partition(name, Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)));
+    }
+
+    static String nameOf(long start) {
+        return NAME_PREFIX + NAME_FORMAT.format(Instant.ofEpochMilli(start));
+    }
+
+    /**
+     * Returns the partitions which have to be created so that the interval containing now and the following ahead
+     * intervals are covered, ordered by time.
+     */
+    static List<Partition> missing(Collection<Partition> existing, long now, long interval, int ahead) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("interval must be positive but was " + interval);
+        }
+        List<Partition> sorted = new ArrayList<>(existing);
+        sorted.sort(Comparator.comparingLong(Partition::getStart));
+        List<Partition> missing = new ArrayList<>();
+        long first = Math.floorDiv(now, interval) * interval;
+        for (int i = 0; i <= ahead; i++) {
+            long start = first + i * interval;
+            long end = start + interval;
+            for (Partition partition : sorted) {
+                if (partition.getEnd() <= start || partition.getStart() >= end) {
+                    continue;
+                }
+                if (partition.getStart() <= start) {
+                    start = partition.getEnd(); // cut off the covered beginning
+                } else {
+                    missing.add(new Partition(nameOf(start), start, partition.getStart()));
+                    start = partition.getEnd(); // the gap before is missing, continue after the partition
+                }
+                if (start >= end) {
+                    break;
+                }
+            }
+            if (start < end) {
+                missing.add(new Partition(nameOf(start), start, end));
+            }
+        }
+        return missing;
+    }
+
+    /** Returns the partitions which hold only samples older than the cutoff. */
+    static List<Partition> expired(Collection<Partition> existing, long cutoff) {
+        List<Partition> expired = new ArrayList<>();
+        for (Partition partition : existing) {
+            if (partition.getEnd() <= cutoff) {
+                expired.add(partition);
+            }
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,330 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTag;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Local, append-only store for samples which could not be written to the database. Samples are appended to memory
+ * mapped segment files, so they survive a crash of the JVM once appended, and are handed back in the order they were
+ * spooled by {@link #replay(Predicate)}. Fully replayed segments are deleted.
+ * <p>
+ * Every {@link #append(List)} becomes one record: length (4 bytes), CRC32 of the payload (4 bytes) and the payload,
+ * which contains every distinct metric of the samples once, followed by the samples as
+ * (metric index, time, value). A length of 0 marks the end of the written part of a segment, a record with a wrong
+ * checksum the end of a segment which was torn by a crash.
+ * <p>
+ * Replay is at-least-once: records replayed before a restart of the JVM are replayed once more after it.
+ */
+public class SampleSpool implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static class Segment {
+        private final Path path;
+        private MappedByteBuffer buffer;
+        private int end; // end of the written records
+        private int replayed = 0; // start of the first record not yet replayed
+
+        private Segment(Path path) {
+            this.path = path;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long maximumSize;
+    private final Deque<Segment> sealed = new ArrayDeque<>();
+    private Segment current;
+    private long nextSequence = 0;
+    private long pendingBytes = 0;
+    private final Object replayLock = new Object();
+
+    /** Opens the spool, segments left by a previous run are recovered and replayed first. */
+    public SampleSpool(Path directory, int segmentSize, long maximumSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER_SIZE || maximumSize < segmentSize) {
+            throw new IllegalArgumentException(String.format("Invalid spool configuration: segmentSize=%d, " +
+                    "maximumSize=%d", segmentSize, maximumSize));
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maximumSize = maximumSize;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Appends the samples as one record. Returns false if the spool is full, the samples are not stored then.
+     */
+    public synchronized boolean append(List<Sample> samples) throws IOException {
+        byte[] payload = encode(samples);
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (pendingBytes + recordSize > maximumSize) {
+            return false;
+        }
+        if (current == null || current.buffer.remaining() < recordSize + 4) { // keep room for the end marker
+            seal();
+            current = createSegment(Math.max(segmentSize, recordSize + 4));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        // the length is written last, so a torn record is never mistaken for a complete one
+        int start = current.buffer.position();
+        current.buffer.position(start + 4);
+        current.buffer.putInt((int) crc.getValue());
+        current.buffer.put(payload);
+        current.buffer.putInt(start, payload.length);
+        current.end = current.buffer.position();
+        pendingBytes += recordSize;
+        return true;
+    }
+
+    /**
+     * Hands the spooled samples, record by record and in spool order, to the sink until the sink returns false.
+     * Returns the number of replayed samples.
+     */
+    public long replay(Predicate<List<Sample>> sink) throws IOException {
+        synchronized (replayLock) {
+            long replayed = 0;
+            while (true) {
+                Segment segment;
+                synchronized (this) {
+                    if (sealed.isEmpty() && current != null && current.end > 0) {
+                        seal(); // only replay the segment which is being written once everything older is gone
+                    }
+                    segment = sealed.peekFirst();
+                }
+                if (segment == null) {
+                    return replayed;
+                }
+                ByteBuffer buffer = segment.buffer.duplicate();
+                int position = segment.replayed;
+                while (position < segment.end) {
+                    buffer.position(position);
+                    int length = buffer.getInt();
+                    buffer.getInt(); // checksum, verified when the segment was recovered or written by us
+                    byte[] payload = new byte[length];
+                    buffer.get(payload);
+                    List<Sample> samples = decode(payload);
+                    if (!sink.test(samples)) {
+                        return replayed;
+                    }
+                    replayed += samples.size();
+                    position = buffer.position();
+                    segment.replayed = position;
+                    synchronized (this) {
+                        pendingBytes -= RECORD_HEADER_SIZE + length;
+                    }
+                }
+                synchronized (this) {
+                    sealed.pollFirst();
+                }
+                delete(segment);
+            }
+        }
+    }
+
+    /** Number of bytes of spooled records which were not replayed yet. */
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingBytes == 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (current != null) {
+            current.buffer.force();
+        }
+        sealed.forEach(segment -> segment.buffer = null);
+        sealed.clear();
+        current = null;
+    }
+
+    private void seal() {
+        if (current == null) {
+            return;
+        }
+        current.buffer.force();
+        if (current.end > 0) {
+            sealed.addLast(current);
+        } else {
+            delete(current);
+        }
+        current = null;
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        Segment segment = new Segment(directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX,
+                nextSequence, SEGMENT_SUFFIX)));
+        nextSequence++;
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        return segment;
+    }
+
+    /** Maps all segments found in the directory and determines the end of their valid records. */
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(Comparator.naturalOrder()); // the sequence is zero padded
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            long sequence = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+            segment.end = findEnd(segment.buffer);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (segment.end > 0) {
+                sealed.addLast(segment);
+                pendingBytes += segment.end;
+            } else {
+                delete(segment);
+            }
+        }
+    }
+
+    private static int findEnd(ByteBuffer segment) {
+        ByteBuffer buffer = segment.duplicate();
+        int end = 0;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break; // torn by a crash, the rest of the segment is lost
+            }
+            end = buffer.position();
+        }
+        return end;
+    }
+
+    private static void delete(Segment segment) {
+        segment.buffer = null;
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] encode(List<Sample> samples) throws IOException {
+        Map<String, Integer> metricIndexes = new HashMap<>();
+        List<Metric> metrics = new ArrayList<>();
+        for (Sample sample : samples) {
+            if (metricIndexes.putIfAbsent(sample.getMetric().getKey(), metrics.size()) == null) {
+                metrics.add(sample.getMetric());
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + samples.size() * 20);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(metrics.size());
+            for (Metric metric : metrics) {
+                writeTags(out, metric.getIntrinsicTags());
+                writeTags(out, metric.getMetaTags());
+                writeTags(out, metric.getExternalTags());
+            }
+            out.writeInt(samples.size());
+            for (Sample sample : samples) {
+                out.writeInt(metricIndexes.get(sample.getMetric().getKey()));
+                out.writeLong(sample.getTime().toEpochMilli());
+                out.writeDouble(sample.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<Sample> decode(byte[] payload) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            Metric[] metrics = new Metric[in.readInt()];
+            for (int i = 0; i < metrics.length; i++) {
+                metrics[i] = new ImmutableMetric(readTags(in), readTags(in), readTags(in));
+            }
+            int count = in.readInt();
+            List<Sample> samples = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                samples.add(ImmutableSample.builder()
+                        .metric(metrics[in.readInt()])
+                        .time(Instant.ofEpochMilli(in.readLong()))
+                        .value(in.readDouble())
+                        .build());
+            }
+            return samples;
+        }
+    }
+
+    private static void writeTags(DataOutputStream out, Set<Tag> tags) throws IOException {
+        out.writeInt(tags.size());
+        for (Tag tag : tags) {
+            out.writeUTF(tag.getKey());
+            out.writeUTF(tag.getValue());
+        }
+    }
+
+    private static Set<Tag> readTags(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<Tag> tags = new HashSet<>(count);
+        for (int i = 0; i < count; i++) {
+            tags.add(new ImmutableTag(in.readUTF(), in.readUTF()));
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Consistent hash ring assigning metric keys to shards. Every shard is placed on the ring at {@value #VIRTUAL_NODES}
+ * points derived from its name, a key belongs to the shard owning the first point at or after the hash of the key.
+ * The assignment only depends on the names, not on the order of the shards, and adding a shard only moves the keys
+ * which fall onto its points, about 1/N of all keys.
+ */
+public class ShardRing {
+
+    static final int VIRTUAL_NODES = 160;
+
+    private final List<String> names;
+    private final long[] points; // sorted
+    private final int[] shards; // shard of each point
+
+    public ShardRing(List<String> names) {
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+        if (new HashSet<>(names).size() != names.size()) {
+            throw new IllegalArgumentException("The names of the shards must be unique: " + names);
+        }
+        this.names = new ArrayList<>(names);
+        long[][] ring = new long[names.size() * VIRTUAL_NODES][];
+        for (int shard = 0; shard < names.size(); shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring[shard * VIRTUAL_NODES + node] = new long[]{hash(names.get(shard) + "#" + node), shard};
+            }
+        }
+        // points of different shards colliding are ordered by name, so that the order of the shards doesn't matter
+        Arrays.sort(ring, Comparator.<long[]>comparingLong(point -> point[0])
+                .thenComparing(point -> names.get((int) point[1])));
+        this.points = new long[ring.length];
+        this.shards = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            shards[i] = (int) ring[i][1];
+        }
+    }
+
+    /** Returns the index of the shard the key belongs to. */
+    public int shardOf(String key) {
+        int position = Arrays.binarySearch(points, hash(key));
+        if (position < 0) {
+            position = -position - 1;
+        } else {
+            while (position > 0 && points[position - 1] == points[position]) {
+                position--; // the first of equal points
+            }
+        }
+        return shards[position == points.length ? 0 : position];
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
+    }
+
+    /** 64 bit FNV-1a of the UTF-8 bytes, followed by the finalizer of MurmurHash3 to spread similar keys. */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
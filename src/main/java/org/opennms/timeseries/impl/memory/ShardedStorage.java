@@ -0,0 +1,465 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricRegistryListener;
+import com.codahale.metrics.Timer;
+import org.opennms.integration.api.v1.timeseries.*;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.LongConsumer;
+
+/**
+ * Spreads the metrics over several databases, each one served by an {@link InMemoryStorage} of its own with its own
+ * connection pool. A {@link ShardRing} over the names of the shards assigns every metric to one shard by its key.
+ * Writes are split per shard and written in parallel, reads of a metric go to its shard and metric searches are sent
+ * to all shards in parallel and merged.
+ * <p>
+ * After a shard was added the metrics assigned to it are still stored on their old shards, {@link #rebalance} moves
+ * them. Until then reads of these metrics miss the samples written before.
+ */
+public class ShardedStorage {
+
+    /** Number of samples written to the new shard of a metric at once while rebalancing. */
+    static final int REBALANCE_BATCH_SIZE = 10_000;
+
+    private static final Instant FIRST = Instant.ofEpochMilli(Long.MIN_VALUE);
+    private static final Instant LAST = Instant.ofEpochMilli(Long.MAX_VALUE);
+
+    /** Carries the failure to write a batch while rebalancing out of the sample consumer. */
+    private static class BatchFailure extends RuntimeException {
+        private BatchFailure(StorageException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized StorageException getCause() {
+            return (StorageException) super.getCause();
+        }
+    }
+
+    @FunctionalInterface
+    private interface ShardCall<T> {
+        T call(int index) throws Exception;
+    }
+
+    /** Registers the metrics of a shard in the registry of the sharded storage as well, under a prefix. */
+    private static class MirroringListener implements MetricRegistryListener {
+        private final MetricRegistry target;
+        private final String prefix;
+
+        private MirroringListener(MetricRegistry target, String prefix) {
+            this.target = target;
+            this.prefix = prefix;
+        }
+
+        private void add(String name, com.codahale.metrics.Metric metric) {
+            target.remove(prefix + name);
+            target.register(prefix + name, metric);
+        }
+
+        private void remove(String name) {
+            target.remove(prefix + name);
+        }
+
+        @Override
+        public void onGaugeAdded(String name, Gauge<?> gauge) {
+            add(name, gauge);
+        }
+
+        @Override
+        public void onGaugeRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onCounterAdded(String name, Counter counter) {
+            add(name, counter);
+        }
+
+        @Override
+        public void onCounterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onHistogramAdded(String name, Histogram histogram) {
+            add(name, histogram);
+        }
+
+        @Override
+        public void onHistogramRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onMeterAdded(String name, Meter meter) {
+            add(name, meter);
+        }
+
+        @Override
+        public void onMeterRemoved(String name) {
+            remove(name);
+        }
+
+        @Override
+        public void onTimerAdded(String name, Timer timer) {
+            add(name, timer);
+        }
+
+        @Override
+        public void onTimerRemoved(String name) {
+            remove(name);
+        }
+    }
+
+    private final List<InMemoryStorage> shards;
+    private final ShardRing ring;
+    private final MetricRegistry metrics;
+    private final ExecutorService executor;
+
+    /**
+     * The metrics of every shard are mirrored into the given registry, prefixed by shard&lt;index&gt;. The shards
+     * are initialized by {@link #initialize()}.
+     */
+    public ShardedStorage(List<String> names, List<InMemoryStorage> shards, MetricRegistry metrics) {
+        if (names.size() != shards.size()) {
+            throw new IllegalArgumentException("Expected a name for each of the " + shards.size() + " shards but got " + names);
+        }
+        this.shards = new ArrayList<>(shards);
+        this.ring = new ShardRing(names);
+        this.metrics = Objects.requireNonNull(metrics);
+        this.executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tss-inmemory-shard-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < this.shards.size(); i++) {
+            this.shards.get(i).getMetrics().addListener(new MirroringListener(metrics, "shard" + i + "."));
+        }
+    }
+
+    public void initialize() throws SQLException {
+        for (InMemoryStorage shard : shards) {
+            shard.initialize();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        for (InMemoryStorage shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    public void store(List<Sample> samples) throws StorageException {
+        Map<Integer, List<Sample>> samplesByShard = new HashMap<>();
+        for (Sample sample : samples) {
+            samplesByShard.computeIfAbsent(shardOf(sample.getMetric()), s -> new ArrayList<>()).add(sample);
+        }
+        List<Integer> indexes = new ArrayList<>(samplesByShard.keySet());
+        onShards(indexes, index -> {
+            shards.get(index).store(samplesByShard.get(index));
+            return null;
+        });
+    }
+
+    /** Every shard is searched, a metric found on two shards while it is moved is returned once. */
+    public List<Metric> findMetrics(Collection<TagMatcher> tagMatchers) throws StorageException {
+        Map<String, Metric> metricsByKey = new LinkedHashMap<>();
+        for (List<Metric> found : onAllShards(index -> shards.get(index).findMetrics(tagMatchers))) {
+            for (Metric metric : found) {
+                metricsByKey.putIfAbsent(metric.getKey(), metric);
+            }
+        }
+        return new ArrayList<>(metricsByKey.values());
+    }
+
+    public List<Sample> getTimeseries(TimeSeriesFetchRequest request) throws StorageException {
+        return shardFor(request.getMetric()).getTimeseries(request);
+    }
+
+    /** The requests are grouped by shard, the groups are read in parallel. */
+    public List<List<Sample>> getTimeseries(List<TimeSeriesFetchRequest> requests) throws StorageException {
+        Map<Integer, List<Integer>> requestsByShard = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            requestsByShard.computeIfAbsent(shardOf(requests.get(i).getMetric()), s -> new ArrayList<>()).add(i);
+        }
+        List<Integer> indexes = new ArrayList<>(requestsByShard.keySet());
+        List<List<List<Sample>>> resultsByShard = onShards(indexes, index -> {
+            List<TimeSeriesFetchRequest> group = new ArrayList<>();
+            for (int i : requestsByShard.get(index)) {
+                group.add(requests.get(i));
+            }
+            return shards.get(index).getTimeseries(group);
+        });
+        List<List<Sample>> results = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        for (int s = 0; s < indexes.size(); s++) {
+            List<Integer> group = requestsByShard.get(indexes.get(s));
+            for (int i = 0; i < group.size(); i++) {
+                results.set(group.get(i), resultsByShard.get(s).get(i));
+            }
+        }
+        return results;
+    }
+
+    public void streamTimeseries(Metric metric, Instant start, Instant end, SampleConsumer consumer) throws StorageException {
+        shardFor(metric).streamTimeseries(metric, start, end, consumer);
+    }
+
+    public List<Sample> getLatestSamples(Collection<Metric> metrics) throws StorageException {
+        Map<Integer, List<Metric>> metricsByShard = new HashMap<>();
+        for (Metric metric : metrics) {
+            metricsByShard.computeIfAbsent(shardOf(metric), s -> new ArrayList<>()).add(metric);
+        }
+        Map<String, Sample> latestByKey = new HashMap<>();
+        for (List<Sample> latest : onShards(new ArrayList<>(metricsByShard.keySet()),
+                index -> shards.get(index).getLatestSamples(metricsByShard.get(index)))) {
+            for (Sample sample : latest) {
+                latestByKey.put(sample.getMetric().getKey(), sample);
+            }
+        }
+        List<Sample> results = new ArrayList<>(latestByKey.size());
+        for (Metric metric : metrics) {
+            Sample sample = latestByKey.remove(metric.getKey());
+            if (sample != null) {
+                results.add(sample);
+            }
+        }
+        return results;
+    }
+
+    public List<Sample> findLatestSamples(Collection<TagMatcher> tagMatchers) throws StorageException {
+        return getLatestSamples(findMetrics(tagMatchers));
+    }
+
+    /** The metric is deleted on every shard, while it is moved it is stored on two. */
+    public void delete(Metric metric) throws StorageException {
+        onAllShards(index -> {
+            shards.get(index).delete(metric);
+            return null;
+        });
+    }
+
+    public int delete(Collection<TagMatcher> tagMatchers) throws StorageException {
+        int deleted = 0;
+        for (int count : onAllShards(index -> shards.get(index).delete(tagMatchers))) {
+            deleted += count;
+        }
+        return deleted;
+    }
+
+    /**
+     * Moves every metric stored on another shard than the one it belongs to, e.g. after a shard was added. The
+     * samples of a metric are streamed from the old shard and written to the new one in batches of
+     * {@value #REBALANCE_BATCH_SIZE} while streaming, once the last batch is written the metric is deleted on the old
+     * shard. New samples already go to the new shard meanwhile. If the move of a
+     * metric fails it stays on the old shard and the exception is thrown, the next run moves it again and skips the
+     * samples the new shard got from the failed run. Rollups of the moved samples are
+     * only computed if the rollup watermarks of the new shard are still behind them.
+     * Returns the number of moved metrics, progress receives the count after every metric.
+     */
+    public long rebalance(LongConsumer progress) throws StorageException {
+        long moved = 0;
+        for (int index = 0; index < shards.size(); index++) {
+            InMemoryStorage source = shards.get(index);
+            for (Metric metric : source.getAllMetrics()) {
+                int owner = ring.shardOf(metric.getKey());
+                if (owner == index) {
+                    continue;
+                }
+                InMemoryStorage target = shards.get(owner);
+                Set<Long> present = new HashSet<>(); // copied by a failed run before, or new samples
+                target.streamTimeseries(metric, FIRST, LAST, (time, value) -> present.add(time));
+                List<Sample> batch = new ArrayList<>();
+                long[] copied = new long[1];
+                try {
+                    source.streamTimeseries(metric, FIRST, LAST, (time, value) -> {
+                        if (present.contains(time)) {
+                            return;
+                        }
+                        batch.add(ImmutableSample.builder()
+                                .metric(metric)
+                                .time(Instant.ofEpochMilli(time))
+                                .value(value)
+                                .build());
+                        if (batch.size() >= REBALANCE_BATCH_SIZE) {
+                            writeBatch(target, batch);
+                            copied[0] += REBALANCE_BATCH_SIZE;
+                        }
+                    });
+                    copied[0] += batch.size();
+                    writeBatch(target, batch);
+                } catch (BatchFailure e) {
+                    throw e.getCause();
+                }
+                source.deleteDirectly(metric);
+                this.metrics.meter("rebalance.metrics").mark();
+                this.metrics.meter("rebalance.samples").mark(copied[0]);
+                progress.accept(++moved);
+            }
+        }
+        return moved;
+    }
+
+    /** Writes and clears the batch, a failure is passed through the sample consumer as {@link BatchFailure}. */
+    private static void writeBatch(InMemoryStorage target, List<Sample> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            target.storeDirectly(batch);
+        } catch (StorageException e) {
+            throw new BatchFailure(e);
+        }
+        batch.clear();
+    }
+
+    public void runMaintenance() {
+        for (InMemoryStorage shard : shards) {
+            shard.runMaintenance();
+        }
+    }
+
+    public void runRollups() {
+        for (InMemoryStorage shard : shards) {
+            shard.runRollups();
+        }
+    }
+
+    public void dropTables() throws SQLException {
+        for (InMemoryStorage shard : shards) {
+            shard.dropTables();
+        }
+    }
+
+    public boolean hasLegacyTables() {
+        return shards.stream().anyMatch(InMemoryStorage::hasLegacyTables);
+    }
+
+    public long migrateLegacySamples(int chunkSize, LongConsumer progress) throws SQLException {
+        long moved = 0;
+        for (InMemoryStorage shard : shards) {
+            long before = moved;
+            moved += shard.migrateLegacySamples(chunkSize, total -> progress.accept(before + total));
+        }
+        return moved;
+    }
+
+    public void resetMetrics() {
+        for (InMemoryStorage shard : shards) {
+            shard.resetMetrics();
+        }
+    }
+
+    public int size() {
+        return shards.size();
+    }
+
+    int shardOf(Metric metric) {
+        return ring.shardOf(metric.getKey());
+    }
+
+    private InMemoryStorage shardFor(Metric metric) {
+        return shards.get(shardOf(metric));
+    }
+
+    private <T> List<T> onAllShards(ShardCall<T> call) throws StorageException {
+        List<Integer> indexes = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            indexes.add(i);
+        }
+        return onShards(indexes, call);
+    }
+
+    /**
+     * Runs the call for each of the shards in parallel and returns the results in the order of the indexes. The
+     * first failure is thrown once all calls are done.
+     */
+    private <T> List<T> onShards(List<Integer> indexes, ShardCall<T> call) throws StorageException {
+        List<T> results = new ArrayList<>(indexes.size());
+        if (indexes.size() == 1) {
+            try {
+                results.add(call.call(indexes.get(0)));
+            } catch (StorageException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new StorageException("The call on shard " + indexes.get(0) + " failed.", e);
+            }
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            futures.add(executor.submit(() -> call.call(index)));
+        }
+        Throwable failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new StorageException("Interrupted while waiting for the shards.", e);
+            } catch (ExecutionException e) {
+                results.add(null);
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof StorageException) {
+            throw (StorageException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new StorageException("The call on a shard failed.", failure);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Tag;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the searchable (intrinsic and meta) tags of all known metrics:
+ * tag key -> tag value -> posting list of metric ordinals.
+ * Every metric gets a dense ordinal assigned by the index itself, ordinals of removed metrics are reused.
+ * Posting lists are sorted int arrays, the result of a query is built as a bitmap of ordinals.
+ * The values of a key are kept sorted, so regular expressions with a literal prefix only look at the values
+ * starting with that prefix.
+ */
+public class TagIndex {
+
+    /** Once the candidates are fewer than this, the remaining matchers are checked against each candidate. */
+    private static final int CANDIDATE_FILTER_THRESHOLD = 256;
+
+    /** Sorted list of metric ordinals. */
+    static class PostingList {
+        private int[] ordinals = new int[2];
+        private int size = 0;
+
+        void add(int ordinal) {
+            if (size == 0 || ordinals[size - 1] < ordinal) {
+                // new ordinals are mostly increasing: append
+                ensureCapacity();
+                ordinals[size++] = ordinal;
+                return;
+            }
+            int position = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (position >= 0) {
+                return;
+            }
+            position = -position - 1;
+            ensureCapacity();
+            System.arraycopy(ordinals, position, ordinals, position + 1, size - position);
+            ordinals[position] = ordinal;
+            size++;
+        }
+
+        void remove(int ordinal) {
+            int position = Arrays.binarySearch(ordinals, 0, size, ordinal);
+            if (position >= 0) {
+                System.arraycopy(ordinals, position + 1, ordinals, position, size - position - 1);
+                size--;
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void addTo(BitSet bitSet) {
+            for (int i = 0; i < size; i++) {
+                bitSet.set(ordinals[i]);
+            }
+        }
+
+        private void ensureCapacity() {
+            if (size == ordinals.length) {
+                ordinals = Arrays.copyOf(ordinals, ordinals.length + (ordinals.length >> 1) + 1);
+            }
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, NavigableMap<String, PostingList>> index = new HashMap<>();
+    private final Map<String, Integer> postingsPerKey = new HashMap<>();
+    private final Map<String, Integer> ordinalsByKey = new HashMap<>();
+    private final List<Metric> metrics = new ArrayList<>();
+    private final Deque<Integer> freeOrdinals = new ArrayDeque<>();
+    private volatile boolean complete = false;
+
+    /** Adds the metric if it is not yet indexed. */
+    public void add(Metric metric) {
+        lock.readLock().lock();
+        try {
+            if (ordinalsByKey.containsKey(metric.getKey())) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (ordinalsByKey.containsKey(metric.getKey())) {
+                return;
+            }
+            int ordinal;
+            if (freeOrdinals.isEmpty()) {
+                ordinal = metrics.size();
+                metrics.add(metric);
+            } else {
+                ordinal = freeOrdinals.pop();
+                metrics.set(ordinal, metric);
+            }
+            ordinalsByKey.put(metric.getKey(), ordinal);
+            for (Tag tag : searchableTags(metric)) {
+                PostingList postings = index.computeIfAbsent(tag.getKey(), k -> new TreeMap<>())
+                        .computeIfAbsent(tag.getValue(), v -> new PostingList());
+                int size = postings.size();
+                postings.add(ordinal);
+                if (postings.size() > size) {
+                    postingsPerKey.merge(tag.getKey(), 1, Integer::sum);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String metricKey) {
+        lock.writeLock().lock();
+        try {
+            Integer ordinal = ordinalsByKey.remove(metricKey);
+            if (ordinal == null) {
+                return;
+            }
+            for (Tag tag : searchableTags(metrics.get(ordinal))) {
+                Map<String, PostingList> values = index.get(tag.getKey());
+                PostingList postings = values == null ? null : values.get(tag.getValue());
+                if (postings == null) {
+                    continue; // the same tag was both an intrinsic and a meta tag
+                }
+                int size = postings.size();
+                postings.remove(ordinal);
+                if (postings.size() < size) {
+                    postingsPerKey.merge(tag.getKey(), -1, Integer::sum);
+                }
+                if (postings.isEmpty()) {
+                    values.remove(tag.getValue());
+                    if (values.isEmpty()) {
+                        index.remove(tag.getKey());
+                        postingsPerKey.remove(tag.getKey());
+                    }
+                }
+            }
+            metrics.set(ordinal, null);
+            freeOrdinals.push(ordinal);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns all metrics matched by every matcher of the plan. A matcher matches a metric if at least one of the
+     * searchable tags of the metric satisfies it.
+     * The matchers are reordered by their estimated number of matches. The most selective matcher is evaluated on the
+     * index, the following ones are intersected as bitmaps, or checked on each candidate once only a few are left.
+     */
+    public List<Metric> find(QueryPlanner.Plan plan) {
+        lock.readLock().lock();
+        try {
+            BitSet result = null;
+            for (QueryPlanner.CompiledTagMatcher matcher : plan.orderBy(this::estimateMatches).getMatchers()) {
+                if (result == null) {
+                    result = evaluate(matcher);
+                } else if (result.cardinality() < CANDIDATE_FILTER_THRESHOLD) {
+                    for (int ordinal = result.nextSetBit(0); ordinal >= 0; ordinal = result.nextSetBit(ordinal + 1)) {
+                        if (!matcher.matches(metrics.get(ordinal))) {
+                            result.clear(ordinal);
+                        }
+                    }
+                } else {
+                    result.and(evaluate(matcher));
+                }
+                if (result.isEmpty()) {
+                    return new ArrayList<>();
+                }
+            }
+            List<Metric> metricsFound = new ArrayList<>(result == null ? 0 : result.cardinality());
+            if (result != null) {
+                for (int ordinal = result.nextSetBit(0); ordinal >= 0; ordinal = result.nextSetBit(ordinal + 1)) {
+                    metricsFound.add(metrics.get(ordinal));
+                }
+            }
+            return metricsFound;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Marks the index as containing every known metric, only a complete index may answer queries. */
+    public void setComplete(boolean complete) {
+        this.complete = complete;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ordinalsByKey.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Number of postings of all values of the key, the base of the estimates of the matchers of the key. */
+    int getPostingCount(String key) {
+        lock.readLock().lock();
+        try {
+            return postingsPerKey.getOrDefault(key, 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            postingsPerKey.clear();
+            ordinalsByKey.clear();
+            metrics.clear();
+            freeOrdinals.clear();
+            complete = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Estimates the number of metrics matched by the matcher, only exact for EQUALS. */
+    private long estimateMatches(QueryPlanner.CompiledTagMatcher matcher) {
+        NavigableMap<String, PostingList> values = index.get(matcher.getKey());
+        if (values == null) {
+            return 0;
+        }
+        int postingsOfKey = postingsPerKey.getOrDefault(matcher.getKey(), 0);
+        PostingList postings;
+        switch (matcher.getType()) {
+            case EQUALS:
+                postings = values.get(matcher.getValue());
+                return postings == null ? 0 : postings.size();
+            case NOT_EQUALS:
+                postings = values.get(matcher.getValue());
+                return postingsOfKey - (postings == null ? 0 : postings.size());
+            case EQUALS_REGEX:
+                // without statistics about the expression we assume that a prefix halves the candidates
+                return matcher.getLiteralPrefix().isEmpty() ? postingsOfKey : postingsOfKey / 2;
+            default:
+                return postingsOfKey;
+        }
+    }
+
+    private BitSet evaluate(QueryPlanner.CompiledTagMatcher matcher) {
+        BitSet matches = new BitSet();
+        NavigableMap<String, PostingList> values = index.get(matcher.getKey());
+        if (values == null) {
+            return matches;
+        }
+        if (TagMatcher.Type.EQUALS == matcher.getType()) {
+            PostingList postings = values.get(matcher.getValue());
+            if (postings != null) {
+                postings.addTo(matches);
+            }
+            return matches;
+        }
+        Map<String, PostingList> candidates = values;
+        if (TagMatcher.Type.EQUALS_REGEX == matcher.getType() && !matcher.getLiteralPrefix().isEmpty()) {
+            candidates = values.subMap(matcher.getLiteralPrefix(), true, matcher.getLiteralPrefix() + Character.MAX_VALUE, false);
+        }
+        for (Map.Entry<String, PostingList> value : candidates.entrySet()) {
+            if (matcher.matchesValue(value.getKey())) {
+                value.getValue().addTo(matches);
+            }
+        }
+        return matches;
+    }
+
+    private static List<Tag> searchableTags(Metric metric) {
+        List<Tag> tags = new ArrayList<>(metric.getIntrinsicTags().size() + metric.getMetaTags().size());
+        tags.addAll(metric.getIntrinsicTags());
+        tags.addAll(metric.getMetaTags());
+        return tags;
+    }
+}
@@ -0,0 +1,249 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.opennms.integration.api.v1.timeseries.Sample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded ring buffer of samples which is drained by dedicated flusher threads. Producers only enqueue, so their
+ * latency doesn't depend on the database. A flusher waits up to the linger time for a full batch before it hands
+ * the samples to the sink, so even a slow trickle of samples is written in batches.
+ * What happens when the queue is full depends on the {@link Policy}.
+ */
+public class WriteBehindQueue {
+
+    public enum Policy {
+        /** The producer waits until there is room. */
+        BLOCK,
+        /** The oldest queued samples are dropped to make room. */
+        DROP_OLDEST,
+        /** The new samples are rejected as a whole. */
+        REJECT;
+
+        public static Policy parse(String policy) {
+            return valueOf(policy.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private static final String METRIC_PREFIX = "writeBehind.";
+
+    private final Sample[] ring;
+    private int head = 0;
+    private int size = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final int batchSize;
+    private final long lingerNanos;
+    private final Policy policy;
+    private final Consumer<List<Sample>> sink;
+    private final List<Thread> flushers = new ArrayList<>();
+    private volatile boolean running = false;
+
+    private final MetricRegistry metrics;
+
+    public WriteBehindQueue(int capacity, int batchSize, long lingerMillis, Policy policy, int flusherThreads,
+                            Consumer<List<Sample>> sink, MetricRegistry metrics) {
+        if (capacity < 1 || batchSize < 1 || flusherThreads < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException(String.format("Invalid write-behind configuration: capacity=%d, " +
+                    "batchSize=%d, flusherThreads=%d, lingerMillis=%d", capacity, batchSize, flusherThreads, lingerMillis));
+        }
+        this.ring = new Sample[capacity];
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.policy = Objects.requireNonNull(policy);
+        this.sink = Objects.requireNonNull(sink);
+        this.metrics = Objects.requireNonNull(metrics);
+        metrics.register(METRIC_PREFIX + "queueDepth", (Gauge<Integer>) this::size);
+        for (int i = 0; i < flusherThreads; i++) {
+            Thread flusher = new Thread(this::flush, "tss-inmemory-flusher-" + i);
+            flusher.setDaemon(true);
+            flushers.add(flusher);
+        }
+    }
+
+    public void start() {
+        running = true;
+        flushers.forEach(Thread::start);
+    }
+
+    /** Stops accepting samples and waits up to the timeout for the flushers to write what is queued. */
+    public void stop(long timeoutMillis) {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Thread flusher : flushers) {
+            try {
+                flusher.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        metrics.remove(METRIC_PREFIX + "queueDepth");
+    }
+
+    /**
+     * Queues the samples. Returns false if they were rejected, because the queue is full and the policy is
+     * {@link Policy#REJECT} or because the queue was stopped.
+     */
+    public boolean offer(List<Sample> samples) throws InterruptedException {
+        lock.lock();
+        try {
+            if (!running) {
+                metrics.meter(METRIC_PREFIX + "rejected").mark(samples.size());
+                return false;
+            }
+            switch (policy) {
+                case REJECT:
+                    if (ring.length - size < samples.size()) {
+                        metrics.meter(METRIC_PREFIX + "rejected").mark(samples.size());
+                        return false;
+                    }
+                    samples.forEach(this::enqueue);
+                    break;
+                case DROP_OLDEST:
+                    int skipped = Math.max(0, samples.size() - ring.length); // more than fits at all
+                    int overflow = size + samples.size() - skipped - ring.length;
+                    for (int i = 0; i < overflow; i++) {
+                        dequeue();
+                    }
+                    metrics.meter(METRIC_PREFIX + "dropped").mark(skipped + Math.max(0, overflow));
+                    samples.subList(skipped, samples.size()).forEach(this::enqueue);
+                    break;
+                default:
+                    for (Sample sample : samples) {
+                        while (size == ring.length) {
+                            notFull.await();
+                            if (!running) {
+                                return false;
+                            }
+                        }
+                        enqueue(sample);
+                    }
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flush() {
+        while (true) {
+            List<Sample> batch;
+            try {
+                batch = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == null) {
+                return; // stopped and drained
+            }
+            try (Timer.Context ignored = metrics.timer(METRIC_PREFIX + "flushLatency").time()) {
+                sink.accept(batch);
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // keep the flusher alive
+            }
+        }
+    }
+
+    /** Waits for samples and up to the linger time for a full batch, returns null once stopped and empty. */
+    private List<Sample> take() throws InterruptedException {
+        lock.lock();
+        try {
+            do {
+                while (size == 0) {
+                    if (!running) {
+                        return null;
+                    }
+                    notEmpty.await();
+                }
+                long remaining = lingerNanos;
+                while (size < batchSize && running && remaining > 0) {
+                    remaining = notEmpty.awaitNanos(remaining);
+                }
+            } while (size == 0); // another flusher took the samples while we were lingering
+            int count = Math.min(size, batchSize);
+            List<Sample> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                batch.add(dequeue());
+            }
+            notFull.signalAll();
+            if (size > 0) {
+                notEmpty.signal(); // let another flusher pick up the rest
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Sample sample) {
+        ring[(head + size) % ring.length] = sample;
+        size++;
+    }
+
+    private Sample dequeue() {
+        Sample sample = ring[head];
+        ring[head] = null;
+        head = (head + 1) % ring.length;
+        size--;
+        return sample;
+    }
+}
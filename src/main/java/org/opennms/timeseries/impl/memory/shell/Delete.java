@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory.shell;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Argument;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.timeseries.impl.memory.InMemoryStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Command(scope = "opennms-tss-inmemory", name = "delete", description = "Delete all metrics matching the given tag matchers together with their samples.")
+@Service
+public class Delete implements Action {
+
+    @Reference
+    private InMemoryStorage tss;
+
+    @Argument(index = 0, name = "matchers", required = true, multiValued = true,
+            description = "Tag matchers, all have to match: key=value, key!=value, key=~regex or key!~regex.")
+    private List<String> matchers;
+
+    @Option(name = "-n", aliases = "--dry-run", description = "Only show the number of matching metrics.")
+    private boolean dryRun = false;
+
+    @Override
+    public Object execute() throws Exception {
+        List<TagMatcher> tagMatchers = new ArrayList<>();
+        for (String matcher : matchers) {
+            tagMatchers.add(parse(matcher));
+        }
+        if (dryRun) {
+            System.out.printf("%d metrics match.%n", tss.findMetrics(tagMatchers).size());
+            return null;
+        }
+        System.out.printf("Deleted %d metrics.%n", tss.delete(tagMatchers));
+        return null;
+    }
+
+    /** The first operator in the text separates key and value, a value may contain operators itself. */
+    private static TagMatcher parse(String matcher) {
+        String[] operators = {"!=", "!~", "=~", "="};
+        TagMatcher.Type[] types = {TagMatcher.Type.NOT_EQUALS, TagMatcher.Type.NOT_EQUALS_REGEX,
+                TagMatcher.Type.EQUALS_REGEX, TagMatcher.Type.EQUALS};
+        int operator = -1;
+        int position = Integer.MAX_VALUE;
+        for (int i = 0; i < operators.length; i++) {
+            int found = matcher.indexOf(operators[i]);
+            if (found > 0 && found < position) { // on a tie the longer operator listed first wins
+                operator = i;
+                position = found;
+            }
+        }
+        if (operator < 0) {
+            throw new IllegalArgumentException("Invalid tag matcher " + matcher + ", expected key=value, key!=value, key=~regex or key!~regex.");
+        }
+        return ImmutableTagMatcher.builder()
+                .type(types[operator])
+                .key(matcher.substring(0, position))
+                .value(matcher.substring(position + operators[operator].length()))
+                .build();
+    }
+}
@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory.shell;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.opennms.timeseries.impl.memory.InMemoryStorage;
+
+@Command(scope = "opennms-tss-inmemory", name = "migrate", description = "Move samples of the legacy SAMPLES/SERIES tables into the current table layout.")
+@Service
+public class Migrate implements Action {
+
+    @Reference
+    private InMemoryStorage tss;
+
+    @Option(name = "-c", aliases = "--chunk-size", description = "Number of samples moved per transaction.")
+    private int chunkSize = 10_000;
+
+    @Override
+    public Object execute() throws Exception {
+        if (!tss.hasLegacyTables()) {
+            System.out.println("No legacy tables found, nothing to migrate.");
+            return null;
+        }
+        long moved = tss.migrateLegacySamples(chunkSize, total -> System.out.printf("Moved %d samples%n", total));
+        System.out.printf("Migration completed: %d samples moved, legacy tables dropped.%n", moved);
+        return null;
+    }
+
+}
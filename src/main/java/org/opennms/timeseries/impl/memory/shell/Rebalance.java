@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory.shell;
+
+import org.apache.karaf.shell.api.action.Action;
+import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.lifecycle.Reference;
+import org.apache.karaf.shell.api.action.lifecycle.Service;
+import org.opennms.timeseries.impl.memory.InMemoryStorage;
+
+@Command(scope = "opennms-tss-inmemory", name = "rebalance", description = "Move metrics to the shard they belong to, e.g. after a database was added to shardJdbcUrls.")
+@Service
+public class Rebalance implements Action {
+
+    @Reference
+    private InMemoryStorage tss;
+
+    @Override
+    public Object execute() throws Exception {
+        if (tss.getShardCount() < 2) {
+            System.out.println("Sharding is not enabled, nothing to rebalance.");
+            return null;
+        }
+        long moved = tss.rebalance(total -> System.out.printf("Moved %d metrics%n", total));
+        System.out.printf("Rebalancing completed: %d metrics moved to %d shards.%n", moved, tss.getShardCount());
+        return null;
+    }
+
+}
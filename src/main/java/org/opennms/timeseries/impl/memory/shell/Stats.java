@@ -29,31 +29,136 @@
 package org.opennms.timeseries.impl.memory.shell;
 
 
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.karaf.shell.api.action.Action;
 import org.apache.karaf.shell.api.action.Command;
+import org.apache.karaf.shell.api.action.Option;
 import org.apache.karaf.shell.api.action.lifecycle.Reference;
 import org.apache.karaf.shell.api.action.lifecycle.Service;
 import org.opennms.timeseries.impl.memory.InMemoryStorage;
 
 import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
 
 @Command(scope = "opennms-tss-inmemory", name = "stats", description = "Display statistics.")
 @Service
 public class Stats implements Action {
 
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
     @Reference
     private InMemoryStorage tss;
 
+    @Option(name = "-f", aliases = "--filter", description = "Only show metrics whose name starts with this prefix, e.g. db. or store.")
+    private String filter = "";
+
+    @Option(name = "-v", aliases = "--verbose", description = "Show the full report of every metric instead of the summary.")
+    private boolean verbose = false;
+
+    @Option(name = "-r", aliases = "--reset", description = "Reset all meters, timers, histograms and counters after showing them.")
+    private boolean reset = false;
+
     @Override
     public Object execute() {
-        ConsoleReporter reporter = ConsoleReporter.forRegistry(tss.getMetrics())
-                .convertRatesTo(TimeUnit.SECONDS)
-                .convertDurationsTo(TimeUnit.MILLISECONDS)
-                .build();
-        reporter.report();
+        MetricRegistry registry = tss.getMetrics();
+        MetricFilter metricFilter = (name, metric) -> name.startsWith(filter);
+        if (verbose) {
+            ConsoleReporter reporter = ConsoleReporter.forRegistry(registry)
+                    .filter(metricFilter)
+                    .convertRatesTo(TimeUnit.SECONDS)
+                    .convertDurationsTo(TimeUnit.MILLISECONDS)
+                    .build();
+            reporter.report();
+        } else {
+            printTimers(registry.getTimers(metricFilter));
+            printMeters(registry.getMeters(metricFilter));
+            printHistograms(registry.getHistograms(metricFilter));
+            printCounters(registry.getCounters(metricFilter));
+            printGauges(registry.getGauges(metricFilter));
+        }
+        if (reset) {
+            tss.resetMetrics();
+            System.out.println("Metrics reset.");
+        }
         return null;
     }
 
+    private static void printTimers(Map<String, Timer> timers) {
+        if (timers.isEmpty()) {
+            return;
+        }
+        System.out.println("Operations (latency in ms)");
+        System.out.printf("%-36s %10s %9s %9s %9s %9s %9s %9s%n", "name", "count", "rate/s", "mean", "p50", "p95", "p99", "max");
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            Timer timer = entry.getValue();
+            Snapshot snapshot = timer.getSnapshot();
+            System.out.printf("%-36s %10d %9.2f %9.3f %9.3f %9.3f %9.3f %9.3f%n", entry.getKey(), timer.getCount(),
+                    timer.getOneMinuteRate(), snapshot.getMean() / NANOS_PER_MILLI, snapshot.getMedian() / NANOS_PER_MILLI,
+                    snapshot.get95thPercentile() / NANOS_PER_MILLI, snapshot.get99thPercentile() / NANOS_PER_MILLI,
+                    snapshot.getMax() / NANOS_PER_MILLI);
+        }
+        System.out.println();
+    }
+
+    private static void printMeters(Map<String, Meter> meters) {
+        if (meters.isEmpty()) {
+            return;
+        }
+        System.out.println("Throughput (per second)");
+        System.out.printf("%-36s %12s %9s %9s %9s%n", "name", "count", "1m", "5m", "15m");
+        for (Map.Entry<String, Meter> entry : meters.entrySet()) {
+            Meter meter = entry.getValue();
+            System.out.printf("%-36s %12d %9.2f %9.2f %9.2f%n", entry.getKey(), meter.getCount(),
+                    meter.getOneMinuteRate(), meter.getFiveMinuteRate(), meter.getFifteenMinuteRate());
+        }
+        System.out.println();
+    }
+
+    private static void printHistograms(Map<String, Histogram> histograms) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+        System.out.println("Distributions");
+        System.out.printf("%-36s %10s %9s %9s %9s %9s %9s%n", "name", "count", "mean", "p50", "p95", "p99", "max");
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Snapshot snapshot = entry.getValue().getSnapshot();
+            System.out.printf("%-36s %10d %9.1f %9.1f %9.1f %9.1f %9d%n", entry.getKey(), entry.getValue().getCount(),
+                    snapshot.getMean(), snapshot.getMedian(), snapshot.get95thPercentile(), snapshot.get99thPercentile(),
+                    snapshot.getMax());
+        }
+        System.out.println();
+    }
+
+    private static void printCounters(Map<String, Counter> counters) {
+        if (counters.isEmpty()) {
+            return;
+        }
+        System.out.println("Counters");
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            System.out.printf("%-36s %10d%n", entry.getKey(), entry.getValue().getCount());
+        }
+        System.out.println();
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static void printGauges(Map<String, Gauge> gauges) {
+        if (gauges.isEmpty()) {
+            return;
+        }
+        System.out.println("Current values");
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            System.out.printf("%-36s %10s%n", entry.getKey(), entry.getValue().getValue());
+        }
+        System.out.println();
+    }
+
 }
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkCodecTest {
+
+    @Test
+    public void shouldRoundTripRegularSamplesCompactly() {
+        SampleChunk chunk = new SampleChunk(120);
+        long time = 1_640_995_200_000L;
+        double value = 1000;
+        for (int i = 0; i < 120; i++) {
+            chunk.add(time, value);
+            time += 300_000 + (i % 3) - 1; // five minute polls with a millisecond of jitter
+            value += i % 10 == 0 ? 1 : 0;
+        }
+        byte[] data = ChunkCodec.encode(chunk);
+        assertTrue("expected less than 2 bytes per sample but got " + data.length, data.length < 2 * 120);
+        assertDecoded(chunk, data);
+    }
+
+    @Test
+    public void shouldRoundTripIrregularSamples() {
+        Random random = new Random(42);
+        SampleChunk chunk = new SampleChunk(501);
+        long time = -1_000_000L;
+        for (int i = 0; i < 500; i++) {
+            chunk.add(time, random.nextGaussian() * 1e6);
+            time += random.nextInt(4) == 0 ? random.nextInt(1 << 30) : random.nextInt(5);
+        }
+        chunk.add(Long.MAX_VALUE / 2, Double.NaN);
+        assertDecoded(chunk, ChunkCodec.encode(chunk));
+
+        SampleChunk special = new SampleChunk(10);
+        special.add(1, 0.0);
+        special.add(2, -0.0);
+        special.add(3, Double.POSITIVE_INFINITY);
+        special.add(4, Double.NEGATIVE_INFINITY);
+        special.add(5, Double.MIN_VALUE);
+        special.add(5, Double.MAX_VALUE);
+        assertDecoded(special, ChunkCodec.encode(special));
+        assertDecoded(new SampleChunk(1), ChunkCodec.encode(new SampleChunk(1)));
+    }
+
+    @Test
+    public void shouldDecodeRange() {
+        SampleChunk chunk = new SampleChunk(100);
+        for (int i = 0; i < 100; i++) {
+            chunk.add(i * 10, i);
+        }
+        SampleBuffer buffer = new SampleBuffer();
+        ChunkCodec.decode(ChunkCodec.encode(chunk), 100, 200, buffer);
+        // both bounds are exclusive
+        assertEquals(9, buffer.size());
+        long[] expected = {110, 120, 130, 140, 150, 160, 170, 180, 190};
+        long[] times = new long[buffer.size()];
+        int[] i = {0};
+        buffer.forEach((time, value) -> times[i[0]++] = time);
+        assertArrayEquals(expected, times);
+    }
+
+    private static void assertDecoded(SampleChunk expected, byte[] data) {
+        SampleBuffer decoded = new SampleBuffer();
+        ChunkCodec.decode(data, Long.MIN_VALUE, Long.MAX_VALUE, decoded);
+        assertEquals(expected.size(), decoded.size());
+        int[] i = {0};
+        decoded.forEach((time, value) -> {
+            assertEquals(expected.getTime(i[0]), time);
+            assertEquals(Double.doubleToRawLongBits(expected.getValue(i[0])), Double.doubleToRawLongBits(value));
+            i[0]++;
+        });
+    }
+}
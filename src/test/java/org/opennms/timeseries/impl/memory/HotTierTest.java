@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HotTierTest {
+
+    private final Metric m1 = metric("ifInOctets");
+    private final Metric m2 = metric("ifOutOctets");
+
+    @Test
+    public void shouldBufferMetricsOnlyAfterAReadMissedThem() {
+        HotTier tier = new HotTier();
+        write(tier, m1, null, 10, 20);
+        assertEquals(0, tier.size());
+
+        assertEquals(Long.MAX_VALUE, tier.read(m1.getKey(), 0, 100, (time, value) -> {}));
+        write(tier, m1, 20L, 30, 40);
+        assertEquals(1, tier.size());
+
+        List<Long> times = new ArrayList<>();
+        assertEquals(21, tier.read(m1.getKey(), 0, 100, (time, value) -> times.add(time)));
+        assertEquals(Arrays.asList(30L, 40L), times);
+    }
+
+    @Test
+    public void shouldCoverEverythingForMetricsWithoutSamplesInTheDatabase() {
+        HotTier tier = new HotTier();
+        tier.read(m1.getKey(), 0, 100, (time, value) -> {});
+        write(tier, m1, null, 10);
+        assertEquals(Long.MIN_VALUE, tier.read(m1.getKey(), 0, 100, (time, value) -> {}));
+    }
+
+    @Test
+    public void shouldGiveUpCoverageOfEvictedSamples() {
+        HotTier tier = new HotTier(3, Long.MAX_VALUE);
+        tier.read(m1.getKey(), 0, 100, (time, value) -> {});
+        write(tier, m1, null, 10, 30, 20, 40);
+
+        List<Long> times = new ArrayList<>();
+        assertEquals(11, tier.read(m1.getKey(), 0, 100, (time, value) -> times.add(time)));
+        assertEquals(Arrays.asList(20L, 30L, 40L), times);
+
+        // older than everything kept
+        write(tier, m1, null, 15);
+        times.clear();
+        assertEquals(16, tier.read(m1.getKey(), 20, 40, (time, value) -> times.add(time)));
+        assertEquals(Collections.singletonList(30L), times);
+    }
+
+    @Test
+    public void shouldNotBufferMetricsWrittenPastTheTierSinceTheyWereAdmitted() {
+        HotTier tier = new HotTier();
+        tier.read(m1.getKey(), 0, 100, (time, value) -> {});
+        HotTier.Admission admission = tier.admit(Collections.singletonList(m1.getKey()));
+        assertEquals(Collections.singleton(m1.getKey()), admission.getKeys());
+
+        // a concurrent write of the metric which was admitted before this batch
+        tier.add(samples(m1, 30), tier.admit(Collections.emptyList()), Collections.emptyMap());
+        tier.add(samples(m1, 20), admission, Collections.singletonMap(m1.getKey(), 10L));
+        assertEquals(0, tier.size());
+    }
+
+    @Test
+    public void shouldDropBuffersOnRemove() {
+        HotTier tier = new HotTier();
+        tier.read(m1.getKey(), 0, 100, (time, value) -> {});
+        write(tier, m1, null, 10);
+        assertTrue(tier.getBytes() > 0);
+
+        tier.remove(m1.getKey());
+        assertEquals(0, tier.size());
+        assertEquals(0, tier.getBytes());
+        assertEquals(Long.MAX_VALUE, tier.read(m1.getKey(), 0, 100, (time, value) -> {}));
+    }
+
+    @Test
+    public void shouldEvictMetricsNotReadLatelyBeyondTheBudget() {
+        HotTier tier = new HotTier(1000, 3000);
+        tier.read(m1.getKey(), 0, Long.MAX_VALUE, (time, value) -> {});
+        tier.read(m2.getKey(), 0, Long.MAX_VALUE, (time, value) -> {});
+        write(tier, m1, null, 1);
+        write(tier, m2, null, 1);
+        assertEquals(2, tier.size());
+
+        for (int i = 2; i < 100; i++) {
+            tier.read(m1.getKey(), 0, Long.MAX_VALUE, (time, value) -> {});
+            write(tier, m1, null, i);
+            write(tier, m2, null, i);
+        }
+        assertTrue(tier.getBytes() <= 3000);
+        assertEquals(1, tier.size());
+        assertEquals(Long.MAX_VALUE, tier.read(m2.getKey(), 0, Long.MAX_VALUE, (time, value) -> {}));
+    }
+
+    /** Writes the samples like the storage does: admission, lookup of the latest sample in the database, write. */
+    private static void write(HotTier tier, Metric metric, Long latestTime, long... times) {
+        HotTier.Admission admission = tier.admit(Collections.singletonList(metric.getKey()));
+        Map<String, Long> latestTimes = admission.getKeys().stream()
+                .filter(key -> latestTime != null)
+                .collect(Collectors.toMap(key -> key, key -> latestTime));
+        tier.add(samples(metric, times), admission, latestTimes);
+    }
+
+    private static List<Sample> samples(Metric metric, long... times) {
+        List<Sample> samples = new ArrayList<>();
+        for (long time : times) {
+            samples.add(ImmutableSample.builder()
+                    .metric(metric)
+                    .time(Instant.ofEpochMilli(time))
+                    .value((double) time)
+                    .build());
+        }
+        return samples;
+    }
+
+    private static Metric metric(String name) {
+        return new ImmutableMetric.MetricBuilder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, "node1")
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .build();
+    }
+}
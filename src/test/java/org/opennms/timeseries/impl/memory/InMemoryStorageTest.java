@@ -36,16 +36,36 @@ import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.opennms.integration.api.v1.timeseries.AbstractStorageIntegrationTest;
+import org.opennms.integration.api.v1.timeseries.Aggregation;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.TimeSeriesFetchRequest;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
 import org.testcontainers.containers.GenericContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.containers.wait.strategy.Wait;
 
 import java.sql.SQLException;
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import org.slf4j.Logger;
 import org.testcontainers.utility.DockerImageName;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class InMemoryStorageTest extends AbstractStorageIntegrationTest {
 
     public static GenericContainer<?> container = null;
@@ -89,10 +109,162 @@ public class InMemoryStorageTest extends AbstractStorageIntegrationTest {
     @After
     public void tearDown() throws SQLException {
         storage.dropTables();
+        storage.shutdown();
     }
 
     @Override
     protected InMemoryStorage createStorage() {
         return new InMemoryStorage();
     }
+
+    @Test
+    public void shouldDeleteMatchingMetricsInBatches() throws Exception {
+        int count = DbManager.DELETE_BATCH_SIZE * 2 + 5;
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(sample(metric("deleteByMatchers" + i, "ifInOctets"), 1000, 1.0));
+        }
+        storage.store(samples);
+        List<TagMatcher> matchers = Collections.singletonList(ImmutableTagMatcher.builder()
+                .type(TagMatcher.Type.EQUALS_REGEX)
+                .key(IntrinsicTagNames.resourceId)
+                .value("deleteByMatchers.*")
+                .build());
+        assertEquals(count, storage.findMetrics(matchers).size());
+
+        assertEquals(count, storage.delete(matchers));
+        assertTrue(storage.findMetrics(matchers).isEmpty());
+        assertTrue(storage.getTimeseries(request(samples.get(0).getMetric(), Aggregation.NONE, 0)).isEmpty());
+    }
+
+    @Test
+    public void shouldFetchRawAndAggregatedRequestsInOneBatch() throws Exception {
+        Metric in = metric("batchFetch", "ifInOctets");
+        Metric out = metric("batchFetch", "ifOutOctets");
+        List<Sample> samples = new ArrayList<>();
+        for (long time = 1000; time <= 60_000; time += 1000) {
+            samples.add(sample(in, time, time));
+            samples.add(sample(out, time, -time));
+        }
+        storage.store(samples);
+
+        List<TimeSeriesFetchRequest> requests = Arrays.asList(
+                request(out, Aggregation.AVERAGE, 10_000),
+                request(in, Aggregation.NONE, 0),
+                request(in, Aggregation.MAX, 10_000),
+                request(out, Aggregation.NONE, 0),
+                request(metric("batchFetch", "unknown"), Aggregation.NONE, 0));
+        List<List<Sample>> results = storage.getTimeseries(requests);
+
+        assertEquals(requests.size(), results.size());
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(storage.getTimeseries(requests.get(i)), results.get(i)); // same as one by one, in request order
+        }
+        assertEquals(7, results.get(0).size()); // buckets 0 to 60s
+        assertEquals(-5000, results.get(0).get(0).getValue(), 0.0);
+        assertEquals(60, results.get(1).size());
+        assertEquals(in, results.get(1).get(0).getMetric());
+        assertEquals(9000, results.get(2).get(0).getValue(), 0.0);
+        assertEquals(out, results.get(3).get(0).getMetric());
+        assertTrue(results.get(4).isEmpty());
+    }
+
+    @Test
+    public void shouldStreamSamplesAndRecoverFromAFailingConsumer() throws Exception {
+        Metric metric = metric("stream", "ifInOctets");
+        int count = DbManager.FETCH_SIZE + 10; // more than one round trip of the cursor
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            samples.add(sample(metric, i, i));
+        }
+        storage.store(samples);
+
+        try {
+            storage.streamTimeseries(metric, Instant.ofEpochMilli(0), Instant.ofEpochMilli(count + 1), (time, value) -> {
+                if (time == 100) {
+                    throw new IllegalStateException("consumer failed");
+                }
+            });
+            fail("The failure of the consumer is expected to be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("consumer failed", e.getMessage());
+        }
+
+        // the connection was handed back with the transaction rolled back and autocommit restored
+        List<Long> times = new ArrayList<>();
+        storage.streamTimeseries(metric, Instant.ofEpochMilli(0), Instant.ofEpochMilli(count + 1), (time, value) -> times.add(time));
+        assertEquals(count, times.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, (long) times.get(i));
+        }
+        storage.store(Collections.singletonList(sample(metric, count + 1, 0)));
+        assertEquals(count + 1, storage.getTimeseries(ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(Instant.ofEpochMilli(0))
+                .end(Instant.ofEpochMilli(count + 2))
+                .step(Duration.ZERO)
+                .aggregation(Aggregation.NONE)
+                .build()).size());
+    }
+
+    @Test
+    public void shouldRollUpLateSamplesAgain() throws Exception {
+        storage.setRollupEnabled(true);
+        storage.setRollupTiers("10s,1m");
+        Metric metric = metric("lateRollups", "ifInOctets");
+        long base = (System.currentTimeMillis() / 60_000 - 60) * 60_000; // an hour ago, the rollups start there
+        List<Sample> samples = new ArrayList<>();
+        for (long time = base + 1000; time < base + 120_000; time += 1000) {
+            samples.add(sample(metric, time, 1.0));
+        }
+        storage.store(samples);
+        storage.runRollups();
+
+        // e.g. replayed from the spool, long behind the watermarks
+        storage.store(Arrays.asList(sample(metric, base + 12_500, 100.0), sample(metric, base + 61_500, 100.0)));
+        storage.runRollups();
+
+        assertEquals(110.0 / 11, valueAt(storage.getTimeseries(aggregated(metric, base, 10_000)), base + 10_000), 0.0001);
+        assertEquals(160.0 / 61, valueAt(storage.getTimeseries(aggregated(metric, base, 60_000)), base + 60_000), 0.0001);
+    }
+
+    private static TimeSeriesFetchRequest aggregated(Metric metric, long base, long stepMillis) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(Instant.ofEpochMilli(base))
+                .end(Instant.ofEpochMilli(base + 200_000))
+                .step(Duration.ofMillis(stepMillis))
+                .aggregation(Aggregation.AVERAGE)
+                .build();
+    }
+
+    private static double valueAt(List<Sample> samples, long time) {
+        for (Sample sample : samples) {
+            if (sample.getTime().toEpochMilli() == time) {
+                return sample.getValue();
+            }
+        }
+        throw new AssertionError("No sample at " + time + " in " + samples);
+    }
+
+    private static Metric metric(String resourceId, String name) {
+        return new ImmutableMetric.MetricBuilder()
+                .intrinsicTag(IntrinsicTagNames.resourceId, resourceId)
+                .intrinsicTag(IntrinsicTagNames.name, name)
+                .build();
+    }
+
+    private static Sample sample(Metric metric, long time, double value) {
+        return ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(time)).value(value).build();
+    }
+
+    private static TimeSeriesFetchRequest request(Metric metric, Aggregation aggregation, long stepMillis) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(Instant.ofEpochMilli(0))
+                .end(Instant.ofEpochMilli(100_000))
+                .step(Duration.ofMillis(stepMillis))
+                .aggregation(aggregation)
+                .build();
+    }
 }
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.*;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryEngineTest {
+
+    private final Metric metric = new ImmutableMetric.MetricBuilder()
+            .intrinsicTag(IntrinsicTagNames.resourceId, "node1")
+            .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+            .build();
+
+    @Test
+    public void shouldReturnSamplesInTimeOrder() {
+        MemoryEngine engine = new MemoryEngine();
+        // more samples than fit into one chunk, every other one arrives late
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 3 * MemoryEngine.CHUNK_CAPACITY; i += 2) {
+            samples.add(sample(i + 1));
+        }
+        for (int i = 0; i < 3 * MemoryEngine.CHUNK_CAPACITY; i += 2) {
+            samples.add(sample(i));
+        }
+        engine.store(samples);
+
+        List<Sample> result = engine.getTimeseries(request(-1, 3 * MemoryEngine.CHUNK_CAPACITY, Aggregation.NONE));
+        assertEquals(3 * MemoryEngine.CHUNK_CAPACITY, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            assertEquals(i, result.get(i).getTime().toEpochMilli());
+        }
+        // both bounds are exclusive
+        assertEquals(8, engine.getTimeseries(request(100, 109, Aggregation.NONE)).size());
+    }
+
+    @Test
+    public void shouldAggregate() {
+        MemoryEngine engine = new MemoryEngine();
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            samples.add(sample(i));
+        }
+        engine.store(samples);
+
+        List<Sample> result = engine.getTimeseries(ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(Instant.ofEpochMilli(-1))
+                .end(Instant.ofEpochMilli(20))
+                .step(Duration.ofMillis(10))
+                .aggregation(Aggregation.MAX)
+                .build());
+        assertEquals(2, result.size());
+        assertEquals(9.0, result.get(0).getValue(), 0.0);
+        assertEquals(19.0, result.get(1).getValue(), 0.0);
+    }
+
+    @Test
+    public void shouldReturnTheLatestSample() {
+        MemoryEngine engine = new MemoryEngine();
+        assertNull(engine.getLatestSample(metric));
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 2 * MemoryEngine.CHUNK_CAPACITY; i >= 0; i--) {
+            samples.add(sample(i));
+        }
+        engine.store(samples);
+        assertEquals(2 * MemoryEngine.CHUNK_CAPACITY, engine.getLatestSample(metric).getTime().toEpochMilli());
+    }
+
+    @Test
+    public void shouldFindAndDeleteMetrics() {
+        MemoryEngine engine = new MemoryEngine();
+        engine.store(Collections.singletonList(sample(1)));
+        List<TagMatcher> matchers = Collections.singletonList(ImmutableTagMatcher.builder()
+                .type(TagMatcher.Type.EQUALS)
+                .key(IntrinsicTagNames.resourceId)
+                .value("node1")
+                .build());
+        assertEquals(Collections.singletonList(metric), engine.findMetrics(matchers));
+
+        engine.delete(metric);
+        assertTrue(engine.findMetrics(matchers).isEmpty());
+        assertTrue(engine.getTimeseries(request(0, 10, Aggregation.NONE)).isEmpty());
+    }
+
+    private Sample sample(long time) {
+        return ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(time)).value((double) time).build();
+    }
+
+    private TimeSeriesFetchRequest request(long start, long end, Aggregation aggregation) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(Instant.ofEpochMilli(start))
+                .end(Instant.ofEpochMilli(end))
+                .step(Duration.ZERO)
+                .aggregation(aggregation)
+                .build();
+    }
+}
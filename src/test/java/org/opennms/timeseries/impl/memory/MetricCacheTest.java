@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricCacheTest {
+
+    private final Metric metric = new ImmutableMetric.MetricBuilder()
+            .intrinsicTag(IntrinsicTagNames.resourceId, "node1")
+            .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+            .build();
+
+    @Test
+    public void shouldKeepTheLatestSampleOnceItIsKnown() {
+        MetricCache.Entry entry = new MetricCache().put(1, metric);
+        entry.writeLatest(10, 1.0);
+        assertFalse(entry.readLatest((time, value) -> {}));
+
+        entry.loadLatest(entry.getLatestWrites(), sample(10, 1.0));
+        entry.writeLatest(30, 3.0);
+        entry.writeLatest(20, 2.0); // out of order
+        assertEquals(Arrays.asList(30L, 3L), latest(entry));
+
+        entry.forgetLatest();
+        assertFalse(entry.readLatest((time, value) -> {}));
+    }
+
+    @Test
+    public void shouldNotLoadALatestSampleReadBeforeAWrite() {
+        MetricCache.Entry entry = new MetricCache().put(1, metric);
+        long writes = entry.getLatestWrites();
+        entry.writeLatest(20, 2.0); // written after the database was read
+        entry.loadLatest(writes, sample(10, 1.0));
+        assertFalse(entry.readLatest((time, value) -> {}));
+    }
+
+    @Test
+    public void shouldKeepTheLatestCommitTime() {
+        MetricCache.Entry entry = new MetricCache().put(1, metric);
+        assertEquals(DbManager.ANY_COMMIT, entry.getCommittedAt());
+        entry.setCommittedAt(20);
+        entry.setCommittedAt(10); // a slower writer finishing later
+        assertEquals(20, entry.getCommittedAt());
+    }
+
+    @Test
+    public void shouldKeepTheCachedEntryOfTheSameMetric() {
+        MetricCache cache = new MetricCache();
+        MetricCache.Entry written = cache.put(1, metric);
+        written.setCommittedAt(20);
+
+        MetricCache.Entry loaded = cache.put(1, metric); // e.g. a reader which missed the cache
+        assertSame(written, loaded);
+        assertEquals(20, cache.get(metric.getKey()).getCommittedAt());
+
+        MetricCache.Entry recreated = cache.put(2, metric);
+        assertEquals(2, recreated.getId());
+        assertSame(recreated, cache.get(metric.getKey()));
+    }
+
+    @Test
+    public void shouldKeepTheLatestSampleWhenTheMetricIsLoadedAgain() {
+        MetricCache cache = new MetricCache();
+        MetricCache.Entry writer = cache.put(1, metric);
+        writer.loadLatest(writer.getLatestWrites(), sample(10, 1.0));
+
+        cache.put(1, metric); // a reader which missed the cache
+        writer.writeLatest(20, 2.0);
+        assertEquals(Arrays.asList(20L, 2L), latest(cache.get(metric.getKey())));
+    }
+
+    @Test
+    public void shouldKnowMetricsWithoutSamples() {
+        MetricCache.Entry entry = new MetricCache().put(1, metric);
+        entry.loadLatest(entry.getLatestWrites(), null);
+        assertTrue(latest(entry).isEmpty());
+
+        entry.writeLatest(10, 1.0);
+        assertEquals(Arrays.asList(10L, 1L), latest(entry));
+    }
+
+    private static List<Long> latest(MetricCache.Entry entry) {
+        List<Long> latest = new ArrayList<>();
+        assertTrue(entry.readLatest((time, value) -> {
+            latest.add(time);
+            latest.add((long) value);
+        }));
+        return latest;
+    }
+
+    private Sample sample(long time, double value) {
+        return ImmutableSample.builder()
+                .metric(metric)
+                .time(Instant.ofEpochMilli(time))
+                .value(value)
+                .build();
+    }
+}
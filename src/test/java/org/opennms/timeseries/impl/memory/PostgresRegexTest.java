@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PostgresRegexTest {
+
+    @Test
+    public void shouldAcceptTheCommonSubset() {
+        assertTrue(PostgresRegex.isPortable("snmp/1/.*"));
+        assertTrue(PostgresRegex.isPortable("(ifHC)?InOctets|ifOutOctets"));
+        assertTrue(PostgresRegex.isPortable("node[0-9]{1,3}\\.example\\.org"));
+        assertTrue(PostgresRegex.isPortable("[^/]+/\\d+"));
+        assertTrue(PostgresRegex.isPortable("(?:a|b)*?c"));
+        assertTrue(PostgresRegex.isPortable("[\\]\\-]x{255}"));
+    }
+
+    @Test
+    public void shouldRejectJavaOnlySyntax() {
+        assertFalse(PostgresRegex.isPortable("(?i)snmp"));
+        assertFalse(PostgresRegex.isPortable("(?<=a)b"));
+        assertFalse(PostgresRegex.isPortable("a*+b"));
+        assertFalse(PostgresRegex.isPortable("a{2}+"));
+        assertFalse(PostgresRegex.isPortable("[a-z&&[^b]]"));
+        assertFalse(PostgresRegex.isPortable("[[:alpha:]]"));
+        assertFalse(PostgresRegex.isPortable("[]a]"));
+        assertFalse(PostgresRegex.isPortable("\\bword\\b"));
+        assertFalse(PostgresRegex.isPortable("\\p{Alpha}+"));
+        assertFalse(PostgresRegex.isPortable("\\Qa.b\\E"));
+        assertFalse(PostgresRegex.isPortable("(a)\\1"));
+        assertFalse(PostgresRegex.isPortable("a{256}"));
+    }
+
+    @Test
+    public void shouldRejectNegatedShorthandClasses() {
+        // PostgreSQL's \d, \w and \s match more characters, negated they would match fewer
+        assertFalse(PostgresRegex.isPortable("\\D+"));
+        assertFalse(PostgresRegex.isPortable("\\W"));
+        assertFalse(PostgresRegex.isPortable("[^\\s]"));
+    }
+
+    @Test
+    public void shouldAnchorAndEscape() {
+        assertEquals("^(?:a|b)$", PostgresRegex.anchored("a|b"));
+        assertEquals("snmp/1\\_x\\%\\\\%", PostgresRegex.likePrefix("snmp/1_x%\\"));
+    }
+}
@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class QueryPlannerTest {
+
+    private final QueryPlanner planner = new QueryPlanner();
+
+    @Test
+    public void shouldExtractLiteralPrefix() {
+        assertEquals("ifIn", QueryPlanner.literalPrefix("ifIn.*"));
+        assertEquals("ifIn", QueryPlanner.literalPrefix("^ifIn.*"));
+        assertEquals("if", QueryPlanner.literalPrefix("ifI?n.*"));
+        assertEquals("if", QueryPlanner.literalPrefix("ifI*n"));
+        assertEquals("ifI", QueryPlanner.literalPrefix("ifI+n"));
+        assertEquals("a.b", QueryPlanner.literalPrefix("a\\.b[0-9]"));
+        assertEquals("node", QueryPlanner.literalPrefix("node\\d+"));
+        assertEquals("", QueryPlanner.literalPrefix("ifIn.*|ifOut.*"));
+        assertEquals("", QueryPlanner.literalPrefix("(?i)ifin.*"));
+    }
+
+    @Test
+    public void shouldTreatLiteralRegexAsEquals() {
+        QueryPlanner.Plan plan = planner.compile(Arrays.asList(matcher(TagMatcher.Type.EQUALS_REGEX, "name", "ifInOctets")));
+        assertEquals(TagMatcher.Type.EQUALS, plan.getMatchers().get(0).getType());
+        plan = planner.compile(Arrays.asList(matcher(TagMatcher.Type.NOT_EQUALS_REGEX, "name", "ifInOctets")));
+        assertEquals(TagMatcher.Type.NOT_EQUALS, plan.getMatchers().get(0).getType());
+    }
+
+    @Test
+    public void shouldMatchValuesLikeStringMatches() {
+        QueryPlanner.CompiledTagMatcher matcher = planner.compile(Arrays.asList(
+                matcher(TagMatcher.Type.EQUALS_REGEX, "name", "ifIn.*s"))).getMatchers().get(0);
+        assertTrue(matcher.matchesValue("ifInOctets"));
+        assertFalse(matcher.matchesValue("ifInOctet"));
+        assertFalse(matcher.matchesValue("ifOutOctets"));
+        matcher = planner.compile(Arrays.asList(
+                matcher(TagMatcher.Type.NOT_EQUALS_REGEX, "name", "ifIn.*s"))).getMatchers().get(0);
+        assertFalse(matcher.matchesValue("ifInOctets"));
+        assertTrue(matcher.matchesValue("ifOutOctets"));
+    }
+
+    @Test
+    public void shouldOrderBySelectivity() {
+        QueryPlanner.Plan plan = planner.compile(Arrays.asList(
+                matcher(TagMatcher.Type.EQUALS_REGEX, "name", ".*Octets"),
+                matcher(TagMatcher.Type.NOT_EQUALS, "node", "node1"),
+                matcher(TagMatcher.Type.EQUALS, "node", "node2")));
+        // without statistics: by evaluation cost
+        assertEquals(TagMatcher.Type.EQUALS, plan.getMatchers().get(0).getType());
+        assertEquals(TagMatcher.Type.EQUALS_REGEX, plan.getMatchers().get(2).getType());
+
+        // with statistics: by the estimated number of matches
+        plan = plan.orderBy(m -> m.getType() == TagMatcher.Type.EQUALS_REGEX ? 1 : 100);
+        assertEquals(TagMatcher.Type.EQUALS_REGEX, plan.getMatchers().get(0).getType());
+        assertEquals(TagMatcher.Type.EQUALS, plan.getMatchers().get(1).getType());
+    }
+
+    private static TagMatcher matcher(TagMatcher.Type type, String key, String value) {
+        return ImmutableTagMatcher.builder().type(type).key(key).value(value).build();
+    }
+}
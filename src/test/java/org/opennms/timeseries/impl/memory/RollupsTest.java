@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RollupsTest {
+
+    private static final long MINUTE = 60_000L;
+    private static final long HOUR = 60 * MINUTE;
+
+    @Test
+    public void shouldRetainTheBucketsEndingAfterTheCutoff() {
+        assertEquals(HOUR, Rollups.firstRetainedBucket(HOUR, 5 * MINUTE));
+        assertEquals(HOUR, Rollups.firstRetainedBucket(HOUR + MINUTE, 5 * MINUTE)); // partly before the cutoff
+        assertEquals(0, Rollups.firstRetainedBucket(HOUR - MINUTE, HOUR));
+        assertEquals(-HOUR, Rollups.firstRetainedBucket(-MINUTE, HOUR));
+    }
+
+    @Test
+    public void shouldParseResolutions() {
+        assertEquals(Arrays.asList(5 * MINUTE, HOUR), Rollups.parseResolutions("5m,1h"));
+        assertEquals(Arrays.asList(30_000L, 5 * MINUTE, 24 * HOUR), Rollups.parseResolutions(" 30s, 5m ,1d"));
+        assertTrue(Rollups.parseResolutions("").isEmpty());
+    }
+
+    @Test
+    public void shouldRejectTiersWhichAreNoMultipleOfTheTierBefore() {
+        for (String tiers : Arrays.asList("1h,5m", "5m,7m", "5m,5m", "5x", "m", "0m")) {
+            try {
+                Rollups.parseResolutions(tiers);
+                fail("accepted " + tiers);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void shouldChooseCoarsestResolutionDividingTheStep() {
+        List<Long> resolutions = Arrays.asList(5 * MINUTE, HOUR);
+        assertEquals(HOUR, Rollups.chooseResolution(resolutions, 24 * HOUR));
+        assertEquals(HOUR, Rollups.chooseResolution(resolutions, HOUR));
+        assertEquals(5 * MINUTE, Rollups.chooseResolution(resolutions, 90 * MINUTE));
+        assertEquals(5 * MINUTE, Rollups.chooseResolution(resolutions, 5 * MINUTE));
+        assertEquals(0, Rollups.chooseResolution(resolutions, MINUTE));
+        assertEquals(0, Rollups.chooseResolution(resolutions, 7 * MINUTE));
+        assertEquals(0, Rollups.chooseResolution(Collections.emptyList(), HOUR));
+    }
+
+    @Test
+    public void shouldAggregatePerMetricAndBucket() throws SQLException {
+        Rollups.Builder builder = new Rollups.Builder(5 * MINUTE);
+        builder.add(1, 0, 1.0);
+        builder.add(1, MINUTE, 3.0);
+        builder.add(1, 5 * MINUTE, 10.0);
+        builder.samplesOf(2).accept(2 * MINUTE, 7.0);
+        builder.merge(1, 0, -1.0, 2.0, 1.0, 2); // aggregated by the database
+
+        Map<String, Rollups.Aggregate> aggregates = new HashMap<>();
+        builder.forEach((idMetric, bucket, aggregate) -> aggregates.put(idMetric + "@" + bucket, aggregate));
+        assertEquals(3, builder.size());
+        assertEquals(3, aggregates.size());
+
+        Rollups.Aggregate first = aggregates.get("1@0");
+        assertEquals(-1.0, first.getMin(), 0);
+        assertEquals(3.0, first.getMax(), 0);
+        assertEquals(5.0, first.getSum(), 0);
+        assertEquals(4, first.getCount());
+        assertEquals(1, aggregates.get("1@" + 5 * MINUTE).getCount());
+        assertEquals(7.0, aggregates.get("2@0").getMax(), 0);
+    }
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleMergerTest {
+
+    @Test
+    public void shouldMergeRowsAndOverlappingChunksInTimeOrder() {
+        List<Long> times = new ArrayList<>();
+        SampleMerger merger = new SampleMerger((time, value) -> {
+            times.add(time);
+            assertEquals(time, (long) value, 0.0);
+        });
+        merger.addRow(5, 5);
+        merger.addChunk(10, encode(10, 30, 50, 70), 0, 100);
+        merger.addChunk(20, encode(20, 40, 60), 0, 100);
+        merger.addRow(25, 25);
+        merger.addRow(65, 65);
+        merger.addChunk(80, encode(80, 90, 120), 0, 100); // 120 is outside of the range
+        merger.addRow(85, 85);
+        merger.finish();
+        assertEquals(Arrays.asList(5L, 10L, 20L, 25L, 30L, 40L, 50L, 60L, 65L, 70L, 80L, 85L, 90L), times);
+    }
+
+    @Test
+    public void shouldHoldBackOnlyTheSamplesOfOpenChunks() {
+        List<Long> times = new ArrayList<>();
+        SampleMerger merger = new SampleMerger((time, value) -> times.add(time));
+        merger.addChunk(0, encode(0, 10, 20), -1, 100);
+        assertEquals(0, times.size());
+        merger.addRow(15, 15);
+        assertEquals(Arrays.asList(0L, 10L, 15L), times);
+        merger.finish();
+        assertEquals(Arrays.asList(0L, 10L, 15L, 20L), times);
+    }
+
+    private static byte[] encode(long... times) {
+        SampleChunk chunk = new SampleChunk(times.length);
+        for (long time : times) {
+            chunk.add(time, time);
+        }
+        return ChunkCodec.encode(chunk);
+    }
+}
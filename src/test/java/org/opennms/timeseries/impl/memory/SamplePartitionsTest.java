@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SamplePartitionsTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    @Test
+    public void shouldParseRangeBounds() {
+        SamplePartitions.Partition partition = SamplePartitions.parse("p", "FOR VALUES FROM (86400000) TO (172800000)");
+        assertEquals(DAY, partition.getStart());
+        assertEquals(2 * DAY, partition.getEnd());
+        assertEquals(DAY, SamplePartitions.parse("p", "FOR VALUES FROM ('86400000') TO ('172800000')").getStart());
+        assertNull(SamplePartitions.parse("p", "DEFAULT"));
+        assertNull(SamplePartitions.parse("p", null));
+    }
+
+    @Test
+    public void shouldNamePartitionsByStart() {
+        assertEquals("metric_samples_p19700102_0000", SamplePartitions.nameOf(DAY));
+        assertEquals("metric_samples_p19700102_0600", SamplePartitions.nameOf(DAY + 6 * HOUR));
+    }
+
+    @Test
+    public void shouldCreateCurrentAndAheadPartitions() {
+        List<SamplePartitions.Partition> missing = SamplePartitions.missing(Collections.emptyList(), 10 * DAY + 5 * HOUR, DAY, 2);
+        assertEquals(Arrays.asList(
+                partition(10 * DAY, 11 * DAY),
+                partition(11 * DAY, 12 * DAY),
+                partition(12 * DAY, 13 * DAY)), missing);
+    }
+
+    @Test
+    public void shouldSkipExistingPartitions() {
+        List<SamplePartitions.Partition> existing = Arrays.asList(partition(10 * DAY, 11 * DAY), partition(11 * DAY, 12 * DAY));
+        assertEquals(Collections.singletonList(partition(12 * DAY, 13 * DAY)),
+                SamplePartitions.missing(existing, 10 * DAY + 5 * HOUR, DAY, 2));
+        assertTrue(SamplePartitions.missing(existing, 10 * DAY, DAY, 1).isEmpty());
+    }
+
+    @Test
+    public void shouldFillGapsAfterTheIntervalChanged() {
+        // partitions of 6 hours exist for the first half of the day, the new interval is a day
+        List<SamplePartitions.Partition> existing = Arrays.asList(partition(10 * DAY, 10 * DAY + 6 * HOUR),
+                partition(10 * DAY + 6 * HOUR, 10 * DAY + 12 * HOUR), partition(10 * DAY + 18 * HOUR, 11 * DAY + 6 * HOUR));
+        assertEquals(Arrays.asList(
+                partition(10 * DAY + 12 * HOUR, 10 * DAY + 18 * HOUR),
+                partition(11 * DAY + 6 * HOUR, 12 * DAY)),
+                SamplePartitions.missing(existing, 10 * DAY + HOUR, DAY, 1));
+    }
+
+    @Test
+    public void shouldOnlyExpirePartitionsEndingBeforeTheCutoff() {
+        List<SamplePartitions.Partition> existing = Arrays.asList(partition(DAY, 2 * DAY), partition(2 * DAY, 3 * DAY),
+                partition(3 * DAY, 4 * DAY));
+        assertEquals(Arrays.asList(partition(DAY, 2 * DAY), partition(2 * DAY, 3 * DAY)),
+                SamplePartitions.expired(existing, 3 * DAY));
+        assertEquals(Collections.singletonList(partition(DAY, 2 * DAY)), SamplePartitions.expired(existing, 3 * DAY - 1));
+    }
+
+    private static SamplePartitions.Partition partition(long start, long end) {
+        return new SamplePartitions.Partition(SamplePartitions.nameOf(start), start, end);
+    }
+}
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Metric m1 = new ImmutableMetric.MetricBuilder()
+            .intrinsicTag(IntrinsicTagNames.resourceId, "node1")
+            .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+            .metaTag("ifName", "eth0")
+            .build();
+    private final Metric m2 = new ImmutableMetric.MetricBuilder()
+            .intrinsicTag(IntrinsicTagNames.resourceId, "node2")
+            .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+            .externalTag("unit", "bytes")
+            .build();
+
+    @Test
+    public void shouldReplayInOrderAcrossSegments() throws IOException {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 1024, 1024 * 1024);
+        List<Sample> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            List<Sample> batch = batch(i * 10, 10);
+            assertTrue(spool.append(batch));
+            expected.addAll(batch);
+        }
+        assertTrue(segmentCount() > 1);
+
+        List<Sample> replayed = new ArrayList<>();
+        assertEquals(500, spool.replay(replayed::addAll));
+        assertEquals(expected, replayed);
+        assertTrue(spool.isEmpty());
+        assertEquals(0, segmentCount());
+    }
+
+    @Test
+    public void shouldKeepWhatTheSinkRefused() throws IOException {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 1024, 1024 * 1024);
+        spool.append(batch(0, 5));
+        spool.append(batch(5, 5));
+        List<Sample> replayed = new ArrayList<>();
+        assertEquals(5, spool.replay(samples -> replayed.isEmpty() && replayed.addAll(samples)));
+        assertFalse(spool.isEmpty());
+
+        replayed.clear();
+        assertEquals(5, spool.replay(replayed::addAll));
+        assertEquals(batch(5, 5), replayed);
+    }
+
+    @Test
+    public void shouldRecoverAfterRestartAndSkipTornRecords() throws IOException {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        spool.append(batch(0, 10));
+        spool.append(batch(10, 10));
+        spool.close();
+
+        // a crash while writing the second record: its payload is damaged
+        Path segment;
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            segment = files.findFirst().orElseThrow(IllegalStateException::new);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(Files.size(segment) - 4096 + 8 + recordSize(batch(0, 10)) + 20);
+            file.write(0x7F);
+        }
+
+        SampleSpool recovered = new SampleSpool(folder.getRoot().toPath(), 4096, 1024 * 1024);
+        List<Sample> replayed = new ArrayList<>();
+        assertEquals(10, recovered.replay(replayed::addAll));
+        assertEquals(batch(0, 10), replayed);
+    }
+
+    @Test
+    public void shouldRefuseWhenFull() throws IOException {
+        SampleSpool spool = new SampleSpool(folder.getRoot().toPath(), 1024, 2048);
+        int accepted = 0;
+        while (spool.append(batch(accepted * 10, 10))) {
+            accepted++;
+        }
+        assertTrue(accepted > 0);
+        assertTrue(spool.getPendingBytes() <= 2048);
+    }
+
+    private int recordSize(List<Sample> samples) throws IOException {
+        SampleSpool spool = new SampleSpool(folder.newFolder().toPath(), 4096, 1024 * 1024);
+        spool.append(samples);
+        return (int) spool.getPendingBytes() - 8;
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.filter(Files::isRegularFile).collect(Collectors.toList()).size();
+        }
+    }
+
+    private List<Sample> batch(long start, int count) {
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder()
+                    .metric(i % 2 == 0 ? m1 : m2)
+                    .time(Instant.ofEpochMilli(start + i))
+                    .value(start + i + 0.5)
+                    .build());
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardRingTest {
+
+    private static final int KEYS = 20_000;
+
+    @Test
+    public void shouldAssignKeysIndependentOfTheOrderOfTheShards() {
+        ShardRing ring = new ShardRing(Arrays.asList("a", "b", "c"));
+        ShardRing reordered = new ShardRing(Arrays.asList("c", "a", "b"));
+        for (int i = 0; i < KEYS; i++) {
+            String key = "node" + i + "_ifInOctets";
+            assertEquals(ring.getNames().get(ring.shardOf(key)), reordered.getNames().get(reordered.shardOf(key)));
+        }
+    }
+
+    @Test
+    public void shouldSpreadKeysEvenly() {
+        ShardRing ring = new ShardRing(Arrays.asList("a", "b", "c", "d"));
+        int[] counts = new int[ring.size()];
+        for (int i = 0; i < KEYS; i++) {
+            counts[ring.shardOf("node" + i + "_ifInOctets")]++;
+        }
+        for (int count : counts) {
+            assertTrue("unbalanced: " + Arrays.toString(counts), Math.abs(count - KEYS / 4) < KEYS / 4 * 0.2);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysToAnAddedShard() {
+        ShardRing before = new ShardRing(Arrays.asList("a", "b", "c"));
+        ShardRing after = new ShardRing(Arrays.asList("a", "b", "c", "d"));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "node" + i + "_ifInOctets";
+            String owner = after.getNames().get(after.shardOf(key));
+            if (!owner.equals(before.getNames().get(before.shardOf(key)))) {
+                assertEquals("d", owner);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, Math.abs(moved - KEYS / 4) < KEYS / 4 * 0.2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectDuplicateNames() {
+        new ShardRing(Arrays.asList("a", "a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireAShard() {
+        new ShardRing(Collections.emptyList());
+    }
+}
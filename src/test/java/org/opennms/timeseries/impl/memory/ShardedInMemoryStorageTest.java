@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.StorageException;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Sharding and rebalancing on PostgreSQL. Needs two databases, by default on localhost:5432 and localhost:5433,
+ * other ones are given as comma separated JDBC URLs by the system property tss.shardJdbcUrls. The tests are skipped
+ * if the databases are not reachable.
+ */
+public class ShardedInMemoryStorageTest {
+
+    private static final int METRICS = 20;
+
+    private static List<String> urls;
+    private static boolean reachable;
+
+    private final List<InMemoryStorage> shards = new ArrayList<>();
+    private ShardedStorage sharded;
+
+    @BeforeClass
+    public static void checkDatabases() {
+        urls = new ArrayList<>();
+        for (String url : System.getProperty("tss.shardJdbcUrls",
+                "jdbc:postgresql://localhost:5432/,jdbc:postgresql://localhost:5433/").split(",")) {
+            urls.add(url.trim());
+        }
+        reachable = urls.size() >= 2;
+        for (String url : urls) {
+            InMemoryStorage probe = newShard(url);
+            try {
+                probe.initialize();
+                probe.getAllMetrics();
+            } catch (SQLException | StorageException e) {
+                reachable = false;
+            } finally {
+                probe.shutdown();
+            }
+            if (!reachable) {
+                break;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws SQLException {
+        assumeTrue("Two databases are needed: " + urls, reachable);
+        for (String url : urls.subList(0, 2)) {
+            InMemoryStorage shard = newShard(url);
+            shard.initialize();
+            shards.add(shard);
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        for (InMemoryStorage shard : shards) {
+            shard.dropTables();
+        }
+        if (sharded != null) {
+            sharded.shutdown();
+        } else {
+            shards.forEach(InMemoryStorage::shutdown);
+        }
+    }
+
+    @Test
+    public void shouldMoveMetricsToAnAddedShard() throws Exception {
+        shards.get(0).store(samples(metrics(), 1000, 2000));
+
+        sharded = new ShardedStorage(Arrays.asList("a", "b"), shards, new MetricRegistry());
+        long moved = sharded.rebalance(total -> {});
+
+        assertTrue(moved > 0 && moved < METRICS);
+        for (Metric metric : metrics()) {
+            for (int i = 0; i < shards.size(); i++) {
+                int expected = i == sharded.shardOf(metric) ? 2 : 0;
+                assertEquals(expected, times(shards.get(i), metric).size());
+            }
+        }
+        assertEquals(0, sharded.rebalance(total -> {}));
+        assertEquals(METRICS, shards.get(0).getAllMetrics().size() + shards.get(1).getAllMetrics().size());
+    }
+
+    @Test
+    public void shouldNotCopySamplesTwiceWhenAMoveIsRepeated() throws Exception {
+        sharded = new ShardedStorage(Arrays.asList("a", "b"), shards, new MetricRegistry());
+        Metric moving = movingMetric();
+        shards.get(0).store(samples(moving, 1000, 2000, 3000, 4000));
+        shards.get(1).store(samples(moving, 1000, 2000, 5000)); // copied by a failed run, plus a new sample
+
+        assertEquals(1, sharded.rebalance(total -> {}));
+
+        assertEquals(Arrays.asList(1000L, 2000L, 3000L, 4000L, 5000L), times(shards.get(1), moving));
+        assertTrue(shards.get(0).getAllMetrics().isEmpty());
+    }
+
+    @Test
+    public void shouldKeepTheMetricOnItsOldShardWhenTheMoveFails() throws Exception {
+        sharded = new ShardedStorage(Arrays.asList("a", "b"), shards, new MetricRegistry());
+        Metric moving = movingMetric();
+        shards.get(0).store(samples(moving, 1000, 2000, 3000));
+        shards.get(1).dropTables();
+
+        try {
+            sharded.rebalance(total -> {});
+            fail("The failure of the new shard is expected to be thrown");
+        } catch (StorageException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList(1000L, 2000L, 3000L), times(shards.get(0), moving));
+
+        shards.get(1).initialize();
+        assertEquals(1, sharded.rebalance(total -> {}));
+        assertEquals(Arrays.asList(1000L, 2000L, 3000L), times(shards.get(1), moving));
+    }
+
+    private static InMemoryStorage newShard(String url) {
+        InMemoryStorage shard = new InMemoryStorage();
+        shard.setJdbcUrl(url);
+        return shard;
+    }
+
+    /** A metric which belongs to the second shard. */
+    private Metric movingMetric() {
+        for (Metric metric : metrics()) {
+            if (sharded.shardOf(metric) == 1) {
+                return metric;
+            }
+        }
+        throw new IllegalStateException("No metric belongs to the second shard");
+    }
+
+    private static List<Long> times(InMemoryStorage shard, Metric metric) throws StorageException {
+        List<Long> times = new ArrayList<>();
+        shard.streamTimeseries(metric, Instant.ofEpochMilli(0), Instant.ofEpochMilli(100_000), (time, value) -> times.add(time));
+        return times;
+    }
+
+    private static List<Metric> metrics() {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < METRICS; i++) {
+            metrics.add(new ImmutableMetric.MetricBuilder()
+                    .intrinsicTag(IntrinsicTagNames.resourceId, "shardedNode" + i)
+                    .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+                    .build());
+        }
+        return metrics;
+    }
+
+    private static List<Sample> samples(List<Metric> metrics, long... times) {
+        List<Sample> samples = new ArrayList<>();
+        for (Metric metric : metrics) {
+            for (long time : times) {
+                samples.add(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(time)).value((double) time).build());
+            }
+        }
+        return samples;
+    }
+
+    private static List<Sample> samples(Metric metric, long... times) {
+        return samples(Arrays.asList(metric), times);
+    }
+}
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.*;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTimeSeriesFetchRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedStorageTest {
+
+    private static final int METRICS = 50;
+
+    private final List<InMemoryStorage> shards = new ArrayList<>();
+    private ShardedStorage sharded;
+
+    @After
+    public void tearDown() {
+        if (sharded != null) {
+            sharded.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldStoreEachMetricOnItsShard() throws Exception {
+        sharded = newShardedStorage("a", "b", "c");
+        sharded.store(samples(0, 1000));
+
+        for (Metric metric : metrics()) {
+            for (int i = 0; i < shards.size(); i++) {
+                int expected = i == sharded.shardOf(metric) ? 2 : 0;
+                assertEquals(expected, shards.get(i).getTimeseries(request(metric)).size());
+            }
+            assertEquals(2, sharded.getTimeseries(request(metric)).size());
+        }
+        for (InMemoryStorage shard : shards) {
+            assertTrue(shard.getAllMetrics().size() < METRICS); // every shard holds a part only
+        }
+    }
+
+    @Test
+    public void shouldGatherResultsOfAllShards() throws Exception {
+        sharded = newShardedStorage("a", "b", "c");
+        sharded.store(samples(0, 1000));
+
+        assertEquals(METRICS, sharded.findMetrics(Collections.singletonList(ImmutableTagMatcher.builder()
+                .type(TagMatcher.Type.EQUALS)
+                .key(IntrinsicTagNames.name)
+                .value("ifInOctets")
+                .build())).size());
+
+        List<TimeSeriesFetchRequest> requests = new ArrayList<>();
+        for (Metric metric : metrics()) {
+            requests.add(request(metric));
+        }
+        List<List<Sample>> results = sharded.getTimeseries(requests);
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(requests.get(i).getMetric(), results.get(i).get(0).getMetric()); // in the order of the requests
+        }
+
+        List<Sample> latest = sharded.getLatestSamples(metrics());
+        assertEquals(METRICS, latest.size());
+        for (int i = 0; i < METRICS; i++) {
+            assertEquals(metrics().get(i), latest.get(i).getMetric());
+            assertEquals(1000, latest.get(i).getTime().toEpochMilli());
+        }
+    }
+
+    @Test
+    public void shouldMoveMetricsToAnAddedShard() throws Exception {
+        InMemoryStorage single = newShard();
+        single.store(samples(0, 1000));
+
+        sharded = new ShardedStorage(Arrays.asList("a", "b"), Arrays.asList(single, newShard()), new MetricRegistry());
+        sharded.initialize();
+        long moved = sharded.rebalance(total -> {});
+
+        assertTrue(moved > 0 && moved < METRICS);
+        for (Metric metric : metrics()) {
+            for (int i = 0; i < shards.size(); i++) {
+                int expected = i == sharded.shardOf(metric) ? 2 : 0;
+                assertEquals(expected, shards.get(i).getTimeseries(request(metric)).size());
+            }
+        }
+        assertEquals(0, sharded.rebalance(total -> {}));
+    }
+
+    @Test
+    public void shouldMoveLongSeriesInBatches() throws Exception {
+        InMemoryStorage single = newShard();
+        sharded = new ShardedStorage(Arrays.asList("a", "b"), Arrays.asList(single, newShard()), new MetricRegistry());
+        sharded.initialize();
+        Metric moving = null;
+        for (Metric metric : metrics()) {
+            if (sharded.shardOf(metric) == 1) {
+                moving = metric;
+                break;
+            }
+        }
+        int count = ShardedStorage.REBALANCE_BATCH_SIZE * 2 + 1;
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder().metric(moving).time(Instant.ofEpochMilli(i)).value((double) i).build());
+        }
+        single.store(samples);
+
+        assertEquals(1, sharded.rebalance(total -> {}));
+        assertEquals(0, shards.get(0).getAllMetrics().size());
+        List<Long> times = new ArrayList<>();
+        shards.get(1).streamTimeseries(moving, Instant.ofEpochMilli(-1), Instant.ofEpochMilli(count), (time, value) -> times.add(time));
+        assertEquals(count, times.size());
+    }
+
+    @Test
+    public void shouldNotCopySamplesTwiceWhenAMoveIsRepeated() throws Exception {
+        InMemoryStorage single = newShard();
+        InMemoryStorage added = newShard();
+        sharded = new ShardedStorage(Arrays.asList("a", "b"), Arrays.asList(single, added), new MetricRegistry());
+        sharded.initialize();
+        Metric moving = null;
+        for (Metric metric : metrics()) {
+            if (sharded.shardOf(metric) == 1) {
+                moving = metric;
+                break;
+            }
+        }
+        for (long time : new long[]{0, 1000}) {
+            single.store(Collections.singletonList(ImmutableSample.builder().metric(moving).time(Instant.ofEpochMilli(time)).value(1.0).build()));
+        }
+        // copied by a failed run before
+        added.store(Collections.singletonList(ImmutableSample.builder().metric(moving).time(Instant.ofEpochMilli(0)).value(1.0).build()));
+
+        assertEquals(1, sharded.rebalance(total -> {}));
+        assertEquals(2, added.getTimeseries(request(moving)).size());
+        assertEquals(0, single.getTimeseries(request(moving)).size());
+    }
+
+    private ShardedStorage newShardedStorage(String... names) throws Exception {
+        List<InMemoryStorage> storages = new ArrayList<>();
+        for (String ignored : names) {
+            storages.add(newShard());
+        }
+        ShardedStorage storage = new ShardedStorage(Arrays.asList(names), storages, new MetricRegistry());
+        storage.initialize();
+        return storage;
+    }
+
+    private InMemoryStorage newShard() {
+        InMemoryStorage shard = new InMemoryStorage();
+        shard.setEngine("memory");
+        shards.add(shard);
+        return shard;
+    }
+
+    private List<Metric> metrics() {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < METRICS; i++) {
+            metrics.add(new ImmutableMetric.MetricBuilder()
+                    .intrinsicTag(IntrinsicTagNames.resourceId, "node" + i)
+                    .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+                    .build());
+        }
+        return metrics;
+    }
+
+    private List<Sample> samples(long... times) {
+        List<Sample> samples = new ArrayList<>();
+        for (Metric metric : metrics()) {
+            for (long time : times) {
+                samples.add(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(time)).value((double) time).build());
+            }
+        }
+        return samples;
+    }
+
+    private TimeSeriesFetchRequest request(Metric metric) {
+        return ImmutableTimeSeriesFetchRequest.builder()
+                .metric(metric)
+                .start(Instant.ofEpochMilli(-1))
+                .end(Instant.ofEpochMilli(2000))
+                .step(Duration.ZERO)
+                .aggregation(Aggregation.NONE)
+                .build();
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+package org.opennms.timeseries.impl.memory;
+
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.TagMatcher;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableTagMatcher;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TagIndexTest {
+
+    private final QueryPlanner planner = new QueryPlanner();
+
+    private final Metric m1 = createMetric("node1", "ifInOctets", "eth0");
+    private final Metric m2 = createMetric("node1", "ifOutOctets", "eth0");
+    private final Metric m3 = createMetric("node2", "ifInOctets", "eth1");
+
+    @Test
+    public void shouldFindByEquals() {
+        TagIndex index = createIndex();
+        assertEquals(set(m1, m2), new HashSet<>(index.find(plan(TagMatcher.Type.EQUALS, "node", "node1"))));
+        assertEquals(set(m1), new HashSet<>(index.find(planner.compile(Arrays.asList(
+                matcher(TagMatcher.Type.EQUALS, "node", "node1"),
+                matcher(TagMatcher.Type.EQUALS, "name", "ifInOctets"))))));
+        assertTrue(index.find(plan(TagMatcher.Type.EQUALS, "node", "node3")).isEmpty());
+        assertTrue(index.find(plan(TagMatcher.Type.EQUALS, "unknown", "node1")).isEmpty());
+    }
+
+    @Test
+    public void shouldFindByNotEqualsAndRegex() {
+        TagIndex index = createIndex();
+        assertEquals(set(m3), new HashSet<>(index.find(plan(TagMatcher.Type.NOT_EQUALS, "node", "node1"))));
+        assertEquals(set(m1, m3), new HashSet<>(index.find(plan(TagMatcher.Type.EQUALS_REGEX, "name", "ifIn.*"))));
+        assertEquals(set(m2), new HashSet<>(index.find(plan(TagMatcher.Type.NOT_EQUALS_REGEX, "name", "ifIn.*"))));
+        // meta tags are searchable as well
+        assertEquals(set(m3), new HashSet<>(index.find(plan(TagMatcher.Type.EQUALS, "ifName", "eth1"))));
+    }
+
+    @Test
+    public void shouldRemoveAndReuseOrdinals() {
+        TagIndex index = createIndex();
+        index.remove(m1.getKey());
+        assertEquals(2, index.size());
+        assertEquals(set(m2), new HashSet<>(index.find(plan(TagMatcher.Type.EQUALS, "node", "node1"))));
+
+        Metric m4 = createMetric("node1", "ifInErrors", "eth0");
+        index.add(m4);
+        index.add(m4); // adding twice is a no-op
+        assertEquals(3, index.size());
+        assertEquals(set(m2, m4), new HashSet<>(index.find(plan(TagMatcher.Type.EQUALS, "node", "node1"))));
+    }
+
+    @Test
+    public void shouldCountPostingsOfTagsWhichAreBothIntrinsicAndMeta() {
+        TagIndex index = createIndex();
+        Metric both = new ImmutableMetric.MetricBuilder()
+                .intrinsicTag("node", "node1")
+                .intrinsicTag("name", "ifInDiscards")
+                .metaTag("node", "node1")
+                .build();
+        index.add(both);
+        assertEquals(4, index.getPostingCount("node"));
+
+        index.remove(both.getKey());
+        assertEquals(3, index.getPostingCount("node"));
+        index.remove(m1.getKey());
+        index.remove(m2.getKey());
+        assertEquals(1, index.getPostingCount("node"));
+    }
+
+    private TagIndex createIndex() {
+        TagIndex index = new TagIndex();
+        index.add(m1);
+        index.add(m2);
+        index.add(m3);
+        return index;
+    }
+
+    private static Metric createMetric(String node, String name, String ifName) {
+        return new ImmutableMetric.MetricBuilder()
+                .intrinsicTag("node", node)
+                .intrinsicTag("name", name)
+                .metaTag("ifName", ifName)
+                .build();
+    }
+
+    private static TagMatcher matcher(TagMatcher.Type type, String key, String value) {
+        return ImmutableTagMatcher.builder().type(type).key(key).value(value).build();
+    }
+
+    private QueryPlanner.Plan plan(TagMatcher.Type type, String key, String value) {
+        return planner.compile(Collections.singletonList(matcher(type, key, value)));
+    }
+
+    private static HashSet<Metric> set(Metric... metrics) {
+        return new HashSet<>(Arrays.asList(metrics));
+    }
+}
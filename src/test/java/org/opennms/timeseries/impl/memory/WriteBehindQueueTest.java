@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * This file is part of OpenNMS(R).
+ *
+ * Copyright (C) 2022 The OpenNMS Group, Inc.
+ * OpenNMS(R) is Copyright (C) 1999-2022 The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is a registered trademark of The OpenNMS Group, Inc.
+ *
+ * OpenNMS(R) is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * OpenNMS(R) is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with OpenNMS(R).  If not, see:
+ *      http://www.gnu.org/licenses/
+ *
+ * For more information contact:
+ *     OpenNMS(R) Licensing <license@opennms.org>
+ *     http://www.opennms.org/
+ *     http://www.opennms.com/
+ *******************************************************************************/
+
+
+package org.opennms.timeseries.impl.memory;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+import org.opennms.integration.api.v1.timeseries.IntrinsicTagNames;
+import org.opennms.integration.api.v1.timeseries.Metric;
+import org.opennms.integration.api.v1.timeseries.Sample;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableMetric;
+import org.opennms.integration.api.v1.timeseries.immutables.ImmutableSample;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindQueueTest {
+
+    private final Metric metric = new ImmutableMetric.MetricBuilder()
+            .intrinsicTag(IntrinsicTagNames.resourceId, "node1")
+            .intrinsicTag(IntrinsicTagNames.name, "ifInOctets")
+            .build();
+
+    private final List<Sample> written = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void shouldWriteEverythingInBatches() throws InterruptedException {
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        WriteBehindQueue queue = new WriteBehindQueue(1000, 100, 10, WriteBehindQueue.Policy.BLOCK, 2,
+                batch -> {
+                    batchSizes.add(batch.size());
+                    written.addAll(batch);
+                }, new MetricRegistry());
+        queue.start();
+        for (int i = 0; i < 50; i++) {
+            assertTrue(queue.offer(samples(i * 10, 10)));
+        }
+        queue.stop(10_000);
+
+        assertEquals(500, written.size());
+        assertTrue(batchSizes.stream().allMatch(size -> size <= 100));
+    }
+
+    @Test
+    public void shouldRejectWhenFull() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        MetricRegistry metrics = new MetricRegistry();
+        WriteBehindQueue queue = new WriteBehindQueue(10, 10, 0, WriteBehindQueue.Policy.REJECT, 1,
+                blockingSink(release), metrics);
+        queue.start();
+        assertTrue(queue.offer(samples(0, 10))); // taken by the flusher, which blocks
+        awaitEmpty(queue);
+        assertTrue(queue.offer(samples(10, 10)));
+        assertFalse(queue.offer(samples(20, 1)));
+        assertEquals(1, metrics.meter("writeBehind.rejected").getCount());
+
+        release.countDown();
+        queue.stop(10_000);
+        assertEquals(20, written.size());
+    }
+
+    @Test
+    public void shouldDropOldestWhenFull() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        MetricRegistry metrics = new MetricRegistry();
+        WriteBehindQueue queue = new WriteBehindQueue(10, 10, 0, WriteBehindQueue.Policy.DROP_OLDEST, 1,
+                blockingSink(release), metrics);
+        queue.start();
+        assertTrue(queue.offer(samples(0, 10)));
+        awaitEmpty(queue);
+        assertTrue(queue.offer(samples(10, 10)));
+        assertTrue(queue.offer(samples(20, 5)));
+        assertEquals(5, metrics.meter("writeBehind.dropped").getCount());
+
+        release.countDown();
+        queue.stop(10_000);
+        List<Long> times = written.stream().map(s -> s.getTime().toEpochMilli()).sorted().collect(Collectors.toList());
+        assertEquals(20, times.size());
+        assertEquals(Long.valueOf(9), times.get(9));
+        assertEquals(Long.valueOf(15), times.get(10)); // 10 to 14 were dropped
+    }
+
+    private Consumer<List<Sample>> blockingSink(CountDownLatch release) {
+        return batch -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            written.addAll(batch);
+        };
+    }
+
+    private static void awaitEmpty(WriteBehindQueue queue) throws InterruptedException {
+        while (queue.size() > 0) {
+            Thread.sleep(1);
+        }
+    }
+
+    private List<Sample> samples(long start, int count) {
+        List<Sample> samples = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            samples.add(ImmutableSample.builder().metric(metric).time(Instant.ofEpochMilli(start + i)).value(1.0).build());
+        }
+        return samples;
+    }
+}